@@ -0,0 +1,65 @@
+package drawshapes;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * BoundingBox.intersects() and union() over the boxes of a whole scene.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class BoundingBoxBenchmark
+{
+    @Param({ "1000", "100000", "1000000", "10000000" })
+    int size;
+
+    @Param({ "mixed", "squares", "circles", "rectangles" })
+    String mix;
+
+    private BoundingBox[] boxes;
+
+    @Setup
+    public void setUp() {
+        List<IShape> shapes = SceneFixtures.randomShapes(size, mix, SceneFixtures.SEED);
+        boxes = new BoundingBox[shapes.size()];
+        for (int i = 0; i < boxes.length; i++) {
+            boxes[i] = shapes.get(i).getBoundingBox();
+        }
+    }
+
+    @Benchmark
+    public int intersectNeighbours() {
+        int hits = 0;
+        for (int i = 1; i < boxes.length; i++) {
+            if (boxes[i - 1].intersects(boxes[i])) {
+                hits++;
+            }
+        }
+        return hits;
+    }
+
+    @Benchmark
+    public BoundingBox unionAll() {
+        BoundingBox box = boxes[0];
+        for (int i = 1; i < boxes.length; i++) {
+            box = box.union(boxes[i]);
+        }
+        return box;
+    }
+}
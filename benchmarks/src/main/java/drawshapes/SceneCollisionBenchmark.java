@@ -0,0 +1,59 @@
+package drawshapes;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Finding every overlapping pair in a scene, on one thread and on the
+ * common pool, and the shapes overlapping one given shape.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class SceneCollisionBenchmark
+{
+    @Param({ "1000", "100000", "1000000" })
+    int size;
+
+    @Param({ "mixed", "squares", "circles", "rectangles" })
+    String mix;
+
+    private Scene scene;
+    private IShape probe;
+
+    @Setup
+    public void setUp() {
+        scene = SceneFixtures.scene(size, mix);
+        probe = scene.getShapes().get(size / 2);
+    }
+
+    @Benchmark
+    public List<ShapePair> allPairs() {
+        return scene.findIntersectingPairs(false);
+    }
+
+    @Benchmark
+    public List<ShapePair> allPairsParallel() {
+        return scene.findIntersectingPairs(true);
+    }
+
+    @Benchmark
+    public List<IShape> intersectingOne() {
+        return scene.getShapesIntersecting(probe);
+    }
+}
@@ -0,0 +1,69 @@
+package drawshapes;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Scene.draw() into a headless BufferedImage, with antialiasing on like
+ * DrawShapesPanel: one full-window frame, and one small dirty region.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class SceneDrawBenchmark
+{
+    @Param({ "1000", "100000", "1000000", "10000000" })
+    int size;
+
+    @Param({ "mixed", "squares", "circles", "rectangles" })
+    String mix;
+
+    private Scene scene;
+    private BufferedImage image;
+    private Graphics2D g;
+
+    @Setup
+    public void setUp() {
+        scene = SceneFixtures.scene(size, mix);
+        image = new BufferedImage(1920, 1080, BufferedImage.TYPE_INT_ARGB);
+        g = image.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+    }
+
+    @TearDown
+    public void tearDown() {
+        g.dispose();
+    }
+
+    @Benchmark
+    public BufferedImage drawWindow() {
+        g.setClip(0, 0, image.getWidth(), image.getHeight());
+        scene.draw(g);
+        return image;
+    }
+
+    @Benchmark
+    public BufferedImage drawDirtyRegion() {
+        g.setClip(900, 500, 120, 80);
+        scene.draw(g);
+        return image;
+    }
+}
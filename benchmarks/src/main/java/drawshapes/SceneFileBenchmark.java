@@ -0,0 +1,81 @@
+package drawshapes;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Saving and loading a scene, in the text and the binary format.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class SceneFileBenchmark
+{
+    @Param({ "1000", "100000", "1000000", "10000000" })
+    int size;
+
+    @Param({ "mixed", "squares", "circles", "rectangles" })
+    String mix;
+
+    private Scene scene;
+    private File textFile;
+    private File binaryFile;
+
+    @Setup
+    public void setUp() throws IOException {
+        scene = SceneFixtures.scene(size, mix);
+        textFile = File.createTempFile("scene", ".txt");
+        binaryFile = File.createTempFile("scene", ".dsb");
+        scene.saveToFile(textFile.getPath());
+        scene.saveToBinaryFile(binaryFile.getPath());
+    }
+
+    @TearDown
+    public void tearDown() {
+        textFile.delete();
+        binaryFile.delete();
+    }
+
+    @Benchmark
+    public Scene saveText() throws IOException {
+        scene.saveToFile(textFile.getPath());
+        return scene;
+    }
+
+    @Benchmark
+    public Scene loadText() throws IOException {
+        Scene loaded = new Scene();
+        loaded.loadFromFile(textFile.getPath());
+        return loaded;
+    }
+
+    @Benchmark
+    public Scene saveBinary() throws IOException {
+        scene.saveToBinaryFile(binaryFile.getPath());
+        return scene;
+    }
+
+    @Benchmark
+    public Scene loadBinary() throws IOException {
+        Scene loaded = new Scene();
+        loaded.loadFromBinaryFile(binaryFile.getPath());
+        return loaded;
+    }
+}
@@ -0,0 +1,117 @@
+package drawshapes;
+
+import java.awt.Color;
+import java.awt.Point;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Builds the random scenes the benchmarks run against.
+ *
+ * Shapes are spread over a square world that grows with the number of
+ * shapes, so the density (and so the number of shapes under any one
+ * point) stays about the same from 1k to 10M shapes.
+ */
+final class SceneFixtures
+{
+    static final long SEED = 220;
+    // average area of the world per shape, in pixels
+    private static final int AREA_PER_SHAPE = 50 * 50;
+    // how much bigger the shapes of the "large" mix are
+    private static final int LARGE_SCALE = 20;
+
+    private SceneFixtures() {}
+
+    static int worldSize(int count) {
+        return (int) Math.sqrt((double) count * AREA_PER_SHAPE) + 1;
+    }
+
+    /**
+     * Make random shapes. The mix is one of "squares", "circles",
+     * "rectangles", "mixed" or "large" (mixed, but each shape
+     * LARGE_SCALE times as wide and high).
+     */
+    static List<IShape> randomShapes(int count, String mix, long seed) {
+        Random random = new Random(seed);
+        int world = worldSize(count);
+        List<IShape> shapes = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            IShape shape = randomShape(random, world, kindOf(mix, i));
+            if (mix.equals("large")) {
+                shape.scale(LARGE_SCALE);
+            }
+            shapes.add(shape);
+        }
+        return shapes;
+    }
+
+    static Scene scene(int count, String mix) {
+        Scene scene = new Scene();
+        scene.replaceShapes(randomShapes(count, mix, SEED));
+        return scene;
+    }
+
+    /**
+     * Make a group with the given number of leaf shapes, nested the given
+     * number of levels deep (each level splits its shapes into fanout groups).
+     */
+    static ShapeGroup deepGroup(int leaves, int depth, String mix) {
+        List<IShape> shapes = randomShapes(leaves, mix, SEED);
+        return group(shapes, depth, Math.max(2, (int) Math.ceil(Math.pow(leaves, 1.0 / Math.max(1, depth)))));
+    }
+
+    private static ShapeGroup group(List<IShape> shapes, int depth, int fanout) {
+        ShapeGroup group = new ShapeGroup();
+        if (depth <= 1 || shapes.size() <= fanout) {
+            for (IShape shape : shapes) {
+                group.addShape(shape);
+            }
+            return group;
+        }
+        int per = (shapes.size() + fanout - 1) / fanout;
+        for (int from = 0; from < shapes.size(); from += per) {
+            group.addShape(group(shapes.subList(from, Math.min(shapes.size(), from + per)), depth - 1, fanout));
+        }
+        return group;
+    }
+
+    static Point[] randomPoints(int count, int world, long seed) {
+        Random random = new Random(seed);
+        Point[] points = new Point[count];
+        for (int i = 0; i < count; i++) {
+            points[i] = new Point(random.nextInt(world), random.nextInt(world));
+        }
+        return points;
+    }
+
+    private static int kindOf(String mix, int i) {
+        switch (mix) {
+            case "squares":
+                return 0;
+            case "circles":
+                return 1;
+            case "rectangles":
+                return 2;
+            case "mixed":
+            case "large":
+                return i % 3;
+            default:
+                throw new IllegalArgumentException("Unknown shape mix: " + mix);
+        }
+    }
+
+    private static IShape randomShape(Random random, int world, int kind) {
+        Color color = new Color(random.nextInt(0xffffff));
+        int x = random.nextInt(world);
+        int y = random.nextInt(world);
+        switch (kind) {
+            case 0:
+                return new Square(color, x, y, 10 + random.nextInt(50));
+            case 1:
+                return new Circle(color, new Point(x, y), 5 + random.nextInt(25));
+            default:
+                return new Rectangle(new Point(x, y), 10 + random.nextInt(60), 10 + random.nextInt(40), color);
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package drawshapes;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Rendering a whole scene to a big image with SceneRasterizer, on a given
+ * number of threads, next to a plain single-threaded Scene.draw().
+ * Comparing the threads values shows how well the tiles scale with cores.
+ * With the "large" mix most shapes cover several tiles, and each tile
+ * draws its part of them; tiled on one thread against singleThreadedDraw
+ * shows what that overdraw costs.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = { "-Djava.awt.headless=true", "-Xmx4g" })
+public class SceneRasterizerBenchmark
+{
+    @Param({ "100000", "1000000" })
+    int size;
+
+    @Param({ "mixed", "large" })
+    String mix;
+
+    @Param({ "4096", "8192", "16384" })
+    int outputSize;
+
+    @Param({ "1", "2", "4", "8" })
+    int threads;
+
+    private Scene scene;
+    private java.awt.Rectangle area;
+    private ForkJoinPool pool;
+    private SceneRasterizer rasterizer;
+
+    @Setup
+    public void setUp() {
+        scene = SceneFixtures.scene(size, mix);
+        int world = SceneFixtures.worldSize(size);
+        area = new java.awt.Rectangle(0, 0, world, world);
+        pool = new ForkJoinPool(threads);
+        rasterizer = new SceneRasterizer(pool, SceneRasterizer.DEFAULT_TILE_SIZE);
+    }
+
+    @TearDown
+    public void tearDown() {
+        pool.shutdown();
+    }
+
+    @Benchmark
+    public BufferedImage tiled() {
+        return rasterizer.render(scene, area, outputSize, outputSize);
+    }
+
+    @Benchmark
+    public BufferedImage singleThreadedDraw() {
+        BufferedImage image = new BufferedImage(outputSize, outputSize, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = image.createGraphics();
+        try {
+            g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+            g.scale((double) outputSize / area.width, (double) outputSize / area.height);
+            scene.draw(g);
+        } finally {
+            g.dispose();
+        }
+        return image;
+    }
+}
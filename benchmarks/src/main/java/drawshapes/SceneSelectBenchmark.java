@@ -0,0 +1,55 @@
+package drawshapes;
+
+import java.awt.Point;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Hit-testing: Scene.select() and the resize-handle lookup used by mousePressed.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class SceneSelectBenchmark
+{
+    @Param({ "1000", "100000", "1000000", "10000000" })
+    int size;
+
+    @Param({ "mixed", "squares", "circles", "rectangles" })
+    String mix;
+
+    private Scene scene;
+    private Point[] points;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        scene = SceneFixtures.scene(size, mix);
+        points = SceneFixtures.randomPoints(1024, SceneFixtures.worldSize(size), SceneFixtures.SEED + 1);
+    }
+
+    @Benchmark
+    public List<IShape> select() {
+        return scene.select(points[next++ & 1023]);
+    }
+
+    @Benchmark
+    public List<IShape> shapesNear() {
+        return scene.getShapesNear(points[next++ & 1023], 10);
+    }
+}
@@ -0,0 +1,86 @@
+package drawshapes;
+
+import java.awt.Color;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Recording an edit and undoing it (what used to be saveState() and undo()).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class SceneUndoBenchmark
+{
+    @Param({ "1000", "100000", "1000000", "10000000" })
+    int size;
+
+    @Param({ "mixed", "squares", "circles", "rectangles" })
+    String mix;
+
+    private Scene scene;
+    private IShape extra;
+
+    @Setup
+    public void setUp() {
+        scene = SceneFixtures.scene(size, mix);
+        extra = new Square(Color.RED, 10, 10, 20);
+        // a handful of selected shapes for the group benchmark
+        List<IShape> shapes = scene.getShapes();
+        for (int i = 0; i < 10; i++) {
+            shapes.get(i * (shapes.size() / 10)).setSelected(true);
+        }
+    }
+
+    @Benchmark
+    public Scene addShapeAndUndo() {
+        scene.addShape(extra);
+        scene.undo();
+        return scene;
+    }
+
+    @Benchmark
+    public Scene groupAndUndo() {
+        scene.groupSelectedShapes();
+        scene.undo();
+        return scene;
+    }
+
+    /**
+     * A scene with no heap budget for its history, so every edit is
+     * written to disk and read back to be undone.
+     */
+    @State(Scope.Benchmark)
+    public static class Spilling
+    {
+        Scene scene;
+
+        @Setup
+        public void setUp(SceneUndoBenchmark benchmark) {
+            scene = SceneFixtures.scene(benchmark.size, benchmark.mix);
+            scene.setUndoBudget(0);
+        }
+    }
+
+    @Benchmark
+    public Scene addShapeAndUndoSpilled(Spilling spilling) {
+        spilling.scene.addShape(extra);
+        spilling.scene.undo();
+        return spilling.scene;
+    }
+}
@@ -0,0 +1,60 @@
+package drawshapes;
+
+import java.awt.Point;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * ShapeGroup.getBoundingBox() and contains() on a group nested several
+ * levels deep.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class ShapeGroupBenchmark
+{
+    @Param({ "1000", "100000", "1000000", "10000000" })
+    int size;
+
+    @Param({ "mixed", "squares", "circles", "rectangles" })
+    String mix;
+
+    @Param({ "1", "4", "16" })
+    int depth;
+
+    private ShapeGroup group;
+    private Point[] points;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        group = SceneFixtures.deepGroup(size, depth, mix);
+        BoundingBox box = group.getBoundingBox();
+        points = SceneFixtures.randomPoints(1024, Math.max(box.getRight(), box.getBottom()), 7);
+    }
+
+    @Benchmark
+    public BoundingBox boundingBox() {
+        return group.getBoundingBox();
+    }
+
+    @Benchmark
+    public boolean contains() {
+        next = (next + 1) & (points.length - 1);
+        return group.contains(points[next]);
+    }
+}
@@ -0,0 +1,76 @@
+package drawshapes;
+
+import java.awt.Graphics2D;
+import java.awt.Point;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The array-backed ShapeStore: drawing a window's worth of the scene,
+ * and hit-testing and range-scanning straight over the arrays.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class ShapeStoreBenchmark
+{
+    @Param({ "1000", "100000", "1000000", "10000000" })
+    int size;
+
+    @Param({ "mixed", "squares", "circles", "rectangles" })
+    String mix;
+
+    private ShapeStore store;
+    private Point probe;
+    private BufferedImage image;
+    private Graphics2D g;
+
+    @Setup
+    public void setUp() {
+        store = ShapeStore.of(SceneFixtures.randomShapes(size, mix, SceneFixtures.SEED));
+        int world = SceneFixtures.worldSize(size);
+        probe = new Point(world / 2, world / 2);
+        image = new BufferedImage(1920, 1080, BufferedImage.TYPE_INT_ARGB);
+        g = image.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+        g.setClip(0, 0, image.getWidth(), image.getHeight());
+    }
+
+    @TearDown
+    public void tearDown() {
+        g.dispose();
+    }
+
+    @Benchmark
+    public BufferedImage drawWindow() {
+        store.draw(g);
+        return image;
+    }
+
+    @Benchmark
+    public int shapeAt() {
+        return store.shapeAt(probe);
+    }
+
+    @Benchmark
+    public int[] slotsIn() {
+        return store.slotsIn(probe.x - 100, probe.x + 100, probe.y - 100, probe.y + 100);
+    }
+}
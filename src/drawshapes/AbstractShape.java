@@ -5,6 +5,7 @@ import java.awt.Color;
 import java.awt.Graphics;
 import java.awt.Graphics2D;
 import java.awt.Point;
+import java.awt.Stroke;
 
 /**
  * Abstract shape class.
@@ -24,6 +25,9 @@ public abstract class AbstractShape implements IMoveableShape
     protected double opacity = 1.0;
     protected double rotation = 0.0;
     protected BorderStyle borderStyle = BorderStyle.SOLID;
+    protected IShapeListener listener;
+
+    static final Stroke SELECTION_STROKE = new BasicStroke(2.0f);
     
     protected AbstractShape(Color color, Point anchorPoint) {
         this.color = color;
@@ -35,15 +39,18 @@ public abstract class AbstractShape implements IMoveableShape
         this.boundingBox = new BoundingBox(left, right, top, bottom);
     }
 
+    /**
+     * Work out the bounding box from the shape's current size and position.
+     * getBoundingBox() caches the result until boundsChanged() is called.
+     */
+    protected abstract BoundingBox computeBoundingBox();
+
     /* (non-Javadoc)
      * @see drawshapes.sol.Shape#intersects(drawshapes.sol.Shape)
      */
     @Override
     public boolean intersects(IShape other) {
-        if (this == other || other == null) {
-            return false;
-        }
-        return this.boundingBox.intersects(other.getBoundingBox());
+        return Collisions.intersects(this, other);
     }
 
     /* (non-Javadoc)
@@ -51,7 +58,7 @@ public abstract class AbstractShape implements IMoveableShape
      */
     @Override
     public boolean contains(Point point) {
-        return this.boundingBox.contains(point);
+        return getBoundingBox().contains(point);
     }
 
     /* (non-Javadoc)
@@ -59,7 +66,10 @@ public abstract class AbstractShape implements IMoveableShape
      */
     @Override
     public BoundingBox getBoundingBox() {
-        return this.boundingBox;
+        if (boundingBox == null) {
+            boundingBox = computeBoundingBox();
+        }
+        return boundingBox;
     }
 
     /* (non-Javadoc)
@@ -76,6 +86,7 @@ public abstract class AbstractShape implements IMoveableShape
     @Override
     public void setColor(Color color) {
         this.color = color;
+        fireShapeChanged();
     }
 
     /* (non-Javadoc)
@@ -91,7 +102,33 @@ public abstract class AbstractShape implements IMoveableShape
      */
     @Override
     public void setSelected(boolean b) {
-        this.selected = b;
+        if (this.selected != b) {
+            this.selected = b;
+            fireShapeChanged();
+        }
+    }
+    
+    @Override
+    public void setShapeListener(IShapeListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Tell our listener (if any) that we changed.
+     */
+    protected void fireShapeChanged() {
+        if (listener != null) {
+            listener.shapeChanged(this);
+        }
+    }
+
+    /**
+     * Forget the cached bounding box and tell our listener.
+     * Subclasses call this after anything that moves or resizes them.
+     */
+    protected void boundsChanged() {
+        boundingBox = null;
+        fireShapeChanged();
     }
     
     @Override
@@ -99,39 +136,46 @@ public abstract class AbstractShape implements IMoveableShape
         return this.anchorPoint;
     }
     
+    /**
+     * Draw the shape straight onto the given Graphics.
+     * 
+     * This runs for every shape on every frame, so it doesn't make any
+     * objects: colors come from ColorCache, strokes from BorderStyle, and
+     * the Graphics is used directly rather than through a copy. A rotated
+     * shape rotates g and then rotates it back by the same angle.
+     * The color and stroke of g are left changed.
+     */
     @Override
     public void draw(Graphics g) {
-        Graphics2D g2d = (Graphics2D) g.create();
+        Graphics2D g2d = (Graphics2D) g;
         applyTransform(g2d);
-        // Draw filled shape
-        g2d.setColor(new Color(
-            color.getRed(),
-            color.getGreen(),
-            color.getBlue(),
-            (int)(opacity * 255)
-        ));
         drawShape(g2d);
         // Draw border if selected
         if (selected) {
             g2d.setColor(Color.BLACK);
-            g2d.setStroke(new BasicStroke(2.0f));
+            g2d.setStroke(SELECTION_STROKE);
             BoundingBox bbox = getBoundingBox();
             g2d.drawRect(bbox.getLeft() - 2, bbox.getTop() - 2, bbox.getWidth() + 4, bbox.getHeight() + 4);
         }
-        g2d.dispose();
+        undoTransform(g2d);
     }
 
+    /**
+     * Fill the shape, using the color and stroke already set on g.
+     */
     protected abstract void drawShape(Graphics g);
 
     @Override
     public void setAnchorPoint(Point point) {
         this.anchorPoint = point;
+        boundsChanged();
     }
 
     @Override
     public void move(int dx, int dy) {
         anchorPoint.x += dx;
         anchorPoint.y += dy;
+        boundsChanged();
     }
 
     @Override
@@ -142,6 +186,7 @@ public abstract class AbstractShape implements IMoveableShape
     @Override
     public void rotate(double degrees) {
         this.rotation = (this.rotation + degrees) % 360;
+        fireShapeChanged();
     }
 
     @Override
@@ -149,6 +194,14 @@ public abstract class AbstractShape implements IMoveableShape
         return rotation;
     }
 
+    /**
+     * Set the rotation outright, e.g. when an edit is undone.
+     */
+    void restoreRotation(double rotation) {
+        this.rotation = rotation;
+        fireShapeChanged();
+    }
+
     @Override
     public IShape clone() {
         try {
@@ -157,12 +210,24 @@ public abstract class AbstractShape implements IMoveableShape
             clone.selected = false;
             clone.opacity = this.opacity;
             clone.rotation = this.rotation;
+            clone.anchorPoint = new Point(anchorPoint);
+            clone.boundingBox = null;
+            clone.listener = null;
             return clone;
         } catch (CloneNotSupportedException e) {
             return null;
         }
     }
 
+    /**
+     * Give a copy of this shape our opacity, rotation and border style.
+     */
+    protected void copyStyleTo(AbstractShape copy) {
+        copy.opacity = opacity;
+        copy.rotation = rotation;
+        copy.borderStyle = borderStyle;
+    }
+
     @Override
     public double getOpacity() {
         return opacity;
@@ -171,11 +236,13 @@ public abstract class AbstractShape implements IMoveableShape
     @Override
     public void setOpacity(double opacity) {
         this.opacity = Math.max(0, Math.min(1, opacity));
+        fireShapeChanged();
     }
 
     @Override
     public void setBorderStyle(BorderStyle style) {
         this.borderStyle = style;
+        fireShapeChanged();
     }
 
     @Override
@@ -183,26 +250,29 @@ public abstract class AbstractShape implements IMoveableShape
         return borderStyle;
     }
 
+    /**
+     * Rotate g around our center and set our color, opacity and border stroke.
+     */
     protected void applyTransform(Graphics2D g) {
-        g.rotate(Math.toRadians(rotation), getBoundingBox().getCenter().x, getBoundingBox().getCenter().y);
-        Color currentColor = new Color(
-            color.getRed(),
-            color.getGreen(),
-            color.getBlue(),
-            (int)(opacity * 255)
-        );
-        g.setColor(currentColor);
-
-        switch (borderStyle) {
-            case SOLID:
-                g.setStroke(new BasicStroke(2.0f));
-                break;
-            case DASHED:
-                g.setStroke(new BasicStroke(2.0f, BasicStroke.CAP_BUTT, BasicStroke.JOIN_BEVEL, 0, new float[]{9}, 0));
-                break;
-            case DOTTED:
-                g.setStroke(new BasicStroke(2.0f, BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND, 0, new float[]{2}, 0));
-                break;
+        if (rotation != 0) {
+            BoundingBox bbox = getBoundingBox();
+            g.rotate(Math.toRadians(rotation), bbox.getCenterX(), bbox.getCenterY());
+        }
+        g.setColor(ColorCache.translucent(color, opacity));
+        g.setStroke(borderStyle.getStroke());
+    }
+
+    /**
+     * Undo the rotation done by applyTransform(), in place.
+     * 
+     * Rotating back can leave g off by a rounding error, far below a pixel,
+     * but unlike saving g.getTransform() it doesn't make a new transform
+     * for every rotated shape on every frame.
+     */
+    protected void undoTransform(Graphics2D g) {
+        if (rotation != 0) {
+            BoundingBox bbox = getBoundingBox();
+            g.rotate(-Math.toRadians(rotation), bbox.getCenterX(), bbox.getCenterY());
         }
     }
 }
@@ -0,0 +1,39 @@
+package drawshapes;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Counts the bytes the current thread has allocated, using the HotSpot
+ * extension of ThreadMXBean. Used to check that drawing a frame doesn't
+ * allocate anything per shape.
+ */
+final class AllocationCounter
+{
+    private static final com.sun.management.ThreadMXBean threads = hotspotThreads();
+
+    private AllocationCounter() {}
+
+    private static com.sun.management.ThreadMXBean hotspotThreads() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean hotspot = (com.sun.management.ThreadMXBean) bean;
+            if (hotspot.isThreadAllocatedMemorySupported() && hotspot.isThreadAllocatedMemoryEnabled()) {
+                return hotspot;
+            }
+        }
+        return null;
+    }
+
+    static boolean isSupported() {
+        return threads != null;
+    }
+
+    /**
+     * Return the total bytes allocated so far by the calling thread,
+     * or -1 if this JVM can't tell us.
+     */
+    static long allocatedBytes() {
+        return threads == null ? -1 : threads.getCurrentThreadAllocatedBytes();
+    }
+}
@@ -0,0 +1,393 @@
+package drawshapes;
+
+import java.awt.Color;
+import java.awt.Point;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads and writes scenes in a compact binary format, as an alternative
+ * to the one-line-per-shape text format of Scene.saveToFile().
+ *
+ * The file is a 16 byte header followed by one fixed 40 byte record per
+ * shape. A group is a record holding the number of children, followed by
+ * the records of its children (which can be groups themselves). Files are
+ * read and written through memory-mapped NIO buffers, so shapes are built
+ * straight from the mapped pages with no intermediate copies or strings.
+ *
+ * <pre>
+ * header:  int magic ("DSHP"), short version, short unused,
+ *          int total number of records, int number of top-level shapes
+ * record:  byte type, byte border style, short unused,
+ *          int x, int y, int argb,
+ *          int size/radius/width/child count, int height,
+ *          double opacity, double rotation
+ * </pre>
+ *
+ * Everything is big-endian.
+ */
+final class BinarySceneFormat
+{
+    static final int MAGIC = 0x44534850; // "DSHP"
+    static final short VERSION = 1;
+    static final int HEADER_SIZE = 16;
+    static final int RECORD_SIZE = 40;
+
+    static final byte SQUARE = 1;
+    static final byte CIRCLE = 2;
+    static final byte RECTANGLE = 3;
+    static final byte GROUP = 4;
+
+    private static final BorderStyle[] BORDER_STYLES = BorderStyle.values();
+
+    // biggest window we map at once; a multiple of RECORD_SIZE
+    private static final long WINDOW_SIZE = (1L << 30) / RECORD_SIZE * RECORD_SIZE;
+
+    private BinarySceneFormat() {}
+
+    /**
+     * Write the shapes, back to front, to the given file.
+     */
+    static void write(List<IShape> shapes, Path path) throws IOException {
+        long records = 0;
+        for (IShape shape : shapes) {
+            records += countRecords(shape);
+        }
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+            header.order(ByteOrder.BIG_ENDIAN);
+            header.putInt(MAGIC);
+            header.putShort(VERSION);
+            header.putShort((short) 0);
+            header.putInt(checkedCount(records));
+            header.putInt(shapes.size());
+            header.force();
+
+            Cursor out = new Cursor(channel, FileChannel.MapMode.READ_WRITE, records);
+            for (IShape shape : shapes) {
+                writeShape(shape, out);
+            }
+            out.finish();
+        }
+    }
+
+    /**
+     * Read the shapes, back to front, from the given file.
+     */
+    static List<IShape> read(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            Header header = readHeader(channel, path);
+            Cursor in = new Cursor(channel, FileChannel.MapMode.READ_ONLY, header.records);
+            List<IShape> shapes = new ArrayList<>(header.topLevel);
+            for (int i = 0; i < header.topLevel; i++) {
+                shapes.add(readShape(in));
+            }
+            return shapes;
+        }
+    }
+
+    /**
+     * Write the shapes in a store, back to front, to the given file.
+     */
+    static void write(ShapeStore store, Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+            header.order(ByteOrder.BIG_ENDIAN);
+            header.putInt(MAGIC);
+            header.putShort(VERSION);
+            header.putShort((short) 0);
+            header.putInt(store.size());
+            header.putInt(store.size());
+            header.force();
+
+            Cursor out = new Cursor(channel, FileChannel.MapMode.READ_WRITE, store.size());
+            for (int i = 0; i < store.size(); i++) {
+                MappedByteBuffer buf = out.next();
+                buf.put(store.typeOf(i));
+                buf.put((byte) store.borderOf(i).ordinal());
+                buf.putShort((short) 0);
+                buf.putInt(store.xOf(i));
+                buf.putInt(store.yOf(i));
+                buf.putInt(store.argbOf(i));
+                buf.putInt(store.aOf(i));
+                buf.putInt(store.bOf(i));
+                buf.putDouble(store.opacityOf(i));
+                buf.putDouble(store.rotationOf(i));
+            }
+            out.finish();
+        }
+    }
+
+    /**
+     * Read a file straight into a ShapeStore, without making a shape
+     * object for each record. Groups are flattened: a group's record is
+     * skipped and its children are stored like any other shape.
+     */
+    static ShapeStore readStore(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long records = readHeader(channel, path).records;
+            if (records > Integer.MAX_VALUE) {
+                throw new IOException("Too many shapes for a shape store: " + records);
+            }
+            ShapeStore store = new ShapeStore((int) records);
+            Cursor in = new Cursor(channel, FileChannel.MapMode.READ_ONLY, records);
+            for (long r = 0; r < records; r++) {
+                MappedByteBuffer buf = in.next();
+                byte type = buf.get();
+                int border = buf.get();
+                buf.getShort();
+                int x = buf.getInt();
+                int y = buf.getInt();
+                int argb = buf.getInt();
+                int a = buf.getInt();
+                int b = buf.getInt();
+                double opacity = buf.getDouble();
+                double rotation = buf.getDouble();
+                if (type == GROUP) {
+                    continue;
+                }
+                if (type != SQUARE && type != CIRCLE && type != RECTANGLE) {
+                    throw new IOException("Bad shape type " + type + " in binary scene file");
+                }
+                if (border < 0 || border >= BORDER_STYLES.length) {
+                    throw new IOException("Bad border style " + border + " in binary scene file");
+                }
+                int slot = store.add(type, x, y, a, b, argb);
+                store.restore(slot, opacity, rotation, BORDER_STYLES[border]);
+            }
+            return store;
+        }
+    }
+
+    /**
+     * What the header of a file says: how many records there are in all,
+     * and how many of them are top-level shapes.
+     */
+    private static final class Header
+    {
+        final long records;
+        final int topLevel;
+
+        Header(long records, int topLevel) {
+            this.records = records;
+            this.topLevel = topLevel;
+        }
+    }
+
+    /**
+     * Check the header and return what it says.
+     */
+    private static Header readHeader(FileChannel channel, Path path) throws IOException {
+        if (channel.size() < HEADER_SIZE) {
+            throw new IOException("Not a binary scene file: " + path);
+        }
+        MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+        header.order(ByteOrder.BIG_ENDIAN);
+        if (header.getInt() != MAGIC) {
+            throw new IOException("Not a binary scene file: " + path);
+        }
+        short version = header.getShort();
+        if (version != VERSION) {
+            throw new IOException("Unsupported binary scene version " + version + ": " + path);
+        }
+        header.getShort();
+        long records = header.getInt() & 0xffffffffL;
+        int topLevel = header.getInt();
+        if (topLevel < 0 || topLevel > records) {
+            throw new IOException("Bad shape count " + topLevel + " in binary scene file: " + path);
+        }
+        if (channel.size() < HEADER_SIZE + records * RECORD_SIZE) {
+            throw new IOException("Binary scene file is truncated: " + path);
+        }
+        return new Header(records, topLevel);
+    }
+
+    /**
+     * Return how many bytes encode() needs for the shape.
+     */
+    static int encodedSize(IShape shape) {
+        return (int) countRecords(shape) * RECORD_SIZE;
+    }
+
+    /**
+     * Put the records of one shape (and its children, for a group) into
+     * the buffer, which must have encodedSize() bytes left and be
+     * big-endian. Used for single shapes outside a scene file.
+     */
+    static void encode(IShape shape, ByteBuffer buf) throws IOException {
+        writeShape(shape, () -> buf);
+    }
+
+    /**
+     * Read back one shape written by encode().
+     */
+    static IShape decode(ByteBuffer buf) throws IOException {
+        return readShape(() -> buf);
+    }
+
+    static boolean isBinarySceneFile(String filename) {
+        return filename.toLowerCase().endsWith(".dsb");
+    }
+
+    private static long countRecords(IShape shape) {
+        long count = 1;
+        if (shape instanceof ShapeGroup) {
+            for (IShape child : ((ShapeGroup) shape).getShapes()) {
+                count += countRecords(child);
+            }
+        }
+        return count;
+    }
+
+    private static int checkedCount(long records) throws IOException {
+        if (records > 0xffffffffL) {
+            throw new IOException("Too many shapes for a binary scene file: " + records);
+        }
+        return (int) records;
+    }
+
+    private static void writeShape(IShape shape, Records out) throws IOException {
+        ByteBuffer buf = out.next();
+        Point anchor = shape.getAnchorPoint();
+        int a = 0, b = 0;
+        byte type;
+        if (shape instanceof Square) {
+            type = SQUARE;
+            a = ((Square) shape).getSize();
+        } else if (shape instanceof Circle) {
+            type = CIRCLE;
+            a = ((Circle) shape).getRadius();
+        } else if (shape instanceof Rectangle) {
+            type = RECTANGLE;
+            a = ((Rectangle) shape).getWidth();
+            b = ((Rectangle) shape).getHeight();
+        } else if (shape instanceof ShapeGroup) {
+            type = GROUP;
+            a = ((ShapeGroup) shape).getShapes().size();
+        } else {
+            throw new IOException("Can't write shape: " + shape);
+        }
+        buf.put(type);
+        buf.put((byte) shape.getBorderStyle().ordinal());
+        buf.putShort((short) 0);
+        buf.putInt(anchor.x);
+        buf.putInt(anchor.y);
+        buf.putInt(shape.getColor().getRGB());
+        buf.putInt(a);
+        buf.putInt(b);
+        buf.putDouble(shape.getOpacity());
+        buf.putDouble(shape.getRotation());
+        if (type == GROUP) {
+            for (IShape child : ((ShapeGroup) shape).getShapes()) {
+                writeShape(child, out);
+            }
+        }
+    }
+
+    private static IShape readShape(Records in) throws IOException {
+        ByteBuffer buf = in.next();
+        byte type = buf.get();
+        int border = buf.get();
+        buf.getShort();
+        int x = buf.getInt();
+        int y = buf.getInt();
+        Color color = new Color(buf.getInt(), true);
+        int a = buf.getInt();
+        int b = buf.getInt();
+        double opacity = buf.getDouble();
+        double rotation = buf.getDouble();
+        if (border < 0 || border >= BORDER_STYLES.length) {
+            throw new IOException("Bad border style " + border + " in binary scene file");
+        }
+        BorderStyle style = BORDER_STYLES[border];
+
+        if (type == GROUP) {
+            // the children follow the group's record; the group's own values must not overwrite theirs
+            ShapeGroup group = new ShapeGroup();
+            for (int i = 0; i < a; i++) {
+                group.addShape(readShape(in));
+            }
+            group.restoreState(color, new Point(x, y), rotation, opacity, style);
+            return group;
+        }
+        AbstractShape shape;
+        switch (type) {
+            case SQUARE:
+                shape = new Square(color, x, y, a);
+                break;
+            case CIRCLE:
+                shape = new Circle(color, new Point(x, y), a);
+                break;
+            case RECTANGLE:
+                shape = new Rectangle(new Point(x, y), a, b, color);
+                break;
+            default:
+                throw new IOException("Bad shape type " + type + " in binary scene file");
+        }
+        shape.setOpacity(opacity);
+        shape.rotate(rotation);
+        shape.setBorderStyle(style);
+        return shape;
+    }
+
+    /**
+     * Hands out a buffer positioned at the next record.
+     */
+    private interface Records
+    {
+        ByteBuffer next() throws IOException;
+    }
+
+    /**
+     * Walks the records of a file one at a time, mapping the file in
+     * windows of up to a gigabyte so files bigger than 2GB still work.
+     */
+    private static class Cursor implements Records
+    {
+        private final FileChannel channel;
+        private final FileChannel.MapMode mode;
+        private final long records;
+        private long done;
+        private MappedByteBuffer window;
+
+        Cursor(FileChannel channel, FileChannel.MapMode mode, long records) {
+            this.channel = channel;
+            this.mode = mode;
+            this.records = records;
+        }
+
+        /**
+         * Return the buffer, positioned at the start of the next record.
+         */
+        @Override
+        public MappedByteBuffer next() throws IOException {
+            if (done >= records) {
+                throw new IOException("Binary scene file has fewer records than its shapes need");
+            }
+            if (window == null || !window.hasRemaining()) {
+                finish();
+                long offset = HEADER_SIZE + done * RECORD_SIZE;
+                long size = Math.min(WINDOW_SIZE, (records - done) * RECORD_SIZE);
+                window = channel.map(mode, offset, size);
+                window.order(ByteOrder.BIG_ENDIAN);
+            }
+            done++;
+            return window;
+        }
+
+        void finish() {
+            if (window != null && mode == FileChannel.MapMode.READ_WRITE) {
+                window.force();
+            }
+        }
+    }
+}
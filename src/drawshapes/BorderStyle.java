@@ -1,7 +1,21 @@
 package drawshapes;
 
+import java.awt.BasicStroke;
+import java.awt.Stroke;
+
 public enum BorderStyle {
-    SOLID,
-    DASHED,
-    DOTTED
-} 
\ No newline at end of file
+    SOLID(new BasicStroke(2.0f)),
+    DASHED(new BasicStroke(2.0f, BasicStroke.CAP_BUTT, BasicStroke.JOIN_BEVEL, 0, new float[]{9}, 0)),
+    DOTTED(new BasicStroke(2.0f, BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND, 0, new float[]{2}, 0));
+
+    // strokes never change, so every shape with this style shares one
+    private final Stroke stroke;
+
+    private BorderStyle(Stroke stroke) {
+        this.stroke = stroke;
+    }
+
+    public Stroke getStroke() {
+        return stroke;
+    }
+}
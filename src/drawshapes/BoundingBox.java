@@ -2,27 +2,33 @@ package drawshapes;
 
 import java.awt.Point;
 
+/**
+ * An axis-aligned box given by its edges (all inclusive).
+ * 
+ * A BoundingBox never changes once it is made, so shapes can hand out
+ * the same one until they move. All the tests here only compare ints
+ * and don't allocate anything.
+ */
 class BoundingBox
 {
-    private int left;
-    private int right;
-    private int top;
-    private int bottom;
-    private Point[] corners = new Point[4];
+    private final int left;
+    private final int right;
+    private final int top;
+    private final int bottom;
     
     BoundingBox(int left, int right, int top, int bottom){
         this.left = left;
         this.right = right;
         this.top = top;
         this.bottom = bottom;
-        this.corners[0] = new Point(left, top);
-        this.corners[1] = new Point(left, bottom);
-        this.corners[2] = new Point(right, bottom);
-        this.corners[3] = new Point(right, top);
     }
     
     boolean contains(Point p){
-        return p.x >= left && p.x <= right && p.y >= top && p.y <= bottom;
+        return contains(p.x, p.y);
+    }
+
+    boolean contains(int x, int y){
+        return x >= left && x <= right && y >= top && y <= bottom;
     }
     
     public String toString() {
@@ -30,26 +36,14 @@ class BoundingBox
     }
     
     boolean intersects(BoundingBox other){
-        // are any of my corners in their bounding box?
-        for (Point corner : corners){
-            if (other.contains(corner)){
-                return true;
-            }
-        }
-        // are any of their corners in my bounding box?
-        for (Point corner : other.corners){
-            if (this.contains(corner)){
-                return true;
-            }
-        }
-        // Check for the case where we intersect but no corners are contained
-        if (this.left < other.left && this.right > other.right && 
-                this.top > other.top && this.bottom < other.bottom)
-        {
-            return true;
-        }
-        return this.left > other.left && this.right < other.right &&
-                this.top < other.top && this.bottom > other.bottom;
+        return intersects(other.left, other.right, other.top, other.bottom);
+    }
+
+    /**
+     * Does this box overlap the box with the given edges (touching counts)?
+     */
+    boolean intersects(int left, int right, int top, int bottom){
+        return this.left <= right && this.right >= left && this.top <= bottom && this.bottom >= top;
     }
 
     public int getLeft() {
@@ -76,23 +70,52 @@ class BoundingBox
         return bottom - top;
     }
 
+    /**
+     * Return the corners: top-left, bottom-left, bottom-right, top-right.
+     * 
+     * This makes new Points every time, so use getCornerX() and
+     * getCornerY() in code that runs a lot.
+     */
     public Point[] getCorners() {
-        return corners.clone();
+        Point[] corners = new Point[4];
+        for (int i = 0; i < 4; i++) {
+            corners[i] = new Point(getCornerX(i), getCornerY(i));
+        }
+        return corners;
+    }
+
+    /**
+     * Return the x coordinate of the given corner, numbered as in getCorners().
+     */
+    public int getCornerX(int corner) {
+        return corner < 2 ? left : right;
+    }
+
+    /**
+     * Return the y coordinate of the given corner, numbered as in getCorners().
+     */
+    public int getCornerY(int corner) {
+        return corner == 0 || corner == 3 ? top : bottom;
     }
 
     public BoundingBox union(BoundingBox other) {
         return new BoundingBox(
             Math.min(this.left, other.left),
-            Math.min(this.top, other.top),
             Math.max(this.right, other.right),
+            Math.min(this.top, other.top),
             Math.max(this.bottom, other.bottom)
         );
     }
 
     public Point getCenter() {
-        return new Point(
-            (left + right) / 2,
-            (top + bottom) / 2
-        );
+        return new Point(getCenterX(), getCenterY());
+    }
+
+    public int getCenterX() {
+        return (left + right) / 2;
+    }
+
+    public int getCenterY() {
+        return (top + bottom) / 2;
     }
 }
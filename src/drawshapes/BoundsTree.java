@@ -0,0 +1,257 @@
+package drawshapes;
+
+import java.awt.Point;
+import java.util.function.Predicate;
+
+/**
+ * A bounding volume hierarchy over the children of a ShapeGroup, so a
+ * hit test only looks at the children near the point instead of all of
+ * them.
+ *
+ * The children are split in half at the median of their centers along
+ * the longer side of their box, and each half again, until at most
+ * LEAF_SIZE are left. Every node keeps the box around the children under
+ * it and the highest position (the top-most child) among them, so a
+ * search for the top-most child at a point can skip any subtree that
+ * misses the point or can't beat what it has already found. The nodes
+ * are stored in pre-order in flat int arrays.
+ *
+ * When children move, refit() works the boxes out again bottom-up and
+ * keeps the split; when children are added or removed the group builds
+ * a new tree.
+ */
+final class BoundsTree
+{
+    static final int LEAF_SIZE = 8;
+    // groups with fewer children than this just check them all
+    static final int MIN_SHAPES = 4 * LEAF_SIZE;
+
+    private final IShape[] shapes;
+    // child positions, each node's children in a run, top-most first in a leaf
+    private final int[] order;
+    // per node: the run of order it covers, its second child (the first is
+    // the next node) or -1 for a leaf, and the top-most child position under it
+    private final int[] from;
+    private final int[] to;
+    private final int[] second;
+    private final int[] highest;
+    // per node: left, right, top, bottom
+    private final int[] boxes;
+    private int nodes;
+
+    /**
+     * Build the tree over the given children, in group order.
+     */
+    BoundsTree(IShape[] shapes) {
+        this.shapes = shapes;
+        int count = shapes.length;
+        order = new int[count];
+        // twice the centers, so they stay whole numbers
+        long[] centers = new long[2 * count];
+        for (int i = 0; i < count; i++) {
+            order[i] = i;
+            BoundingBox box = shapes[i].getBoundingBox();
+            centers[2 * i] = (long) box.getLeft() + box.getRight();
+            centers[2 * i + 1] = (long) box.getTop() + box.getBottom();
+        }
+        int size = nodeCount(count);
+        from = new int[size];
+        to = new int[size];
+        second = new int[size];
+        highest = new int[size];
+        boxes = new int[4 * size];
+        build(0, count, centers);
+    }
+
+    private static int nodeCount(int count) {
+        return count <= LEAF_SIZE ? 1 : 1 + nodeCount(count / 2) + nodeCount(count - count / 2);
+    }
+
+    /**
+     * Add the node for order[start..end) and everything under it.
+     */
+    private int build(int start, int end, long[] centers) {
+        int node = nodes++;
+        from[node] = start;
+        to[node] = end;
+        if (end - start <= LEAF_SIZE) {
+            second[node] = -1;
+            sortTopMostFirst(start, end);
+            fitLeaf(node);
+            return node;
+        }
+        long minX = Long.MAX_VALUE, maxX = Long.MIN_VALUE, minY = Long.MAX_VALUE, maxY = Long.MIN_VALUE;
+        for (int i = start; i < end; i++) {
+            long x = centers[2 * order[i]], y = centers[2 * order[i] + 1];
+            minX = Math.min(minX, x);
+            maxX = Math.max(maxX, x);
+            minY = Math.min(minY, y);
+            maxY = Math.max(maxY, y);
+        }
+        int axis = maxX - minX >= maxY - minY ? 0 : 1;
+        int middle = start + (end - start) / 2;
+        select(start, end, middle, centers, axis);
+        build(start, middle, centers);
+        second[node] = build(middle, end, centers);
+        fitInner(node);
+        return node;
+    }
+
+    /**
+     * Reorder order[start..end) so the child at middle is the one that
+     * would be there if the run were sorted by center on the axis, with
+     * no bigger centers before it and no smaller ones after.
+     */
+    private void select(int start, int end, int middle, long[] centers, int axis) {
+        int lo = start, hi = end - 1;
+        while (lo < hi) {
+            long pivot = centers[2 * order[(lo + hi) >>> 1] + axis];
+            int i = lo, j = hi;
+            while (i <= j) {
+                while (centers[2 * order[i] + axis] < pivot) {
+                    i++;
+                }
+                while (centers[2 * order[j] + axis] > pivot) {
+                    j--;
+                }
+                if (i <= j) {
+                    int t = order[i];
+                    order[i] = order[j];
+                    order[j] = t;
+                    i++;
+                    j--;
+                }
+            }
+            if (middle <= j) {
+                hi = j;
+            } else if (middle >= i) {
+                lo = i;
+            } else {
+                return;
+            }
+        }
+    }
+
+    private void sortTopMostFirst(int start, int end) {
+        for (int i = start + 1; i < end; i++) {
+            int position = order[i];
+            int j = i - 1;
+            while (j >= start && order[j] < position) {
+                order[j + 1] = order[j];
+                j--;
+            }
+            order[j + 1] = position;
+        }
+    }
+
+    private void fitLeaf(int node) {
+        int left = Integer.MAX_VALUE, right = Integer.MIN_VALUE, top = Integer.MAX_VALUE, bottom = Integer.MIN_VALUE;
+        for (int i = from[node]; i < to[node]; i++) {
+            BoundingBox box = shapes[order[i]].getBoundingBox();
+            left = Math.min(left, box.getLeft());
+            right = Math.max(right, box.getRight());
+            top = Math.min(top, box.getTop());
+            bottom = Math.max(bottom, box.getBottom());
+        }
+        setBox(node, left, right, top, bottom);
+        // the leaf is sorted top-most first
+        highest[node] = order[from[node]];
+    }
+
+    private void fitInner(int node) {
+        int a = 4 * (node + 1), b = 4 * second[node];
+        setBox(node, Math.min(boxes[a], boxes[b]), Math.max(boxes[a + 1], boxes[b + 1]),
+                Math.min(boxes[a + 2], boxes[b + 2]), Math.max(boxes[a + 3], boxes[b + 3]));
+        highest[node] = Math.max(highest[node + 1], highest[second[node]]);
+    }
+
+    private void setBox(int node, int left, int right, int top, int bottom) {
+        boxes[4 * node] = left;
+        boxes[4 * node + 1] = right;
+        boxes[4 * node + 2] = top;
+        boxes[4 * node + 3] = bottom;
+    }
+
+    /**
+     * Work the boxes out again after children moved or changed size.
+     * Children come after their parent, so going backwards fits every
+     * node after the nodes under it.
+     */
+    void refit() {
+        for (int node = nodes - 1; node >= 0; node--) {
+            if (second[node] < 0) {
+                fitLeaf(node);
+            } else {
+                fitInner(node);
+            }
+        }
+    }
+
+    /**
+     * Return the box around all the children.
+     */
+    BoundingBox getBounds() {
+        return new BoundingBox(boxes[0], boxes[1], boxes[2], boxes[3]);
+    }
+
+    /**
+     * Return the position of the top-most child containing the point, or -1.
+     */
+    int topMostAt(Point p) {
+        return topMostAt(0, p, -1);
+    }
+
+    private int topMostAt(int node, Point p, int best) {
+        int b = 4 * node;
+        if (highest[node] <= best || p.x < boxes[b] || p.x > boxes[b + 1] || p.y < boxes[b + 2] || p.y > boxes[b + 3]) {
+            return best;
+        }
+        if (second[node] < 0) {
+            for (int i = from[node]; i < to[node]; i++) {
+                int position = order[i];
+                if (position <= best) {
+                    break;
+                }
+                IShape shape = shapes[position];
+                if (shape.getBoundingBox().contains(p) && shape.contains(p)) {
+                    // the rest of the leaf is further down
+                    return position;
+                }
+            }
+            return best;
+        }
+        // look on the side with the higher child first, it may rule out the other
+        int first = node + 1, other = second[node];
+        if (highest[other] > highest[first]) {
+            first = other;
+            other = node + 1;
+        }
+        return topMostAt(other, p, topMostAt(first, p, best));
+    }
+
+    /**
+     * Is the test true for any child whose bounding box touches the box
+     * with the given edges? Stops at the first one it is true for.
+     */
+    boolean anyTouching(int left, int right, int top, int bottom, Predicate<IShape> test) {
+        return anyTouching(0, left, right, top, bottom, test);
+    }
+
+    private boolean anyTouching(int node, int left, int right, int top, int bottom, Predicate<IShape> test) {
+        int b = 4 * node;
+        if (boxes[b] > right || boxes[b + 1] < left || boxes[b + 2] > bottom || boxes[b + 3] < top) {
+            return false;
+        }
+        if (second[node] >= 0) {
+            return anyTouching(node + 1, left, right, top, bottom, test)
+                    || anyTouching(second[node], left, right, top, bottom, test);
+        }
+        for (int i = from[node]; i < to[node]; i++) {
+            IShape shape = shapes[order[i]];
+            if (shape.getBoundingBox().intersects(left, right, top, bottom) && test.test(shape)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -15,12 +15,7 @@ public class Circle extends AbstractShape
 
     @Override
     protected void drawShape(Graphics g) {
-        g.setColor(color);
         g.fillOval(anchorPoint.x - radius, anchorPoint.y - radius, radius * 2, radius * 2);
-        if (selected) {
-            g.setColor(Color.BLACK);
-            g.drawRect(anchorPoint.x - radius - 2, anchorPoint.y - radius - 2, radius * 2 + 4, radius * 2 + 4);
-        }
     }
 
     @Override
@@ -31,23 +26,11 @@ public class Circle extends AbstractShape
     }
 
     @Override
-    public boolean intersects(IShape other) {
-        if (other instanceof Circle) {
-            Circle c = (Circle) other;
-            int dx = c.anchorPoint.x - anchorPoint.x;
-            int dy = c.anchorPoint.y - anchorPoint.y;
-            int distance = (int) Math.sqrt(dx * dx + dy * dy);
-            return distance <= radius + c.radius;
-        }
-        return false;
-    }
-
-    @Override
-    public BoundingBox getBoundingBox() {
+    protected BoundingBox computeBoundingBox() {
         return new BoundingBox(
             anchorPoint.x - radius,
-            anchorPoint.y - radius,
             anchorPoint.x + radius,
+            anchorPoint.y - radius,
             anchorPoint.y + radius
         );
     }
@@ -55,11 +38,13 @@ public class Circle extends AbstractShape
     @Override
     public void scale(double factor) {
         radius = (int) (radius * factor);
+        boundsChanged();
     }
 
     @Override
     public IShape clone() {
         Circle clone = new Circle(color, new Point(anchorPoint), radius);
+        copyStyleTo(clone);
         clone.setSelected(selected);
         return clone;
     }
@@ -71,8 +56,8 @@ public class Circle extends AbstractShape
 
     @Override
     public void setAnchorPoint(Point p) {
-        // TODO: move bounding box
         this.anchorPoint = p;
+        boundsChanged();
     }
 
     public Point getCenter() {
@@ -81,6 +66,7 @@ public class Circle extends AbstractShape
 
     public void setRadius(int radius) {
         this.radius = radius;
+        boundsChanged();
     }
 
     public int getRadius() {
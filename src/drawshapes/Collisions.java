@@ -0,0 +1,226 @@
+package drawshapes;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Overlap tests between shapes.
+ *
+ * intersects() is the exact test for one pair: squares and rectangles are
+ * their bounding boxes, circles are round, and a group overlaps whatever
+ * one of its children overlaps. Like contains(), it ignores rotation.
+ *
+ * findPairs() finds every overlapping pair in a list of shapes. The
+ * scene is cut into horizontal bands a couple of shapes tall, and each
+ * band is searched with a sweep and prune: its boxes are sorted by their
+ * left edge, and each box is only compared with the boxes that start
+ * before it ends. Pairs whose boxes also overlap vertically get the exact
+ * test. The bands don't depend on each other, so with a pool runs of
+ * bands are swept on separate threads.
+ */
+final class Collisions
+{
+    // runs of bands per worker thread, so a crowded run doesn't leave the others idle
+    private static final int RUNS_PER_THREAD = 4;
+    private static final int MIN_BAND_HEIGHT = 8;
+
+    private Collisions() {}
+
+    /**
+     * Do the two (different) shapes overlap? Touching counts.
+     */
+    static boolean intersects(IShape a, IShape b) {
+        if (a == b || a == null || b == null) {
+            return false;
+        }
+        if (!a.getBoundingBox().intersects(b.getBoundingBox())) {
+            return false;
+        }
+        if (a instanceof ShapeGroup) {
+            // only the children near b can touch it
+            return ((ShapeGroup) a).anyChildTouching(b.getBoundingBox(), child -> intersects(child, b));
+        }
+        if (b instanceof ShapeGroup) {
+            return intersects(b, a);
+        }
+        if (a instanceof Circle) {
+            if (b instanceof Circle) {
+                return circles((Circle) a, (Circle) b);
+            }
+            return circleAndBox((Circle) a, b.getBoundingBox());
+        }
+        if (b instanceof Circle) {
+            return circleAndBox((Circle) b, a.getBoundingBox());
+        }
+        // two boxes, and we already know those overlap
+        return true;
+    }
+
+    private static boolean circles(Circle a, Circle b) {
+        long dx = a.anchorPoint.x - b.anchorPoint.x;
+        long dy = a.anchorPoint.y - b.anchorPoint.y;
+        long reach = (long) a.getRadius() + b.getRadius();
+        return dx * dx + dy * dy <= reach * reach;
+    }
+
+    private static boolean circleAndBox(Circle circle, BoundingBox box) {
+        // distance from the center to the nearest point of the box
+        int x = circle.anchorPoint.x, y = circle.anchorPoint.y;
+        long dx = x - Math.max(box.getLeft(), Math.min(x, box.getRight()));
+        long dy = y - Math.max(box.getTop(), Math.min(y, box.getBottom()));
+        long radius = circle.getRadius();
+        return dx * dx + dy * dy <= radius * radius;
+    }
+
+    /**
+     * Return every pair of overlapping shapes in the list, each with the
+     * shape that comes first in the list first. With a pool the bands are
+     * swept on several threads; pass null to do it all on this thread.
+     * The pairs come out in no particular order.
+     */
+    static List<ShapePair> findPairs(List<IShape> list, ForkJoinPool pool) {
+        Bands bands = new Bands(list.toArray(new IShape[0]));
+        if (pool == null || bands.count < 2) {
+            List<ShapePair> pairs = new ArrayList<>();
+            bands.sweep(0, bands.count, pairs);
+            return pairs;
+        }
+        int runs = Math.min(bands.count, pool.getParallelism() * RUNS_PER_THREAD);
+        List<Callable<List<ShapePair>>> tasks = new ArrayList<>(runs);
+        for (int r = 0; r < runs; r++) {
+            int from = (int) ((long) bands.count * r / runs);
+            int to = (int) ((long) bands.count * (r + 1) / runs);
+            tasks.add(() -> {
+                List<ShapePair> pairs = new ArrayList<>();
+                bands.sweep(from, to, pairs);
+                return pairs;
+            });
+        }
+        List<ShapePair> pairs = new ArrayList<>();
+        for (Future<List<ShapePair>> future : pool.invokeAll(tasks)) {
+            pairs.addAll(result(future));
+        }
+        return pairs;
+    }
+
+    /**
+     * The shapes' bounding boxes as plain int arrays, and for each
+     * horizontal band the shapes whose boxes reach into it.
+     */
+    private static class Bands
+    {
+        private final IShape[] shapes;
+        private final int[] left, right, top, bottom;
+        private final long firstTop;
+        private final long bandHeight;
+        final int count;
+        // the shapes in band b are members[start[b]] up to members[start[b + 1]]
+        private final int[] start;
+        private final int[] members;
+
+        Bands(IShape[] shapes) {
+            int n = shapes.length;
+            this.shapes = shapes;
+            left = new int[n];
+            right = new int[n];
+            top = new int[n];
+            bottom = new int[n];
+            long minTop = Long.MAX_VALUE, maxBottom = Long.MIN_VALUE, heights = 0;
+            for (int i = 0; i < n; i++) {
+                BoundingBox box = shapes[i].getBoundingBox();
+                left[i] = box.getLeft();
+                right[i] = box.getRight();
+                top[i] = box.getTop();
+                bottom[i] = box.getBottom();
+                minTop = Math.min(minTop, top[i]);
+                maxBottom = Math.max(maxBottom, bottom[i]);
+                heights += box.getHeight();
+            }
+            firstTop = n == 0 ? 0 : minTop;
+            // a couple of shapes tall, so most shapes sit in one or two bands
+            bandHeight = Math.max(MIN_BAND_HEIGHT, n == 0 ? 1 : 2 * heights / n);
+            count = n == 0 ? 0 : (int) Math.min(n, (maxBottom - minTop) / bandHeight + 1);
+
+            // two passes: count the members of each band, then fill them in
+            start = new int[count + 1];
+            for (int i = 0; i < n; i++) {
+                for (int b = band(top[i]); b <= band(bottom[i]); b++) {
+                    start[b + 1]++;
+                }
+            }
+            for (int b = 0; b < count; b++) {
+                start[b + 1] += start[b];
+            }
+            members = new int[start[count]];
+            int[] next = Arrays.copyOf(start, count);
+            for (int i = 0; i < n; i++) {
+                for (int b = band(top[i]); b <= band(bottom[i]); b++) {
+                    members[next[b]++] = i;
+                }
+            }
+        }
+
+        private int band(int y) {
+            return (int) Math.min(count - 1, (y - firstTop) / bandHeight);
+        }
+
+        /**
+         * Find the pairs that belong to bands from (inclusive) to to
+         * (exclusive). A pair belongs to the band holding the top of
+         * the part where the two boxes overlap, so each pair is found once.
+         */
+        void sweep(int from, int to, List<ShapePair> pairs) {
+            long[] order = new long[0];
+            for (int b = from; b < to; b++) {
+                int size = start[b + 1] - start[b];
+                if (order.length < size) {
+                    order = new long[Math.max(size, order.length * 2)];
+                }
+                // sort the band by left edge, keeping the list position in the low bits
+                for (int k = 0; k < size; k++) {
+                    int i = members[start[b] + k];
+                    order[k] = ((long) left[i] << 32) | i;
+                }
+                Arrays.sort(order, 0, size);
+                for (int ka = 0; ka < size; ka++) {
+                    int i = (int) order[ka];
+                    for (int kb = ka + 1; kb < size; kb++) {
+                        int j = (int) order[kb];
+                        if (left[j] > right[i]) {
+                            break;
+                        }
+                        if (top[j] <= bottom[i] && bottom[j] >= top[i]
+                                && band(Math.max(top[i], top[j])) == b
+                                && intersects(shapes[i], shapes[j])) {
+                            pairs.add(i < j ? new ShapePair(shapes[i], shapes[j])
+                                    : new ShapePair(shapes[j], shapes[i]));
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private static List<ShapePair> result(Future<List<ShapePair>> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while finding overlaps", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IllegalStateException(cause);
+        }
+    }
+}
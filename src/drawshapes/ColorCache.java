@@ -0,0 +1,46 @@
+package drawshapes;
+
+import java.awt.Color;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Hands out translucent versions of colors, so drawing a shape with
+ * some opacity doesn't make a new Color every frame.
+ * 
+ * The cache is a fixed-size table indexed by the ARGB value. A slot that
+ * holds some other color just gets replaced, so the cache never grows.
+ * Several rendering threads (see SceneRasterizer) share it. Color's fields
+ * aren't final, so a Color put in a plain array could be seen by another
+ * thread before its value is; the slots are an AtomicReferenceArray, whose
+ * stores publish the Color safely. There is still no locking: at worst two
+ * threads make the same Color.
+ */
+final class ColorCache
+{
+    private static final int SIZE = 4096;
+    private static final AtomicReferenceArray<Color> colors = new AtomicReferenceArray<>(SIZE);
+
+    private ColorCache() {}
+
+    /**
+     * Return the given color with its alpha set from the opacity (0 to 1).
+     */
+    static Color translucent(Color color, double opacity) {
+        return translucent(color.getRGB(), opacity);
+    }
+
+    /**
+     * Return the color with the given RGB (any alpha is ignored) and its
+     * alpha set from the opacity (0 to 1).
+     */
+    static Color translucent(int rgb, double opacity) {
+        int argb = ((int) (opacity * 255) << 24) | (rgb & 0xffffff);
+        int slot = (argb ^ (argb >>> 12) ^ (argb >>> 24)) & (SIZE - 1);
+        Color cached = colors.get(slot);
+        if (cached == null || cached.getRGB() != argb) {
+            cached = new Color(argb, true);
+            colors.lazySet(slot, cached);
+        }
+        return cached;
+    }
+}
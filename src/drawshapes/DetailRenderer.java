@@ -0,0 +1,271 @@
+package drawshapes;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Draws one frame of shapes following a LevelOfDetail.
+ *
+ * The frame is drawn into an offscreen image covering the area being
+ * drawn (the raster), which goes onto the real Graphics in one drawImage
+ * at the end. Shapes big enough to be drawn exactly are drawn into the
+ * raster through Java2D, with the same transform and hints as the real
+ * Graphics. Smaller shapes never go through Java2D: they are blended
+ * straight into the raster's int array. A tiny shape adds its color to
+ * the pixel under its center, weighted by how much of the pixel it
+ * covers, so crowds of them come out with the right color and density.
+ * A small shape fills the pixels of its unrotated outline (circles as
+ * circles, everything else as its bounding box), without antialiasing or
+ * border. Groups are taken apart, so each child gets its own level.
+ *
+ * Everything lands in the raster in z-order, so shapes cover each other
+ * just as they would drawn one by one; blending over is associative, so
+ * putting the raster down in one go changes nothing.
+ *
+ * begin() works out the scale from the transform of g. Only transforms
+ * that scale and translate are handled; with anything else (say a
+ * rotated view) begin() returns false and the caller draws exactly.
+ *
+ * The raster is kept between frames. Like Scene, this is for the Swing
+ * thread only.
+ */
+final class DetailRenderer
+{
+    private LevelOfDetail policy = LevelOfDetail.DEFAULT;
+
+    // this frame
+    private Graphics2D g;
+    private Graphics2D exact;
+    private double scaleX, scaleY, offsetX, offsetY;
+    // the area being drawn, in scene coordinates
+    private int areaLeft, areaRight, areaTop, areaBottom;
+    // device pixel of raster pixel (0, 0), and the part of the raster in use
+    private int originX, originY, width, height;
+    private boolean drewAnything;
+
+    private BufferedImage raster;
+    private int[] pixels;
+    private int stride;
+
+    void setPolicy(LevelOfDetail policy) {
+        this.policy = policy;
+    }
+
+    LevelOfDetail getPolicy() {
+        return policy;
+    }
+
+    /**
+     * Start a frame drawing the given area (in scene coordinates) on g.
+     * Returns false if every shape should simply be drawn exactly.
+     */
+    boolean begin(Graphics2D g, java.awt.Rectangle area) {
+        if (policy.isExact()) {
+            return false;
+        }
+        AffineTransform t = g.getTransform();
+        if (t.getShearX() != 0 || t.getShearY() != 0 || t.getScaleX() <= 0 || t.getScaleY() <= 0) {
+            return false;
+        }
+        this.g = g;
+        scaleX = t.getScaleX();
+        scaleY = t.getScaleY();
+        offsetX = t.getTranslateX();
+        offsetY = t.getTranslateY();
+        areaLeft = area.x;
+        areaRight = area.x + area.width;
+        areaTop = area.y;
+        areaBottom = area.y + area.height;
+        originX = (int) Math.floor(areaLeft * scaleX + offsetX);
+        originY = (int) Math.floor(areaTop * scaleY + offsetY);
+        width = (int) Math.ceil(areaRight * scaleX + offsetX) - originX + 1;
+        height = (int) Math.ceil(areaBottom * scaleY + offsetY) - originY + 1;
+        if (raster == null || raster.getWidth() < width || raster.getHeight() < height) {
+            int w = Math.max(width, raster == null ? 0 : raster.getWidth());
+            int h = Math.max(height, raster == null ? 0 : raster.getHeight());
+            raster = new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB_PRE);
+            pixels = ((DataBufferInt) raster.getRaster().getDataBuffer()).getData();
+            stride = w;
+        }
+        drewAnything = false;
+        return true;
+    }
+
+    /**
+     * Return a Graphics on the raster that draws like g, made the first
+     * time a shape in this frame needs drawing exactly.
+     */
+    private Graphics2D exact() {
+        if (exact == null) {
+            exact = raster.createGraphics();
+            exact.setRenderingHints(g.getRenderingHints());
+            exact.setRenderingHint(RenderingHints.KEY_ANTIALIASING, g.getRenderingHint(RenderingHints.KEY_ANTIALIASING));
+            exact.setClip(0, 0, width, height);
+            exact.translate(-originX, -originY);
+            exact.transform(g.getTransform());
+        }
+        return exact;
+    }
+
+    /**
+     * Draw the shape as its size on screen calls for, or not at all if
+     * it is outside the area. Return false if it was outside.
+     */
+    boolean draw(IShape shape) {
+        BoundingBox box = shape.getBoundingBox();
+        int left = box.getLeft(), right = box.getRight(), top = box.getTop(), bottom = box.getBottom();
+        if (left - Scene.PAINT_MARGIN > areaRight || right + Scene.PAINT_MARGIN < areaLeft
+                || top - Scene.PAINT_MARGIN > areaBottom || bottom + Scene.PAINT_MARGIN < areaTop) {
+            // only a rotated shape (or a group holding one) paints further out than that
+            if (shape.getRotation() == 0 && !(shape instanceof ShapeGroup)
+                    || !Scene.extentOf(shape).intersects(areaLeft, areaRight, areaTop, areaBottom)) {
+                return false;
+            }
+        }
+        double w = (right - left) * scaleX;
+        double h = (bottom - top) * scaleY;
+        double size = Math.max(w, h);
+        if (shape instanceof ShapeGroup) {
+            // however small, a group has no color of its own to draw with
+            for (IShape child : ((ShapeGroup) shape).getShapes()) {
+                draw(child);
+            }
+        } else if (size >= policy.getSimplePixels()) {
+            shape.draw(exact());
+            drewAnything = true;
+        } else if (size >= policy.getDotPixels()) {
+            fill(shape, left, right, top, bottom);
+        } else {
+            dot(shape, (left + right) / 2.0, (top + bottom) / 2.0, w * h);
+        }
+        return true;
+    }
+
+    /**
+     * Draw each of the shapes, in order. Return how many were inside the area.
+     */
+    int drawAll(List<IShape> shapes) {
+        int drawn = 0;
+        for (IShape shape : shapes) {
+            if (draw(shape)) {
+                drawn++;
+            }
+        }
+        return drawn;
+    }
+
+    /**
+     * Finish the frame: put the raster onto g and clear it for next time.
+     */
+    void end() {
+        if (exact != null) {
+            exact.dispose();
+            exact = null;
+        }
+        if (drewAnything) {
+            AffineTransform transform = g.getTransform();
+            g.setTransform(new AffineTransform());
+            g.drawImage(raster, originX, originY, originX + width, originY + height, 0, 0, width, height, null);
+            g.setTransform(transform);
+            for (int y = 0; y < height; y++) {
+                Arrays.fill(pixels, y * stride, y * stride + width, 0);
+            }
+        }
+        g = null;
+    }
+
+    /**
+     * Blend the shape's color into the raster pixel under the given point,
+     * weighted by the area (in pixels) it covers there.
+     */
+    private void dot(IShape shape, double x, double y, double area) {
+        int px = (int) Math.floor(x * scaleX + offsetX) - originX;
+        int py = (int) Math.floor(y * scaleY + offsetY) - originY;
+        if (px < 0 || py < 0 || px >= width || py >= height) {
+            return;
+        }
+        // a selected shape is all selection outline at this size
+        boolean selected = shape.isSelected();
+        int rgb = selected ? 0xff000000 : shape.getColor().getRGB();
+        double coverage = selected ? 1 : Math.min(1, area);
+        int alpha = (int) (shape.getOpacity() * coverage * (rgb >>> 24) + 0.5);
+        if (alpha > 0) {
+            blend(py * stride + px, rgb, alpha);
+            drewAnything = true;
+        }
+    }
+
+    /**
+     * Fill the pixels of the shape's unrotated outline, like a plain
+     * non-antialiased fill would.
+     */
+    private void fill(IShape shape, int left, int right, int top, int bottom) {
+        if (shape.isSelected()) {
+            // the outline drawn around selected shapes, as a frame behind the fill
+            fillArea(false, left - 2, right + 2, top - 2, bottom + 2, 0xff000000, 255);
+        }
+        int rgb = shape.getColor().getRGB();
+        int alpha = (int) (shape.getOpacity() * (rgb >>> 24) + 0.5);
+        if (alpha > 0) {
+            fillArea(shape instanceof Circle, left, right, top, bottom, rgb, alpha);
+        }
+    }
+
+    private void fillArea(boolean round, int left, int right, int top, int bottom, int rgb, int alpha) {
+        int x0 = Math.max(0, (int) Math.round(left * scaleX + offsetX) - originX);
+        int x1 = Math.min(width - 1, Math.max(x0, (int) Math.round(right * scaleX + offsetX) - originX - 1));
+        int y0 = Math.max(0, (int) Math.round(top * scaleY + offsetY) - originY);
+        int y1 = Math.min(height - 1, Math.max(y0, (int) Math.round(bottom * scaleY + offsetY) - originY - 1));
+        if (x0 > x1 || y0 > y1) {
+            return;
+        }
+        double cx = (x0 + x1 + 1) / 2.0, cy = (y0 + y1 + 1) / 2.0;
+        double rx = (x1 - x0 + 1) / 2.0, ry = (y1 - y0 + 1) / 2.0;
+        for (int y = y0; y <= y1; y++) {
+            int from = x0, to = x1;
+            if (round) {
+                // the span of the ellipse through the middle of this row
+                double dy = (y + 0.5 - cy) / ry;
+                double half = rx * Math.sqrt(Math.max(0, 1 - dy * dy));
+                from = Math.max(x0, (int) Math.round(cx - half));
+                to = Math.min(x1, (int) Math.round(cx + half) - 1);
+            }
+            int row = y * stride;
+            for (int x = from; x <= to; x++) {
+                blend(row + x, rgb, alpha);
+            }
+        }
+        drewAnything = true;
+    }
+
+    /**
+     * Blend the color with the given alpha (0 to 255) over a raster pixel,
+     * which holds premultiplied ARGB.
+     */
+    private void blend(int i, int rgb, int alpha) {
+        if (alpha == 255) {
+            pixels[i] = rgb | 0xff000000;
+            return;
+        }
+        int dst = pixels[i];
+        int keep = 255 - alpha;
+        int a = alpha + mul(dst >>> 24, keep);
+        int r = mul((rgb >> 16) & 0xff, alpha) + mul((dst >> 16) & 0xff, keep);
+        int gr = mul((rgb >> 8) & 0xff, alpha) + mul((dst >> 8) & 0xff, keep);
+        int b = mul(rgb & 0xff, alpha) + mul(dst & 0xff, keep);
+        pixels[i] = (a << 24) | (r << 16) | (gr << 8) | b;
+    }
+
+    /**
+     * Return a * b / 255, rounded, for a and b from 0 to 255.
+     */
+    private static int mul(int a, int b) {
+        int t = a * b + 128;
+        return (t + (t >>> 8)) >>> 8;
+    }
+}
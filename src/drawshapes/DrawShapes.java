@@ -9,18 +9,30 @@ import java.awt.event.KeyEvent;
 import java.awt.event.KeyListener;
 import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
+import java.awt.event.MouseWheelEvent;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
 import java.io.File;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
 
+import javax.management.JMException;
+import javax.management.ObjectName;
+import javax.swing.JCheckBoxMenuItem;
 import javax.swing.JFileChooser;
 import javax.swing.JFrame;
 import javax.swing.JMenu;
 import javax.swing.JMenuBar;
 import javax.swing.JMenuItem;
 import javax.swing.JOptionPane;
+import javax.swing.KeyStroke;
+import javax.swing.SwingUtilities;
+import javax.swing.SwingWorker;
 
 @SuppressWarnings("serial")
 public class DrawShapes extends JFrame {
@@ -30,10 +42,22 @@ public class DrawShapes extends JFrame {
         RECTANGLE
     }
     
+    // how close (in pixels) a click must be to a corner to start resizing
+    private static final int RESIZE_HANDLE_RADIUS = 10;
+    // how far (in pixels) the mouse must move on empty canvas to start a marquee
+    private static final int MARQUEE_THRESHOLD = 4;
+    // how much one notch of the mouse wheel zooms
+    private static final double ZOOM_STEP = 1.25;
+    
     private DrawShapesPanel shapePanel;
     private Scene scene;
     private ShapeType shapeType = ShapeType.SQUARE;
     private Color color = Color.RED;
+    private SelectionRectangle.Mode marqueeMode = SelectionRectangle.Mode.CONTAINED;
+    // keeps the scene safe from crashes; null if it couldn't be opened
+    private SceneJournal journal;
+    // applies drags and key nudges once per frame, however fast they come in
+    private final FrameScheduler frames = new FrameScheduler();
 
     public DrawShapes(int width, int height) {
         setTitle("Draw Shapes!");
@@ -41,20 +65,86 @@ public class DrawShapes extends JFrame {
         
         shapePanel = new DrawShapesPanel(width, height, scene);
         this.getContentPane().add(shapePanel, BorderLayout.CENTER);
-        this.setResizable(false);
+        this.setResizable(true);
         this.pack();
         this.setLocation(100, 100);
         
         initializeMouseListener();
         initializeKeyListener();
         initializeMenu();
+        openJournal();
+        publishMetrics();
 
         addWindowListener(new WindowAdapter() {
             public void windowClosing(WindowEvent e) {
-                System.exit(0);
+                exit();
             }
         });
     }
+
+    /**
+     * Bring back the scene from the last session, crashed or not, and
+     * journal every change from now on. Without a journal the program
+     * still works, it just can't recover.
+     */
+    private void openJournal() {
+        Path directory = Paths.get(System.getProperty("user.home"), ".drawshapes", "journal");
+        try {
+            journal = SceneJournal.open(directory, scene,
+                    ex -> SwingUtilities.invokeLater(() -> journalFailed(ex)));
+        } catch (IOException ex) {
+            JOptionPane.showMessageDialog(null, "Can't open the journal, changes won't survive a crash: "
+                    + ex.getMessage());
+        }
+    }
+
+    /**
+     * Warn as soon as the journal stops working, rather than at exit.
+     */
+    private void journalFailed(IOException ex) {
+        JOptionPane.showMessageDialog(this, "Error writing the journal, changes from now on won't survive a crash: "
+                + ex.getMessage());
+        if (journal != null) {
+            try {
+                journal.close();
+            } catch (IOException alreadyReported) {
+                // that's the error we just showed
+            }
+            journal = null;
+        }
+    }
+
+    /**
+     * Make the panel's metrics readable over JMX (e.g. from JConsole).
+     */
+    private void publishMetrics() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(shapePanel.getMetrics(),
+                    new ObjectName("drawshapes:type=SceneMetrics"));
+        } catch (JMException ex) {
+            System.err.println("Can't publish metrics over JMX: " + ex.getMessage());
+        }
+    }
+
+    /**
+     * Write out what the journal still has queued, then quit. Every way
+     * out of the program goes through here.
+     */
+    private void exit() {
+        closeJournal();
+        System.exit(0);
+    }
+
+    private void closeJournal() {
+        if (journal == null) {
+            return;
+        }
+        try {
+            journal.close();
+        } catch (IOException ex) {
+            JOptionPane.showMessageDialog(null, "Error writing the journal: " + ex.getMessage());
+        }
+    }
     
     private void initializeMouseListener() {
         MouseAdapter a = new MouseAdapter() {
@@ -62,37 +152,48 @@ public class DrawShapes extends JFrame {
             private IShape currentShape;
             private boolean isResizing = false;
             private int resizeCorner = -1;
+            // pressed on empty canvas: a click adds a shape, a drag selects
+            private boolean pressedOnCanvas;
+            private MarqueeSelection marquee;
+            // where the view is being dragged from (in panel pixels), or null if it isn't
+            private Point panFrom;
+            // the latest drag position (in panel pixels) not yet applied
+            private Point dragPoint;
+            private final Runnable drag = this::applyDrag;
+            // wheel zoom not yet applied, and where the mouse was
+            private double zoomBy = 1;
+            private Point zoomAt;
+            private final Runnable zoom = this::applyZoom;
 
             public void mousePressed(MouseEvent e) {
-                startPoint = e.getPoint();
+                frames.flush();
+                if (e.isAltDown() || SwingUtilities.isMiddleMouseButton(e)) {
+                    // Alt-drag or middle-drag moves the view instead of the shapes
+                    panFrom = e.getPoint();
+                    return;
+                }
+                startPoint = shapePanel.toWorld(e.getPoint());
                 boolean shapeSelected = false;
+                int handleRadius = shapePanel.getViewport().toWorld(RESIZE_HANDLE_RADIUS);
                 
                 // First, deselect all shapes unless Ctrl is pressed
                 if (!e.isControlDown()) {
-                    for (IShape shape : scene.getShapes()) {
-                        shape.setSelected(false);
-                    }
+                    scene.clearSelection();
                 }
                 
-                // Check shapes in reverse order (top to bottom)
-                List<IShape> shapes = scene.getShapes();
-                for (int i = shapes.size() - 1; i >= 0; i--) {
-                    IShape shape = shapes.get(i);
-                    
+                // Check the shapes near the click, top to bottom
+                long hitTestStart = System.nanoTime();
+                for (IShape shape : scene.getShapesNear(startPoint, handleRadius)) {
                     // First check if we're clicking on a corner for resizing
-                    BoundingBox bbox = shape.getBoundingBox();
-                    Point[] corners = bbox.getCorners();
-                    for (int j = 0; j < corners.length; j++) {
-                        if (distance(startPoint, corners[j]) < 10) {
-                            isResizing = true;
-                            resizeCorner = j;
-                            currentShape = shape;
-                            shape.setSelected(true);
-                            shapeSelected = true;
-                            break;
-                        }
+                    int corner = findResizeCorner(shape.getBoundingBox(), startPoint, handleRadius);
+                    if (corner >= 0) {
+                        isResizing = true;
+                        resizeCorner = corner;
+                        currentShape = shape;
+                        shape.setSelected(true);
+                        shapeSelected = true;
+                        break;
                     }
-                    if (shapeSelected) break;
                     
                     // If not resizing, check if we're clicking on the shape itself
                     if (shape.contains(startPoint)) {
@@ -103,43 +204,69 @@ public class DrawShapes extends JFrame {
                     }
                 }
                 
-                // If we didn't click on any existing shape, create a new one
-                if (!shapeSelected) {
-                    if (shapeType == ShapeType.SQUARE) {
-                        currentShape = new Square(color, e.getX(), e.getY(), 100);
-                    } else if (shapeType == ShapeType.CIRCLE) {
-                        currentShape = new Circle(color, e.getPoint(), 50);
-                    } else if (shapeType == ShapeType.RECTANGLE) {
-                        currentShape = new Rectangle(e.getPoint(), 150, 100, color);
-                    }
-                    currentShape.setSelected(true);
-                    scene.addShape(currentShape);
+                shapePanel.getMetrics().hitTest(System.nanoTime() - hitTestStart);
+                
+                // If we didn't click on any existing shape, wait to see if this is a click or a drag
+                pressedOnCanvas = !shapeSelected;
+                
+                // Keep the other shapes in cached layers while this one is edited
+                if (currentShape != null) {
+                    shapePanel.setActiveShape(currentShape);
                 }
                 
                 // Request focus after any mouse interaction
                 shapePanel.requestFocusInWindow();
-                repaint();
+                shapePanel.repaintDirty();
             }
 
             public void mouseDragged(MouseEvent e) {
+                // only the latest position matters, apply it with the next frame
+                dragPoint = e.getPoint();
+                frames.schedule(drag);
+            }
+
+            /**
+             * Move, resize, pan or stretch the marquee to the latest drag position.
+             */
+            private void applyDrag() {
+                if (panFrom != null) {
+                    shapePanel.pan(dragPoint.x - panFrom.x, dragPoint.y - panFrom.y);
+                    panFrom = dragPoint;
+                    return;
+                }
+                Point p = shapePanel.toWorld(dragPoint);
+                if (pressedOnCanvas) {
+                    double zoom = shapePanel.getViewport().getZoom();
+                    if (marquee == null && startPoint.distance(p) * zoom >= MARQUEE_THRESHOLD) {
+                        marquee = new MarqueeSelection(scene, startPoint, marqueeMode);
+                        shapePanel.setMarquee(marquee.getRectangle());
+                    }
+                    if (marquee != null) {
+                        // the marquee knows exactly what changed, which is much less than the dirty region
+                        scene.takeDirtyRegion();
+                        shapePanel.paintNow(marquee.dragTo(p));
+                    }
+                    return;
+                }
                 if (currentShape != null) {
                     if (isResizing) {
                         // Handle resizing
                         BoundingBox bbox = currentShape.getBoundingBox();
-                        Point[] corners = bbox.getCorners();
-                        Point newCorner = e.getPoint();
+                        int oppositeX = bbox.getCornerX((resizeCorner + 2) % 4);
+                        int oppositeY = bbox.getCornerY((resizeCorner + 2) % 4);
+                        Point newCorner = p;
                         
                         // Update shape size based on the dragged corner
                         if (currentShape instanceof Rectangle) {
                             Rectangle rect = (Rectangle) currentShape;
-                            int width = Math.abs(newCorner.x - corners[(resizeCorner + 2) % 4].x);
-                            int height = Math.abs(newCorner.y - corners[(resizeCorner + 2) % 4].y);
+                            int width = Math.abs(newCorner.x - oppositeX);
+                            int height = Math.abs(newCorner.y - oppositeY);
                             rect.setSize(width, height);
                         } else if (currentShape instanceof Square) {
                             Square square = (Square) currentShape;
                             int size = Math.max(
-                                Math.abs(newCorner.x - corners[(resizeCorner + 2) % 4].x),
-                                Math.abs(newCorner.y - corners[(resizeCorner + 2) % 4].y)
+                                Math.abs(newCorner.x - oppositeX),
+                                Math.abs(newCorner.y - oppositeY)
                             );
                             square.setSize(size);
                         } else if (currentShape instanceof Circle) {
@@ -152,30 +279,85 @@ public class DrawShapes extends JFrame {
                         }
                     } else if (currentShape.isSelected()) {
                         // Move the selected shape
-                        int dx = e.getX() - startPoint.x;
-                        int dy = e.getY() - startPoint.y;
+                        int dx = p.x - startPoint.x;
+                        int dy = p.y - startPoint.y;
                         currentShape.move(dx, dy);
-                        startPoint = e.getPoint();
+                        startPoint = p;
                     }
-                    repaint();
+                    shapePanel.repaintDirty();
                 }
             }
 
             public void mouseReleased(MouseEvent e) {
+                // finish the drag where the mouse ended up
+                frames.flush();
+                if (panFrom != null) {
+                    panFrom = null;
+                    return;
+                }
+                if (pressedOnCanvas) {
+                    pressedOnCanvas = false;
+                    if (marquee != null) {
+                        marquee = null;
+                        shapePanel.setMarquee(null);
+                    } else {
+                        addShapeAt(startPoint);
+                    }
+                    shapePanel.repaintDirty();
+                    return;
+                }
                 if (currentShape != null) {
                     currentShape = null;
                     isResizing = false;
                     resizeCorner = -1;
-                    repaint();
+                    shapePanel.setActiveShape(null);
+                    shapePanel.repaintDirty();
+                }
+            }
+
+            private void addShapeAt(Point p) {
+                IShape shape;
+                if (shapeType == ShapeType.CIRCLE) {
+                    shape = new Circle(color, new Point(p), 50);
+                } else if (shapeType == ShapeType.RECTANGLE) {
+                    shape = new Rectangle(new Point(p), 150, 100, color);
+                } else {
+                    shape = new Square(color, p.x, p.y, 100);
+                }
+                shape.setSelected(true);
+                scene.addShape(shape);
+            }
+
+            /**
+             * Return the index of the corner (in BoundingBox.getCorners() order)
+             * within the given radius of the point, or -1 if there isn't one.
+             */
+            private int findResizeCorner(BoundingBox bbox, Point p, int radius) {
+                for (int j = 0; j < 4; j++) {
+                    int dx = p.x - bbox.getCornerX(j);
+                    int dy = p.y - bbox.getCornerY(j);
+                    if (dx * dx + dy * dy < radius * radius) {
+                        return j;
+                    }
                 }
+                return -1;
+            }
+
+            public void mouseWheelMoved(MouseWheelEvent e) {
+                // wheel up zooms in, towards the mouse
+                zoomBy *= Math.pow(ZOOM_STEP, -e.getPreciseWheelRotation());
+                zoomAt = e.getPoint();
+                frames.schedule(zoom);
             }
 
-            private double distance(Point p1, Point p2) {
-                return Math.sqrt(Math.pow(p2.x - p1.x, 2) + Math.pow(p2.y - p1.y, 2));
+            private void applyZoom() {
+                shapePanel.zoomAt(zoomAt, zoomBy);
+                zoomBy = 1;
             }
         };
         shapePanel.addMouseListener(a);
         shapePanel.addMouseMotionListener(a);
+        shapePanel.addMouseWheelListener(a);
     }
     
     private void initializeMenu() {
@@ -193,7 +375,15 @@ public class DrawShapes extends JFrame {
                 JFileChooser jfc = new JFileChooser(".");
                 if (jfc.showSaveDialog(null) == JFileChooser.APPROVE_OPTION) {
                     try {
-                        scene.saveToFile(jfc.getSelectedFile().getAbsolutePath());
+                        String filename = jfc.getSelectedFile().getAbsolutePath();
+                        long start = System.nanoTime();
+                        if (BinarySceneFormat.isBinarySceneFile(filename)) {
+                            scene.saveToBinaryFile(filename);
+                        } else {
+                            scene.saveToFile(filename);
+                        }
+                        shapePanel.getMetrics().saved(Files.size(Paths.get(filename)), scene.snapshot().size(),
+                                System.nanoTime() - start);
                     } catch (IOException ex) {
                         JOptionPane.showMessageDialog(null, "Error saving file: " + ex.getMessage());
                     }
@@ -208,12 +398,7 @@ public class DrawShapes extends JFrame {
             public void actionPerformed(ActionEvent e) {
                 JFileChooser jfc = new JFileChooser(".");
                 if (jfc.showOpenDialog(null) == JFileChooser.APPROVE_OPTION) {
-                    try {
-                        scene.loadFromFile(jfc.getSelectedFile().getAbsolutePath());
-                        repaint();
-                    } catch (IOException ex) {
-                        JOptionPane.showMessageDialog(null, "Error loading file: " + ex.getMessage());
-                    }
+                    loadInBackground(jfc.getSelectedFile().toPath());
                 }
             }
         });
@@ -224,7 +409,17 @@ public class DrawShapes extends JFrame {
             @Override
             public void actionPerformed(ActionEvent e) {
                 scene.undo();
-                repaint();
+                shapePanel.repaintDirty();
+            }
+        });
+
+        JMenuItem redoItem = new JMenuItem("Redo");
+        fileMenu.add(redoItem);
+        redoItem.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                scene.redo();
+                shapePanel.repaintDirty();
             }
         });
 
@@ -232,7 +427,7 @@ public class DrawShapes extends JFrame {
         fileMenu.add(exitItem);
         exitItem.addActionListener(new ActionListener() {
             public void actionPerformed(ActionEvent e) {
-                System.exit(0);
+                exit();
             }
         });
 
@@ -264,7 +459,7 @@ public class DrawShapes extends JFrame {
                     for (IShape shape : scene.getSelectedShapes()) {
                         shape.setColor(c);
                     }
-                    repaint();
+                    shapePanel.repaintDirty();
                 }
             });
         }
@@ -300,6 +495,82 @@ public class DrawShapes extends JFrame {
             }
         });
 
+        // Select menu
+        JMenu selectMenu = new JMenu("Select");
+        menuBar.add(selectMenu);
+
+        JMenuItem selectAllItem = new JMenuItem("Select All");
+        selectMenu.add(selectAllItem);
+        selectAllItem.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                scene.selectAll();
+                shapePanel.repaintDirty();
+            }
+        });
+
+        JMenuItem containedItem = new JMenuItem("Marquee Selects Enclosed Shapes");
+        selectMenu.add(containedItem);
+        containedItem.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                marqueeMode = SelectionRectangle.Mode.CONTAINED;
+            }
+        });
+
+        JMenuItem touchingItem = new JMenuItem("Marquee Selects Touching Shapes");
+        selectMenu.add(touchingItem);
+        touchingItem.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                marqueeMode = SelectionRectangle.Mode.TOUCHING;
+            }
+        });
+
+        // View menu
+        JMenu viewMenu = new JMenu("View");
+        menuBar.add(viewMenu);
+
+        JMenuItem zoomInItem = new JMenuItem("Zoom In");
+        zoomInItem.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_EQUALS, ActionEvent.CTRL_MASK));
+        viewMenu.add(zoomInItem);
+        zoomInItem.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                shapePanel.zoomAt(panelCenter(), ZOOM_STEP);
+            }
+        });
+
+        JMenuItem zoomOutItem = new JMenuItem("Zoom Out");
+        zoomOutItem.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_MINUS, ActionEvent.CTRL_MASK));
+        viewMenu.add(zoomOutItem);
+        zoomOutItem.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                shapePanel.zoomAt(panelCenter(), 1 / ZOOM_STEP);
+            }
+        });
+
+        JCheckBoxMenuItem metricsItem = new JCheckBoxMenuItem("Show Metrics");
+        metricsItem.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_F3, 0));
+        viewMenu.add(metricsItem);
+        metricsItem.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                shapePanel.setOverlayVisible(metricsItem.isSelected());
+            }
+        });
+
+        JMenuItem actualSizeItem = new JMenuItem("Actual Size");
+        actualSizeItem.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_0, ActionEvent.CTRL_MASK));
+        viewMenu.add(actualSizeItem);
+        actualSizeItem.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                shapePanel.resetView();
+            }
+        });
+
         // New: Layer menu
         JMenu layerMenu = new JMenu("Layer");
         menuBar.add(layerMenu);
@@ -310,7 +581,7 @@ public class DrawShapes extends JFrame {
             @Override
             public void actionPerformed(ActionEvent e) {
                 scene.bringToFront(scene.getSelectedShapes());
-                repaint();
+                shapePanel.repaintDirty();
             }
         });
 
@@ -320,7 +591,7 @@ public class DrawShapes extends JFrame {
             @Override
             public void actionPerformed(ActionEvent e) {
                 scene.sendToBack(scene.getSelectedShapes());
-                repaint();
+                shapePanel.repaintDirty();
             }
         });
 
@@ -336,7 +607,7 @@ public class DrawShapes extends JFrame {
                 for (IShape shape : scene.getSelectedShapes()) {
                     shape.setBorderStyle(BorderStyle.SOLID);
                 }
-                repaint();
+                shapePanel.repaintDirty();
             }
         });
 
@@ -348,7 +619,7 @@ public class DrawShapes extends JFrame {
                 for (IShape shape : scene.getSelectedShapes()) {
                     shape.setBorderStyle(BorderStyle.DASHED);
                 }
-                repaint();
+                shapePanel.repaintDirty();
             }
         });
 
@@ -360,62 +631,105 @@ public class DrawShapes extends JFrame {
                 for (IShape shape : scene.getSelectedShapes()) {
                     shape.setBorderStyle(BorderStyle.DOTTED);
                 }
-                repaint();
+                shapePanel.repaintDirty();
             }
         });
 
         this.setJMenuBar(menuBar);
     }
     
+    private Point panelCenter() {
+        return new Point(shapePanel.getWidth() / 2, shapePanel.getHeight() / 2);
+    }
+
+    /**
+     * Read and parse a scene file on a background thread, so the
+     * window stays responsive, then swap it in on the Swing thread.
+     */
+    private void loadInBackground(Path path) {
+        new SwingWorker<List<IShape>, Void>() {
+            private final long start = System.nanoTime();
+            // how long each phase took, for a text file
+            private ParallelSceneLoader.Result phases;
+
+            @Override
+            protected List<IShape> doInBackground() throws IOException {
+                SceneEvents.Load event = new SceneEvents.Load();
+                event.begin();
+                List<IShape> shapes;
+                if (BinarySceneFormat.isBinarySceneFile(path.toString())) {
+                    shapes = BinarySceneFormat.read(path);
+                } else {
+                    phases = new ParallelSceneLoader().load(path);
+                    shapes = phases.shapes;
+                }
+                event.record(path, shapes.size());
+                return shapes;
+            }
+
+            @Override
+            protected void done() {
+                try {
+                    List<IShape> shapes = get();
+                    scene.replaceShapes(shapes);
+                    shapePanel.repaint();
+                    shapePanel.getMetrics().loaded(Files.size(path), shapes.size(), System.nanoTime() - start);
+                    if (phases != null) {
+                        shapePanel.getMetrics().loadPhases(phases.splitNanos, phases.parseNanos, phases.mergeNanos);
+                    }
+                } catch (IOException ex) {
+                    // the scene loaded fine, only the file size for the metrics is missing
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                } catch (ExecutionException ex) {
+                    JOptionPane.showMessageDialog(null, "Error loading file: " + ex.getCause().getMessage());
+                }
+            }
+        }.execute();
+    }
+    
     private void initializeKeyListener() {
         KeyListener keyListener = new KeyListener() {
+            // arrow key moves not yet applied, in scene units
+            private int nudgeX;
+            private int nudgeY;
+            private final Runnable nudge = this::applyNudge;
+
             @Override
             public void keyPressed(KeyEvent e) {
-                List<IShape> selected = scene.getSelectedShapes();
-                if (!selected.isEmpty()) {
-                    int moveAmount = e.isShiftDown() ? 20 : 5; // Larger movement with Shift
+                int moveAmount = e.isShiftDown() ? 20 : 5; // Larger movement with Shift
+                switch (e.getKeyCode()) {
+                    case KeyEvent.VK_LEFT:
+                        nudge(-moveAmount, 0);
+                        return;
+                    case KeyEvent.VK_RIGHT:
+                        nudge(moveAmount, 0);
+                        return;
+                    case KeyEvent.VK_UP:
+                        nudge(0, -moveAmount);
+                        return;
+                    case KeyEvent.VK_DOWN:
+                        nudge(0, moveAmount);
+                        return;
+                }
+                // anything else sees the nudges so far
+                frames.flush();
+                if (e.getKeyCode() == KeyEvent.VK_A && e.isControlDown()) {
+                    scene.selectAll();
+                    shapePanel.repaintDirty();
+                    return;
+                }
+                if (scene.hasSelection()) {
                     switch (e.getKeyCode()) {
-                        case KeyEvent.VK_LEFT:
-                            for (IShape shape : selected) {
-                                if (shape instanceof IMoveableShape) {
-                                    ((IMoveableShape) shape).move(-moveAmount, 0);
-                                }
-                            }
-                            break;
-                        case KeyEvent.VK_RIGHT:
-                            for (IShape shape : selected) {
-                                if (shape instanceof IMoveableShape) {
-                                    ((IMoveableShape) shape).move(moveAmount, 0);
-                                }
-                            }
-                            break;
-                        case KeyEvent.VK_UP:
-                            for (IShape shape : selected) {
-                                if (shape instanceof IMoveableShape) {
-                                    ((IMoveableShape) shape).move(0, -moveAmount);
-                                }
-                            }
-                            break;
-                        case KeyEvent.VK_DOWN:
-                            for (IShape shape : selected) {
-                                if (shape instanceof IMoveableShape) {
-                                    ((IMoveableShape) shape).move(0, moveAmount);
-                                }
-                            }
-                            break;
                         case KeyEvent.VK_DELETE:
                             scene.removeSelectedShapes();
                             break;
                         case KeyEvent.VK_PLUS:
                         case KeyEvent.VK_EQUALS:
-                            for (IShape shape : selected) {
-                                shape.scale(1.1);
-                            }
+                            scene.scaleSelection(1.1);
                             break;
                         case KeyEvent.VK_MINUS:
-                            for (IShape shape : selected) {
-                                shape.scale(0.9);
-                            }
+                            scene.scaleSelection(0.9);
                             break;
                         case KeyEvent.VK_G:
                             if (e.isControlDown()) {
@@ -428,20 +742,34 @@ public class DrawShapes extends JFrame {
                             }
                             break;
                         case KeyEvent.VK_OPEN_BRACKET:
-                            for (IShape shape : selected) {
-                                shape.setOpacity(Math.max(0, shape.getOpacity() - 0.1));
-                            }
+                            scene.changeSelectionOpacity(-0.1);
                             break;
                         case KeyEvent.VK_CLOSE_BRACKET:
-                            for (IShape shape : selected) {
-                                shape.setOpacity(Math.min(1, shape.getOpacity() + 0.1));
-                            }
+                            scene.changeSelectionOpacity(0.1);
                             break;
                     }
-                    repaint();
+                    shapePanel.repaintDirty();
                 }
             }
 
+            /**
+             * Add to the move of the selected shapes, applied with the next
+             * frame, so auto-repeat doesn't move and repaint once per key event.
+             */
+            private void nudge(int dx, int dy) {
+                nudgeX += dx;
+                nudgeY += dy;
+                frames.schedule(nudge);
+            }
+
+            private void applyNudge() {
+                int dx = nudgeX, dy = nudgeY;
+                nudgeX = 0;
+                nudgeY = 0;
+                scene.moveSelection(dx, dy);
+                shapePanel.repaintDirty();
+            }
+
             @Override
             public void keyReleased(KeyEvent e) {}
 
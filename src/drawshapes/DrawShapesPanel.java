@@ -1,14 +1,51 @@
 package drawshapes;
 
+import java.awt.AlphaComposite;
+import java.awt.Color;
 import java.awt.Dimension;
+import java.awt.FontMetrics;
 import java.awt.Graphics;
 import java.awt.Graphics2D;
+import java.awt.GraphicsConfiguration;
+import java.awt.Point;
 import java.awt.RenderingHints;
+import java.awt.Transparency;
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+import java.util.List;
+import java.util.function.Consumer;
 import javax.swing.JPanel;
 
 /**
- * The Panel owned by the DrawShapes frame.  This code
- * doesn't need to be changed.
+ * The Panel owned by the DrawShapes frame.
+ * 
+ * The panel shows the scene through a Viewport, which the user can zoom
+ * and pan. Shapes, the marquee and the dirty region are all in scene
+ * coordinates; the panel turns them into pixels when it paints and
+ * repaints, and toWorld() turns mouse positions back into the scene.
+ * Only the shapes inside the visible part of the scene are drawn.
+ * 
+ * While the user drags or resizes a shape, the panel keeps two cached
+ * pictures: the shapes behind the active shape and the shapes in front
+ * of it. Each frame then only draws the active shape between those two
+ * images. The pictures are redrawn only when some other shape changes
+ * (see Scene.getBackgroundVersion()), the view moves or the panel changes
+ * size.
+ * 
+ * To keep panning smooth on big scenes, the panel keeps pictures of the
+ * scene in a TileCache and only draws the tiles that come into view.
+ * Changes throw away the tiles under the dirty region. A repaint of just
+ * part of the panel (after a small edit, say) draws the shapes directly
+ * rather than redrawing whole tiles; the next full repaint fills them in.
+ * 
+ * While the user drags out a selection marquee, the panel draws it on
+ * top of the shapes, and only repaints the areas MarqueeSelection says
+ * have changed.
+ * 
+ * Every paint is timed and counted in the panel's SceneMetrics (and
+ * recorded as a flight recorder event, see SceneEvents). With the
+ * overlay turned on (setOverlayVisible()), the numbers are drawn in the
+ * top left corner after each frame.
  * 
  * @author jspacco
  *
@@ -19,12 +56,29 @@ public class DrawShapesPanel extends JPanel
     private int width;
     private int height;
     private Scene scene;
+    // bytes the last call to scene.draw() allocated, or -1 if we can't tell
+    private long lastFrameAllocatedBytes = -1;
+    // cached layers behind and in front of the active shape, or null
+    private BufferedImage behind;
+    private BufferedImage inFront;
+    private IShape layersFor;
+    private long layersVersion;
+    private long layersViewVersion;
+    // the selection marquee being dragged out, or null
+    private SelectionRectangle marquee;
+    private final Viewport viewport = new Viewport();
+    private final TileCache tiles;
+    private final SceneMetrics metrics = new SceneMetrics();
+    // whether to draw the metrics over the canvas, and where they were last drawn
+    private boolean overlayVisible;
+    private java.awt.Rectangle overlayBounds;
     
     public DrawShapesPanel(int width, int height, Scene scene)
     {
         this.width = width;
         this.height = height;
         this.scene = scene;
+        this.tiles = new TileCache(scene);
         setFocusable(true);
         requestFocusInWindow();
     }
@@ -34,10 +88,271 @@ public class DrawShapesPanel extends JPanel
      */
     @Override
     public void paint(Graphics g) {
+        SceneEvents.Paint event = new SceneEvents.Paint();
+        event.begin();
+        long start = System.nanoTime();
+        long drawn = scene.getShapesDrawn();
+        long skipped = scene.getShapesSkipped();
         super.paint(g);
         Graphics2D g2d = (Graphics2D) g;
         g2d.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
-        scene.draw(g2d);
+        long before = AllocationCounter.allocatedBytes();
+        IShape active = scene.getActiveShape();
+        AffineTransform screen = g2d.getTransform();
+        if (active != null && scene.contains(active)) {
+            updateLayers(active);
+            g2d.drawImage(behind, 0, 0, null);
+            g2d.transform(viewport.getTransform());
+            active.draw(g2d);
+            g2d.setTransform(screen);
+            g2d.drawImage(inFront, 0, 0, null);
+            g2d.transform(viewport.getTransform());
+        } else {
+            dropLayers();
+            drawScene(g2d);
+            g2d.transform(viewport.getTransform());
+        }
+        if (marquee != null) {
+            marquee.draw(g2d);
+        }
+        g2d.setTransform(screen);
+        if (before >= 0) {
+            lastFrameAllocatedBytes = AllocationCounter.allocatedBytes() - before;
+        }
+        drawn = scene.getShapesDrawn() - drawn;
+        skipped = scene.getShapesSkipped() - skipped;
+        metrics.frame(System.nanoTime() - start, drawn, skipped, lastFrameAllocatedBytes, scene.getUndoBytes());
+        event.record(drawn, skipped, lastFrameAllocatedBytes);
+        if (overlayVisible) {
+            drawOverlay(g2d);
+        }
+    }
+
+    /**
+     * Draw the metrics in the top left corner. If this paint didn't cover
+     * all of the overlay, repaint the overlay too, so it never shows a
+     * mix of old and new numbers.
+     */
+    private void drawOverlay(Graphics2D g2d) {
+        String[] lines = metrics.summary();
+        FontMetrics fm = g2d.getFontMetrics();
+        int width = 0;
+        for (String line : lines) {
+            width = Math.max(width, fm.stringWidth(line));
+        }
+        java.awt.Rectangle bounds = new java.awt.Rectangle(8, 8, width + 12, lines.length * fm.getHeight() + 8);
+        Color color = g2d.getColor();
+        g2d.setColor(new Color(0, 0, 0, 160));
+        g2d.fill(bounds);
+        g2d.setColor(Color.WHITE);
+        int y = bounds.y + 4 + fm.getAscent();
+        for (String line : lines) {
+            g2d.drawString(line, bounds.x + 6, y);
+            y += fm.getHeight();
+        }
+        g2d.setColor(color);
+        java.awt.Rectangle clip = g2d.getClipBounds();
+        if (clip != null && !clip.contains(bounds)) {
+            repaint(overlayBounds == null ? bounds : bounds.union(overlayBounds));
+        }
+        overlayBounds = bounds;
+    }
+
+    /**
+     * Show or hide the metrics over the canvas.
+     */
+    public void setOverlayVisible(boolean visible) {
+        overlayVisible = visible;
+        repaint();
+    }
+
+    public boolean isOverlayVisible() {
+        return overlayVisible;
+    }
+
+    public SceneMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Draw the scene from the tile cache, or directly if the cache can't
+     * be used for this paint.
+     */
+    private void drawScene(Graphics2D g2d) {
+        // changes nobody repainted for yet (e.g. a loaded scene)
+        java.awt.Rectangle dirty = scene.takeDirtyRegion();
+        if (dirty != null) {
+            tiles.invalidate(dirty, viewport);
+            repaintWorld(dirty);
+        }
+        int w = Math.max(1, getWidth());
+        int h = Math.max(1, getHeight());
+        java.awt.Rectangle clip = g2d.getClipBounds();
+        boolean wholePanel = clip == null || clip.contains(0, 0, w, h);
+        if (!tiles.paint(g2d, viewport, w, h, wholePanel)) {
+            AffineTransform screen = g2d.getTransform();
+            g2d.transform(viewport.getTransform());
+            scene.draw(g2d, visibleWorld());
+            g2d.setTransform(screen);
+        }
+    }
+
+    /**
+     * Redraw the cached layers if anything but the active shape
+     * has changed since they were drawn.
+     */
+    private void updateLayers(IShape active) {
+        int w = Math.max(1, getWidth());
+        int h = Math.max(1, getHeight());
+        if (behind != null && layersFor == active && layersVersion == scene.getBackgroundVersion()
+                && layersViewVersion == viewport.getVersion() && behind.getWidth() == w && behind.getHeight() == h) {
+            return;
+        }
+        if (behind == null || behind.getWidth() != w || behind.getHeight() != h) {
+            behind = createLayer(w, h);
+            inFront = createLayer(w, h);
+        }
+        java.awt.Rectangle visible = visibleWorld();
+        drawLayer(behind, g -> scene.drawBehind(g, visible, active));
+        drawLayer(inFront, g -> scene.drawInFront(g, visible, active));
+        layersFor = active;
+        layersVersion = scene.getBackgroundVersion();
+        layersViewVersion = viewport.getVersion();
+    }
+
+    private BufferedImage createLayer(int w, int h) {
+        GraphicsConfiguration gc = getGraphicsConfiguration();
+        if (gc != null) {
+            return gc.createCompatibleImage(w, h, Transparency.TRANSLUCENT);
+        }
+        return new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
+    }
+
+    private void drawLayer(BufferedImage layer, Consumer<Graphics2D> painter) {
+        Graphics2D g = layer.createGraphics();
+        try {
+            // start from fully transparent
+            g.setComposite(AlphaComposite.Clear);
+            g.fillRect(0, 0, layer.getWidth(), layer.getHeight());
+            g.setComposite(AlphaComposite.SrcOver);
+            g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+            g.setClip(0, 0, layer.getWidth(), layer.getHeight());
+            g.transform(viewport.getTransform());
+            painter.accept(g);
+        } finally {
+            g.dispose();
+        }
+    }
+
+    private void dropLayers() {
+        behind = null;
+        inFront = null;
+        layersFor = null;
+    }
+
+    /**
+     * Start (or stop, with null) editing a shape: until this is called
+     * again, the other shapes are drawn from the cached layers.
+     */
+    public void setActiveShape(IShape shape) {
+        scene.setActiveShape(shape);
+        if (shape == null) {
+            dropLayers();
+        }
+    }
+
+    /**
+     * Start (or stop, with null) drawing a selection marquee over the shapes.
+     */
+    public void setMarquee(SelectionRectangle marquee) {
+        if (this.marquee != null) {
+            // the old marquee's fill covers its whole area, plus the outline
+            BoundingBox box = this.marquee.getBoundingBox();
+            repaintWorld(new java.awt.Rectangle(box.getLeft() - 2, box.getTop() - 2, box.getWidth() + 5, box.getHeight() + 5));
+        }
+        this.marquee = marquee;
+    }
+
+    /**
+     * Paint the given areas of the scene right away, one by one. Each is
+     * small, so this is much cheaper than repainting the area around all
+     * of them, which is what repaint() would do.
+     */
+    public void paintNow(List<java.awt.Rectangle> areas) {
+        for (java.awt.Rectangle area : areas) {
+            tiles.invalidate(area, viewport);
+        }
+        for (java.awt.Rectangle area : areas) {
+            paintImmediately(viewport.toScreen(area));
+        }
+    }
+
+    public Viewport getViewport() {
+        return viewport;
+    }
+
+    /**
+     * Return the point of the scene under the given point of the panel.
+     */
+    public Point toWorld(Point point) {
+        return viewport.toWorld(point);
+    }
+
+    /**
+     * Return the part of the scene the panel currently shows.
+     */
+    public java.awt.Rectangle visibleWorld() {
+        return viewport.visibleWorld(Math.max(1, getWidth()), Math.max(1, getHeight()));
+    }
+
+    /**
+     * Move the view by the given number of pixels and repaint.
+     */
+    public void pan(int dx, int dy) {
+        viewport.pan(dx, dy);
+        repaint();
+    }
+
+    /**
+     * Zoom by the given factor towards the given point of the panel and repaint.
+     */
+    public void zoomAt(Point point, double factor) {
+        viewport.zoomAt(point, factor);
+        repaint();
+    }
+
+    /**
+     * Go back to showing the scene at its actual size and repaint.
+     */
+    public void resetView() {
+        viewport.reset();
+        repaint();
+    }
+
+    /**
+     * Repaint the pixels that show the given area of the scene.
+     */
+    private void repaintWorld(java.awt.Rectangle area) {
+        repaint(viewport.toScreen(area));
+    }
+
+    /**
+     * Return how many bytes drawing the scene allocated in the last
+     * frame, or -1 if this JVM can't count allocations.
+     */
+    public long getLastFrameAllocatedBytes() {
+        return lastFrameAllocatedBytes;
+    }
+
+    /**
+     * Repaint only the part of the panel the scene says has changed.
+     */
+    public void repaintDirty() {
+        java.awt.Rectangle dirty = scene.takeDirtyRegion();
+        if (dirty != null) {
+            tiles.invalidate(dirty, viewport);
+            repaintWorld(dirty);
+        }
     }
     
     /* (non-Javadoc)
@@ -0,0 +1,253 @@
+package drawshapes;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * A stack of edits (a Scene's undo or redo stack) that only keeps the
+ * edits near the top on the heap.
+ *
+ * The Scene asks the history to spillOldest() while its histories take
+ * more heap than it allows. That takes the bottom edit still on the heap,
+ * which is the one used longest ago, has the Codec write it compactly,
+ * compresses it with a Deflater and appends it to a temp file. Edits
+ * are only ever spilled from the bottom and brought back from the top of
+ * the spilled ones, so the file works as a stack too: bringing an edit
+ * back cuts the file short again, and no space is ever wasted.
+ *
+ * pop() brings an edit back from the file when no edit above it is left
+ * on the heap. By then the scene is in the state the edit was made for,
+ * so the Codec can find the shapes the edit works on in the scene, and
+ * only has to store the ones that are out of it.
+ *
+ * What stays on the heap for a spilled edit is its offset in the file,
+ * 8 bytes. If the file can't be written, edits simply stay on the heap;
+ * if it can't be read back, the spilled edits are dropped, as if the
+ * history had been cut short there.
+ */
+final class EditHistory
+{
+    /**
+     * Turns edits into bytes and back, for one direction (undo or redo).
+     */
+    interface Codec
+    {
+        void write(SceneEdit edit, DataOutputStream out) throws IOException;
+
+        /**
+         * Read back an edit written by write(), when the scene is in the
+         * state it will be applied to.
+         */
+        SceneEdit read(DataInputStream in) throws IOException;
+    }
+
+    private static final class Entry
+    {
+        final SceneEdit edit;
+        final long size;
+        final long used;
+
+        Entry(SceneEdit edit, long used) {
+            this.edit = edit;
+            this.size = edit.sizeInBytes();
+            this.used = used;
+        }
+    }
+
+    private final Codec codec;
+    private final String name;
+    // the edits on the heap, bottom first
+    private final Deque<Entry> live = new ArrayDeque<>();
+    private long heapBytes;
+
+    // where each spilled edit starts in the file, bottom first
+    private long[] offsets = new long[16];
+    private int spilled;
+    private long end;
+    private FileChannel file;
+    private boolean broken;
+    private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    private final Inflater inflater = new Inflater();
+
+    EditHistory(String name, Codec codec) {
+        this.name = name;
+        this.codec = codec;
+    }
+
+    /**
+     * Put an edit on top. used says when it was last used (any number
+     * that grows over time), for spilling the one used longest ago first.
+     */
+    void push(SceneEdit edit, long used) {
+        Entry entry = new Entry(edit, used);
+        live.addLast(entry);
+        heapBytes += entry.size;
+    }
+
+    /**
+     * Take the top edit off, bringing it back from the file if it was
+     * spilled, or return null if there is none (or it can't be read).
+     */
+    SceneEdit pop() {
+        if (!live.isEmpty()) {
+            Entry entry = live.removeLast();
+            heapBytes -= entry.size;
+            return entry.edit;
+        }
+        if (spilled == 0) {
+            return null;
+        }
+        try {
+            return reload();
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Can't read back the " + name + " history, dropping the rest of it: " + e);
+            clear();
+            return null;
+        }
+    }
+
+    /**
+     * Return the top edit if it is on the heap, or null.
+     */
+    SceneEdit peek() {
+        Entry top = live.peekLast();
+        return top == null ? null : top.edit;
+    }
+
+    boolean isEmpty() {
+        return live.isEmpty() && spilled == 0;
+    }
+
+    int size() {
+        return live.size() + spilled;
+    }
+
+    void clear() {
+        live.clear();
+        heapBytes = 0;
+        spilled = 0;
+        end = 0;
+        broken = false;
+        closeFile();
+    }
+
+    /**
+     * Return roughly how many bytes of heap the edits on the heap take.
+     */
+    long heapBytes() {
+        return heapBytes;
+    }
+
+    /**
+     * Return how many bytes the spilled edits take on disk.
+     */
+    long diskBytes() {
+        return end;
+    }
+
+    /**
+     * Return when the bottom edit on the heap was last used, or
+     * Long.MAX_VALUE if none is.
+     */
+    long oldestUse() {
+        Entry bottom = live.peekFirst();
+        return bottom == null ? Long.MAX_VALUE : bottom.used;
+    }
+
+    /**
+     * Move the bottom edit on the heap to the file. Return false if there
+     * is none, or the file can't be written.
+     */
+    boolean spillOldest() {
+        if (live.isEmpty() || broken) {
+            return false;
+        }
+        Entry bottom = live.peekFirst();
+        try {
+            write(bottom.edit);
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Can't spill the " + name + " history to disk, keeping it on the heap: " + e);
+            broken = true;
+            return false;
+        }
+        live.removeFirst();
+        heapBytes -= bottom.size;
+        return true;
+    }
+
+    private void write(SceneEdit edit) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        deflater.reset();
+        try (DataOutputStream out = new DataOutputStream(new DeflaterOutputStream(bytes, deflater))) {
+            codec.write(edit, out);
+        }
+        if (file == null) {
+            Path path = Files.createTempFile("drawshapes-" + name, ".bin");
+            // goes when the channel is closed (by clear(), or when the program ends)
+            file = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                    StandardOpenOption.DELETE_ON_CLOSE);
+        }
+        ByteBuffer buf = ByteBuffer.wrap(bytes.toByteArray());
+        long position = end;
+        while (buf.hasRemaining()) {
+            position += file.write(buf, position);
+        }
+        if (spilled == offsets.length) {
+            offsets = Arrays.copyOf(offsets, spilled * 2);
+        }
+        offsets[spilled++] = end;
+        end = position;
+    }
+
+    private SceneEdit reload() throws IOException {
+        long start = offsets[spilled - 1];
+        ByteBuffer buf = ByteBuffer.allocate((int) (end - start));
+        while (buf.hasRemaining()) {
+            if (file.read(buf, start + buf.position()) < 0) {
+                throw new IOException("Spilled " + name + " history is cut short");
+            }
+        }
+        inflater.reset();
+        SceneEdit edit;
+        try (DataInputStream in = new DataInputStream(new InflaterInputStream(
+                new ByteArrayInputStream(buf.array()), inflater))) {
+            edit = codec.read(in);
+        }
+        spilled--;
+        end = start;
+        if (spilled == 0) {
+            closeFile();
+        } else {
+            file.truncate(end);
+        }
+        return edit;
+    }
+
+    private void closeFile() {
+        if (file == null) {
+            return;
+        }
+        try {
+            // deletes the file
+            file.close();
+        } catch (IOException e) {
+            // nothing more to do with it
+        }
+        file = null;
+    }
+}
@@ -0,0 +1,89 @@
+package drawshapes;
+
+import java.awt.DisplayMode;
+import java.awt.GraphicsEnvironment;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import javax.swing.Timer;
+
+/**
+ * Runs work at most once per display frame, so input that arrives faster
+ * than the screen refreshes (a high polling rate mouse, key auto-repeat)
+ * is applied, and repainted, once per frame instead of once per event.
+ *
+ * Input handlers only record what the event asks for (the latest mouse
+ * position, the sum of the nudges so far) and schedule() a task that
+ * applies it. A task scheduled several times before the next frame still
+ * runs once. The first task after a quiet spell runs as soon as the
+ * events already queued have been handled; after that, frames are spaced
+ * one refresh period apart.
+ *
+ * Like the rest of Swing, this is for the Swing thread only.
+ */
+final class FrameScheduler
+{
+    private static final int DEFAULT_REFRESH_RATE = 60;
+
+    private final long periodNanos;
+    private final Timer timer;
+    private final Set<Runnable> pending = new LinkedHashSet<>();
+    private long lastFrame;
+
+    FrameScheduler() {
+        this(refreshRate());
+    }
+
+    FrameScheduler(int framesPerSecond) {
+        periodNanos = 1_000_000_000L / framesPerSecond;
+        lastFrame = System.nanoTime() - periodNanos;
+        timer = new Timer(0, e -> runFrame());
+        timer.setRepeats(false);
+    }
+
+    /**
+     * Return the refresh rate of the main screen, or 60 if it can't be told.
+     */
+    private static int refreshRate() {
+        if (GraphicsEnvironment.isHeadless()) {
+            return DEFAULT_REFRESH_RATE;
+        }
+        DisplayMode mode = GraphicsEnvironment.getLocalGraphicsEnvironment().getDefaultScreenDevice().getDisplayMode();
+        int rate = mode.getRefreshRate();
+        return rate == DisplayMode.REFRESH_RATE_UNKNOWN || rate <= 0 ? DEFAULT_REFRESH_RATE : rate;
+    }
+
+    /**
+     * Run the task with the next frame.
+     */
+    void schedule(Runnable task) {
+        pending.add(task);
+        if (!timer.isRunning()) {
+            long wait = lastFrame + periodNanos - System.nanoTime();
+            timer.setInitialDelay((int) Math.max(0, wait / 1_000_000));
+            timer.start();
+        }
+    }
+
+    /**
+     * Run the waiting tasks now, e.g. before input that has to see
+     * their effect, like a mouse release ending a drag.
+     */
+    void flush() {
+        if (!pending.isEmpty()) {
+            timer.stop();
+            runFrame();
+        }
+    }
+
+    private void runFrame() {
+        lastFrame = System.nanoTime();
+        // a task may schedule more work, which waits for the next frame
+        List<Runnable> tasks = new ArrayList<>(pending);
+        pending.clear();
+        for (Runnable task : tasks) {
+            task.run();
+        }
+    }
+}
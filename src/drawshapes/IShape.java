@@ -83,6 +83,15 @@ public interface IShape
      */
     public BoundingBox getBoundingBox();
 
+    /**
+     * Set the listener to tell whenever this shape moves, changes size
+     * or changes how it looks.
+     * A shape has at most one listener: the Scene or the ShapeGroup it is in.
+     * 
+     * @param listener the listener, or null for none
+     */
+    public void setShapeListener(IShapeListener listener);
+
     public IShape clone();
 
     public String toString();
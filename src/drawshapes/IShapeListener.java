@@ -0,0 +1,20 @@
+package drawshapes;
+
+/**
+ * Something that wants to know when a shape changes, either where it
+ * is or how it looks.
+ *
+ * Shapes in a Scene report to the Scene, and shapes inside a ShapeGroup
+ * report to their group, which passes the change on to whoever is
+ * listening to the group.
+ */
+public interface IShapeListener
+{
+    /**
+     * Called after the given shape has moved, changed size, or changed
+     * in a way that needs repainting (color, selection, and so on).
+     *
+     * @param shape the shape that changed
+     */
+    public void shapeChanged(IShape shape);
+}
@@ -0,0 +1,49 @@
+package drawshapes;
+
+/**
+ * How carefully Scene.draw(g, visible) draws a shape, depending on how
+ * big it comes out on screen.
+ *
+ * A shape whose larger side is under dotPixels pixels is not drawn at
+ * all: it adds its color, weighted by how much of a pixel it covers, to
+ * the pixel under its center (see DetailRenderer), so a crowd of tiny
+ * shapes shows up as a smudge of the right color and density. A shape
+ * under simplePixels pixels is filled without antialiasing, rotation or
+ * a border. Anything bigger is drawn exactly, as draw(g) would.
+ *
+ * Saving, exporting and Scene.draw(g) always draw exactly.
+ */
+public final class LevelOfDetail
+{
+    /** Tiny shapes become dots, small shapes are filled plainly. */
+    public static final LevelOfDetail DEFAULT = new LevelOfDetail(1.5, 6);
+    /** Every shape is drawn exactly, however small. */
+    public static final LevelOfDetail EXACT = new LevelOfDetail(0, 0);
+
+    private final double dotPixels;
+    private final double simplePixels;
+
+    public LevelOfDetail(double dotPixels, double simplePixels) {
+        if (dotPixels < 0 || simplePixels < dotPixels) {
+            throw new IllegalArgumentException("Need 0 <= dotPixels <= simplePixels, got "
+                    + dotPixels + " and " + simplePixels);
+        }
+        this.dotPixels = dotPixels;
+        this.simplePixels = simplePixels;
+    }
+
+    public double getDotPixels() {
+        return dotPixels;
+    }
+
+    public double getSimplePixels() {
+        return simplePixels;
+    }
+
+    /**
+     * Is every shape drawn exactly?
+     */
+    boolean isExact() {
+        return simplePixels == 0;
+    }
+}
@@ -0,0 +1,154 @@
+package drawshapes;
+
+import java.awt.Point;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Selects shapes with a SelectionRectangle while the user drags it out.
+ *
+ * Each drag step only looks at the shapes near the strips of canvas
+ * the rectangle gained or lost since the last step: a shape can only
+ * start or stop being selected if part of it is in one of those strips.
+ * So a step costs about as much as the shapes along the edges of the
+ * rectangle, however many shapes are inside it.
+ *
+ * Shapes that were already selected when the marquee started (with
+ * Ctrl held down) are left alone.
+ */
+final class MarqueeSelection
+{
+    // how far the outline of the rectangle may paint outside its edges
+    private static final int OUTLINE_MARGIN = 2;
+
+    private final Scene scene;
+    private final Point start;
+    private final SelectionRectangle rectangle;
+    // the rectangle's area as of the last step, edges included
+    private int left, right, top, bottom;
+    // the shapes this marquee has selected
+    private final Set<IShape> selected = Collections.newSetFromMap(new IdentityHashMap<>());
+
+    MarqueeSelection(Scene scene, Point start, SelectionRectangle.Mode mode) {
+        this.scene = scene;
+        this.start = new Point(start);
+        rectangle = new SelectionRectangle(start.x, start.y, 0, 0);
+        rectangle.setMode(mode);
+        left = right = start.x;
+        top = bottom = start.y;
+    }
+
+    SelectionRectangle getRectangle() {
+        return rectangle;
+    }
+
+    /**
+     * Return how many shapes the marquee has selected.
+     */
+    int size() {
+        return selected.size();
+    }
+
+    /**
+     * Move the free corner of the rectangle and update the selection.
+     * Returns the areas of the canvas that need repainting: the old and
+     * new edges of the rectangle, the strips between them, and every
+     * shape whose selection changed.
+     */
+    List<java.awt.Rectangle> dragTo(Point corner) {
+        int oldLeft = left, oldRight = right, oldTop = top, oldBottom = bottom;
+        rectangle.setCorners(start, corner);
+        left = Math.min(start.x, corner.x);
+        right = Math.max(start.x, corner.x);
+        top = Math.min(start.y, corner.y);
+        bottom = Math.max(start.y, corner.y);
+
+        List<java.awt.Rectangle> damaged = new ArrayList<>();
+        if (left == oldLeft && right == oldRight && top == oldTop && bottom == oldBottom) {
+            return damaged;
+        }
+        List<int[]> strips = new ArrayList<>();
+        difference(oldLeft, oldRight, oldTop, oldBottom, left, right, top, bottom, strips);
+        difference(left, right, top, bottom, oldLeft, oldRight, oldTop, oldBottom, strips);
+
+        Set<IShape> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (int[] strip : strips) {
+            java.awt.Rectangle area = area(strip[0], strip[1], strip[2], strip[3]);
+            for (IShape shape : scene.shapesNear(strip[0], strip[1], strip[2], strip[3])) {
+                if (seen.add(shape) && update(shape)) {
+                    BoundingBox extent = Scene.extentOf(shape);
+                    area.add(area(extent.getLeft(), extent.getRight(), extent.getTop(), extent.getBottom()));
+                }
+            }
+            damaged.add(area);
+        }
+        addEdges(oldLeft, oldRight, oldTop, oldBottom, damaged);
+        addEdges(left, right, top, bottom, damaged);
+        return damaged;
+    }
+
+    /**
+     * Select or deselect the shape to match the rectangle. Returns true
+     * if that changed anything.
+     */
+    private boolean update(IShape shape) {
+        boolean wanted = rectangle.selects(shape);
+        if (wanted == selected.contains(shape)) {
+            return false;
+        }
+        if (wanted) {
+            if (shape.isSelected()) {
+                // selected before the marquee started
+                return false;
+            }
+            selected.add(shape);
+        } else {
+            selected.remove(shape);
+        }
+        shape.setSelected(wanted);
+        return true;
+    }
+
+    /**
+     * Add the parts of rectangle a that are outside rectangle b, as up to
+     * four {left, right, top, bottom} strips. All edges are inclusive.
+     */
+    private static void difference(int aLeft, int aRight, int aTop, int aBottom,
+            int bLeft, int bRight, int bTop, int bBottom, List<int[]> strips) {
+        if (bLeft > aRight || bRight < aLeft || bTop > aBottom || bBottom < aTop) {
+            strips.add(new int[] { aLeft, aRight, aTop, aBottom });
+            return;
+        }
+        if (aTop < bTop) {
+            strips.add(new int[] { aLeft, aRight, aTop, bTop - 1 });
+        }
+        if (aBottom > bBottom) {
+            strips.add(new int[] { aLeft, aRight, bBottom + 1, aBottom });
+        }
+        int middleTop = Math.max(aTop, bTop), middleBottom = Math.min(aBottom, bBottom);
+        if (aLeft < bLeft) {
+            strips.add(new int[] { aLeft, bLeft - 1, middleTop, middleBottom });
+        }
+        if (aRight > bRight) {
+            strips.add(new int[] { bRight + 1, aRight, middleTop, middleBottom });
+        }
+    }
+
+    /**
+     * Add the four edges of the rectangle, wide enough for its outline.
+     */
+    private static void addEdges(int left, int right, int top, int bottom, List<java.awt.Rectangle> damaged) {
+        int m = OUTLINE_MARGIN;
+        damaged.add(area(left - m, right + m, top - m, top + m));
+        damaged.add(area(left - m, right + m, bottom - m, bottom + m));
+        damaged.add(area(left - m, left + m, top - m, bottom + m));
+        damaged.add(area(right - m, right + m, top - m, bottom + m));
+    }
+
+    private static java.awt.Rectangle area(int left, int right, int top, int bottom) {
+        return new java.awt.Rectangle(left, top, right - left + 1, bottom - top + 1);
+    }
+}
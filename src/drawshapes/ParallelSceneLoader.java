@@ -0,0 +1,205 @@
+package drawshapes;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Loads a text scene file (the format written by Scene.saveToFile())
+ * using several threads.
+ *
+ * The file is cut into byte ranges that end on line boundaries, each
+ * range is memory-mapped and parsed on a ForkJoinPool, and the pieces
+ * are put back together in file order, so the shapes come out in exactly
+ * the z-order they were saved in. Lines end with '\n' (an '\r' before it
+ * is ignored), and each line is parsed the same way Scene.loadFromFile()
+ * parses it.
+ */
+final class ParallelSceneLoader
+{
+    private static final long MIN_CHUNK_SIZE = 1L << 20;
+    private static final long MAX_CHUNK_SIZE = 1L << 26;
+    // chunks per worker thread, so a slow chunk doesn't leave the others idle
+    private static final int CHUNKS_PER_THREAD = 4;
+
+    /**
+     * The shapes that were loaded and how long each phase took. Splitting
+     * finds where the chunks start and maps them, which reads next to
+     * nothing; the pages of the file come in while the chunks are parsed,
+     * so that is where the time to read the file shows up.
+     */
+    static final class Result
+    {
+        final List<IShape> shapes;
+        final long bytes;
+        final int chunks;
+        final long splitNanos;
+        final long parseNanos;
+        final long mergeNanos;
+
+        Result(List<IShape> shapes, long bytes, int chunks, long splitNanos, long parseNanos, long mergeNanos) {
+            this.shapes = shapes;
+            this.bytes = bytes;
+            this.chunks = chunks;
+            this.splitNanos = splitNanos;
+            this.parseNanos = parseNanos;
+            this.mergeNanos = mergeNanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("loaded %d shapes (%d bytes, %d chunks): split %d ms, parse %d ms, merge %d ms",
+                    shapes.size(), bytes, chunks,
+                    splitNanos / 1_000_000, parseNanos / 1_000_000, mergeNanos / 1_000_000);
+        }
+    }
+
+    private final ForkJoinPool pool;
+
+    ParallelSceneLoader() {
+        this(ForkJoinPool.commonPool());
+    }
+
+    ParallelSceneLoader(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    Result load(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            // split: find where each chunk starts and map it
+            long start = System.nanoTime();
+            long size = channel.size();
+            long[] bounds = chunkBounds(channel, size);
+            int chunks = bounds.length - 1;
+            List<MappedByteBuffer> buffers = new ArrayList<>(chunks);
+            for (int i = 0; i < chunks; i++) {
+                buffers.add(channel.map(FileChannel.MapMode.READ_ONLY, bounds[i], bounds[i + 1] - bounds[i]));
+            }
+            long splitDone = System.nanoTime();
+
+            // parse: one task per chunk, reading its pages in as it goes
+            List<Callable<List<IShape>>> tasks = new ArrayList<>(chunks);
+            for (MappedByteBuffer buffer : buffers) {
+                tasks.add(() -> parseChunk(buffer));
+            }
+            List<List<IShape>> parsed = new ArrayList<>(chunks);
+            for (Future<List<IShape>> future : pool.invokeAll(tasks)) {
+                parsed.add(result(future));
+            }
+            long parseDone = System.nanoTime();
+
+            // merge: stitch the chunks together in file order
+            int total = 0;
+            for (List<IShape> part : parsed) {
+                total += part.size();
+            }
+            List<IShape> shapes = new ArrayList<>(total);
+            for (List<IShape> part : parsed) {
+                shapes.addAll(part);
+            }
+            long mergeDone = System.nanoTime();
+
+            return new Result(shapes, size, chunks,
+                    splitDone - start, parseDone - splitDone, mergeDone - parseDone);
+        }
+    }
+
+    /**
+     * Return the offsets where chunks start, plus the file size at the end.
+     * Every offset but the first is just after a '\n'.
+     */
+    private long[] chunkBounds(FileChannel channel, long size) throws IOException {
+        long wanted = Math.max(1, (long) pool.getParallelism() * CHUNKS_PER_THREAD);
+        long chunkSize = Math.min(MAX_CHUNK_SIZE, Math.max(MIN_CHUNK_SIZE, size / wanted));
+        List<Long> bounds = new ArrayList<>();
+        bounds.add(0L);
+        ByteBuffer probe = ByteBuffer.allocate(4096);
+        long pos = chunkSize;
+        while (pos < size) {
+            long lineStart = nextLineStart(channel, pos, size, probe);
+            if (lineStart >= size) {
+                break;
+            }
+            bounds.add(lineStart);
+            pos = lineStart + chunkSize;
+        }
+        bounds.add(size);
+        long[] result = new long[bounds.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = bounds.get(i);
+        }
+        return result;
+    }
+
+    private static long nextLineStart(FileChannel channel, long pos, long size, ByteBuffer probe) throws IOException {
+        while (pos < size) {
+            probe.clear();
+            int n = channel.read(probe, pos);
+            if (n <= 0) {
+                return size;
+            }
+            for (int i = 0; i < n; i++) {
+                if (probe.get(i) == '\n') {
+                    return pos + i + 1;
+                }
+            }
+            pos += n;
+        }
+        return size;
+    }
+
+    private static List<IShape> parseChunk(MappedByteBuffer buffer) {
+        List<IShape> shapes = new ArrayList<>();
+        byte[] line = new byte[128];
+        int limit = buffer.limit();
+        int lineStart = 0;
+        while (lineStart < limit) {
+            int lineEnd = lineStart;
+            while (lineEnd < limit && buffer.get(lineEnd) != '\n') {
+                lineEnd++;
+            }
+            int length = lineEnd - lineStart;
+            if (length > 0 && buffer.get(lineEnd - 1) == '\r') {
+                length--;
+            }
+            if (length > line.length) {
+                line = new byte[Math.max(length, line.length * 2)];
+            }
+            buffer.get(lineStart, line, 0, length);
+            IShape shape = Scene.parseShape(new String(line, 0, length, StandardCharsets.ISO_8859_1));
+            if (shape != null) {
+                shapes.add(shape);
+            }
+            lineStart = lineEnd + 1;
+        }
+        return shapes;
+    }
+
+    private static List<IShape> result(Future<List<IShape>> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while loading scene", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+}
@@ -17,12 +17,7 @@ public class Rectangle extends AbstractShape
 
     @Override
     protected void drawShape(Graphics g) {
-        g.setColor(color);
         g.fillRect(anchorPoint.x - width/2, anchorPoint.y - height/2, width, height);
-        if (selected) {
-            g.setColor(Color.BLACK);
-            g.drawRect(anchorPoint.x - width/2 - 2, anchorPoint.y - height/2 - 2, width + 4, height + 4);
-        }
     }
 
     @Override
@@ -32,18 +27,11 @@ public class Rectangle extends AbstractShape
     }
 
     @Override
-    public boolean intersects(IShape other) {
-        BoundingBox thisBox = getBoundingBox();
-        BoundingBox otherBox = other.getBoundingBox();
-        return thisBox.intersects(otherBox);
-    }
-
-    @Override
-    public BoundingBox getBoundingBox() {
+    protected BoundingBox computeBoundingBox() {
         return new BoundingBox(
             anchorPoint.x - width/2,
-            anchorPoint.y - height/2,
             anchorPoint.x + width/2,
+            anchorPoint.y - height/2,
             anchorPoint.y + height/2
         );
     }
@@ -52,11 +40,13 @@ public class Rectangle extends AbstractShape
     public void scale(double factor) {
         width = (int) (width * factor);
         height = (int) (height * factor);
+        boundsChanged();
     }
 
     @Override
     public IShape clone() {
         Rectangle clone = new Rectangle(new Point(anchorPoint), width, height, color);
+        copyStyleTo(clone);
         clone.setSelected(selected);
         return clone;
     }
@@ -69,6 +59,7 @@ public class Rectangle extends AbstractShape
     public void setSize(int width, int height) {
         this.width = width;
         this.height = height;
+        boundsChanged();
     }
 
     public int getWidth() {
@@ -2,15 +2,34 @@ package drawshapes;
 
 import java.awt.Color;
 import java.awt.Graphics;
+import java.awt.Graphics2D;
 import java.awt.Point;
+import java.awt.Stroke;
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
 import java.util.List;
-import java.util.Stack;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
 
 /**
  * A scene of shapes.  Uses the Model-View-Controller (MVC) design pattern,
@@ -22,58 +41,694 @@ import java.util.Stack;
  * rather than individual shapes, and to apply operations
  * to collections of shapes.
  * 
+ * Alongside the list of shapes (which is also the z-order, back to front)
+ * the scene keeps a spatial index, so finding the shapes under the mouse
+ * doesn't mean looking at every shape. Every shape in the scene reports
+ * its moves and resizes back to the scene, which keeps the index current.
+ * 
+ * The scene also remembers which part of the canvas needs repainting
+ * (the old and new area of everything that changed since the last call
+ * to takeDirtyRegion()), and draw() skips shapes outside the clip.
+ * 
+ * Selection is tracked the same way: the scene keeps the set of selected
+ * shapes, and shapes report selection changes like any other change. So
+ * asking for the selection, or clearing it, costs as much as the number
+ * of selected shapes, not the size of the scene. Selection is only kept
+ * on the live shapes, not in snapshots or the journal.
+ * 
+ * Other threads can read the scene through snapshot(), which hands out
+ * the latest published SceneSnapshot in O(1). Alongside the live list
+ * the scene keeps a persistent ShapeVector of frozen copies of the
+ * shapes: whenever a shape changes, its copy is replaced, which copies
+ * only the path to it, and after every complete change the new vector
+ * is published through a volatile field. Readers never lock and never
+ * see half an edit, and the scene never waits for them.
+ * 
+ * The same hooks feed an optional SceneJournal, which writes each
+ * complete change to disk as it happens so the scene survives a crash.
+ * 
+ * Undo and redo work on a log of edits (see SceneEdit). Each edit only
+ * records which shapes went in or out of the list and at what position,
+ * so the history grows with the number of edits, not with the scene size.
+ * 
+ * moveSelection(), scaleSelection(), rotateSelection() and
+ * changeSelectionOpacity() change every selected shape as one undoable
+ * edit. The shapes are changed on several threads when there are many,
+ * and the index, dirty region and frozen copies are updated once for
+ * the whole batch rather than shape by shape.
+ * 
  * @author jspacco
  *
  */
-public class Scene implements Iterable<IShape>
+public class Scene implements Iterable<IShape>, IShapeListener
 {
+    // spacing between the z-order keys of neighbouring shapes
+    private static final long Z_GAP = 1L << 20;
+    // how far outside its bounding box a shape may paint (selection outline, stroke, antialiasing)
+    static final int PAINT_MARGIN = 4;
+    // text files at least this big are parsed on several threads
+    private static final long PARALLEL_LOAD_THRESHOLD = 8L << 20;
+    // scenes with at least this many shapes look for overlaps on several threads
+    private static final int PARALLEL_COLLISION_THRESHOLD = 100_000;
+    // selections at least this big are transformed on several threads
+    private static final int PARALLEL_TRANSFORM_THRESHOLD = 10_000;
+    // moves of the same shapes closer together than this are undone as one
+    private static final long MERGE_MOVES_NANOS = 1_000_000_000L;
+    // rough heap sizes for SceneEdit.sizeInBytes(): an object header with a few
+    // fields, and a shape with its anchor point and bounding box
+    private static final long OBJECT_BYTES = 16;
+    private static final long SHAPE_BYTES = 128;
+
     private List<IShape> shapes;
-    private Stack<List<IShape>> undoStack;
+    private EditHistory undoStack;
+    private EditHistory redoStack;
+    private SpatialIndex index;
+    // z-order key of every shape; bigger keys are drawn later (on top)
+    private Map<IShape, Long> zOrder;
+    // area that needs repainting, or null if nothing changed
+    private java.awt.Rectangle dirty;
+    // the shapes in the scene that are selected (not the children of selected groups)
+    private Set<IShape> selection;
+    // the shape the user is dragging or resizing, if any
+    private IShape activeShape;
+    // goes up whenever anything but the active shape changes
+    private long backgroundVersion;
+    // frozen copies of the shapes, in list order, and the latest one published
+    private ShapeVector frozen;
+    private volatile SceneSnapshot published;
+    // draws small shapes in less detail in draw(g, visible)
+    private final DetailRenderer detail = new DetailRenderer();
+    // where every change is written as it happens, if anywhere
+    private SceneJournal journal;
+    // heap the undo and redo stacks may take before old edits go to disk,
+    // a clock for which edit was used longest ago, and running totals for
+    // getShapesDrawn() and getShapesSkipped()
+    private long undoBudget = Long.getLong("drawshapes.undoBudget", Runtime.getRuntime().maxMemory() / 8);
+    private long editUses;
+    private long shapesDrawn;
+    private long shapesSkipped;
+    // true while transformAll() changes shapes, so their own reports are ignored
+    private boolean bulk;
     
     public Scene() {
         shapes = new ArrayList<>();
-        undoStack = new Stack<>();
-        saveState();
+        undoStack = new EditHistory("undo", new EditCodec(true));
+        redoStack = new EditHistory("redo", new EditCodec(false));
+        index = new SpatialIndex();
+        zOrder = new IdentityHashMap<>();
+        selection = Collections.newSetFromMap(new IdentityHashMap<>());
+        frozen = ShapeVector.EMPTY;
+        published = new SceneSnapshot(frozen, 0);
     }
-    
-    private void saveState() {
-        List<IShape> stateCopy = new ArrayList<>();
+
+    /**
+     * An edit that takes some shapes out of the list and puts others in.
+     * 
+     * The "before" shapes are the ones removed, listed with the positions
+     * they had in the list, in increasing order. The "after" shapes are
+     * the ones inserted, with the positions they end up at, also in
+     * increasing order. A shape can be in both, which is how reordering
+     * works. Undo is the same thing in reverse.
+     */
+    private class ListEdit implements SceneEdit
+    {
+        private final IShape[] before;
+        private final int[] beforePositions;
+        private final IShape[] after;
+        private final int[] afterPositions;
+        // sizeInBytes(), worked out the first time it is asked for
+        private long size = -1;
+
+        ListEdit(IShape[] before, int[] beforePositions, IShape[] after, int[] afterPositions) {
+            this.before = before;
+            this.beforePositions = beforePositions;
+            this.after = after;
+            this.afterPositions = afterPositions;
+        }
+
+        @Override
+        public void redo() {
+            swap(before, beforePositions, after, afterPositions);
+        }
+
+        @Override
+        public void undo() {
+            swap(after, afterPositions, before, beforePositions);
+        }
+
+        @Override
+        public int shapeCount() {
+            return Math.max(before.length, after.length);
+        }
+
+        @Override
+        public long sizeInBytes() {
+            if (size < 0) {
+                size = measure();
+            }
+            return size;
+        }
+
+        private long measure() {
+            long size = OBJECT_BYTES + arrayBytes(before.length) * 2 + arrayBytes(after.length) * 2;
+            // shapes on both sides, even inside groups, are only being reordered
+            // or (un)grouped; the scene still has them whichever side is current
+            Set<IShape> only = Collections.newSetFromMap(new IdentityHashMap<>());
+            for (IShape shape : before) {
+                addAll(shape, only);
+            }
+            Set<IShape> afterOnly = Collections.newSetFromMap(new IdentityHashMap<>());
+            for (IShape shape : after) {
+                addAll(shape, afterOnly);
+            }
+            for (IShape shape : afterOnly) {
+                if (!only.remove(shape)) {
+                    only.add(shape);
+                }
+            }
+            for (IShape shape : only) {
+                size += estimatedBytes(shape);
+            }
+            return size;
+        }
+
+        private void swap(IShape[] out, int[] outPositions, IShape[] in, int[] inPositions) {
+            // remove from the back so the earlier positions stay valid
+            for (int i = out.length - 1; i >= 0; i--) {
+                detachAt(outPositions[i]);
+            }
+            for (int i = 0; i < in.length; i++) {
+                attach(inPositions[i], in[i]);
+            }
+        }
+    }
+
+    private static long arrayBytes(int length) {
+        return OBJECT_BYTES + 4L * length;
+    }
+
+    /**
+     * Add the shape and, if it is a group, everything inside it to the set.
+     */
+    private static void addAll(IShape shape, Set<IShape> set) {
+        set.add(shape);
+        if (shape instanceof ShapeGroup) {
+            for (IShape child : ((ShapeGroup) shape).getShapes()) {
+                addAll(child, set);
+            }
+        }
+    }
+
+    /**
+     * Return roughly how many bytes of heap the shape itself takes: the
+     * object, its anchor and cached bounding box, and for a group its
+     * list of children (but not the children).
+     */
+    private static long estimatedBytes(IShape shape) {
+        if (shape instanceof ShapeGroup) {
+            return SHAPE_BYTES + arrayBytes(((ShapeGroup) shape).getShapes().size());
+        }
+        return SHAPE_BYTES;
+    }
+
+    /**
+     * Do an edit and remember it for undo. Doing something new
+     * throws away whatever could have been redone. The event, begun
+     * when the operation started, is recorded under the given name.
+     */
+    private void perform(SceneEdit edit, String operation, SceneEvents.Edit event) {
+        edit.redo();
+        undoStack.push(edit, ++editUses);
+        redoStack.clear();
+        trimHistory();
+        publish();
+        event.record(operation, edit);
+    }
+
+    /**
+     * Make the flight recorder event for an edit and start timing it.
+     */
+    private static SceneEvents.Edit beginEdit() {
+        SceneEvents.Edit event = new SceneEvents.Edit();
+        event.begin();
+        return event;
+    }
+
+    /**
+     * Return the positions of the given shapes in the list, in increasing
+     * order, filling in the shapes in that same order. Shapes that aren't
+     * in the scene are left out. Each position is found by its z-order
+     * key, so this doesn't look at the rest of the list.
+     */
+    private int[] positionsOf(List<IShape> wanted, List<IShape> found) {
+        Set<IShape> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+        List<IShape> present = new ArrayList<>(wanted.size());
+        for (IShape shape : wanted) {
+            if (zOrder.containsKey(shape) && seen.add(shape)) {
+                present.add(shape);
+            }
+        }
+        present.sort(backToFront());
+        int[] positions = new int[present.size()];
+        for (int i = 0; i < positions.length; i++) {
+            positions[i] = positionOf(present.get(i));
+        }
+        found.addAll(present);
+        return positions;
+    }
+
+    private static int[] range(int from, int count) {
+        int[] positions = new int[count];
+        for (int i = 0; i < count; i++) {
+            positions[i] = from + i;
+        }
+        return positions;
+    }
+
+    /**
+     * Insert a shape into the list at the given position and
+     * start tracking it in the index.
+     */
+    private void attach(int position, IShape shape) {
+        shapes.add(position, shape);
+        IShape copy = freeze(shape);
+        frozen = frozen.insert(position, copy);
+        if (journal != null) {
+            journal.inserted(position, copy);
+        }
+        track(position, shape);
+    }
+
+    /**
+     * Give the shape just put at the given position its z-order key,
+     * index it and start listening to it.
+     */
+    private void track(int position, IShape shape) {
+        long z;
+        if (shapes.size() == 1) {
+            z = 0;
+        } else if (position == shapes.size() - 1) {
+            z = zOrder.get(shapes.get(position - 1)) + Z_GAP;
+        } else if (position == 0) {
+            z = zOrder.get(shapes.get(1)) - Z_GAP;
+        } else {
+            long below = zOrder.get(shapes.get(position - 1));
+            long above = zOrder.get(shapes.get(position + 1));
+            z = below + (above - below) / 2;
+            if (z == below) {
+                zOrder.put(shape, z);
+                renumber();
+                z = zOrder.get(shape);
+            }
+        }
+        zOrder.put(shape, z);
+        BoundingBox extent = extentOf(shape);
+        index.insert(shape, extent);
+        markDirty(extent);
+        backgroundVersion++;
+        if (shape.isSelected()) {
+            selection.add(shape);
+        }
+        shape.setShapeListener(this);
+        if (shape instanceof ShapeGroup) {
+            // the children may have been listening to the scene while ungrouped
+            ((ShapeGroup) shape).claimChildren();
+        }
+    }
+
+    /**
+     * Remove a shape from the list and stop tracking it.
+     */
+    private void detachAt(int position) {
+        frozen = frozen.remove(position);
+        if (journal != null) {
+            journal.removed(position);
+        }
+        forget(shapes.remove(position));
+    }
+
+    private void forget(IShape shape) {
+        markDirty(index.boundsOf(shape));
+        backgroundVersion++;
+        zOrder.remove(shape);
+        index.remove(shape);
+        selection.remove(shape);
+        shape.setShapeListener(null);
+    }
+
+    /**
+     * Return the area the shape may paint into: its bounding box plus room
+     * for the selection outline, and if it is rotated, the whole circle it
+     * can turn through.
+     */
+    static BoundingBox extentOf(IShape shape) {
+        if (shape instanceof ShapeGroup) {
+            // children are rotated and outlined one by one; the group caches the union
+            return ((ShapeGroup) shape).getExtent();
+        }
+        BoundingBox box = shape.getBoundingBox();
+        if (shape.getRotation() == 0) {
+            return new BoundingBox(box.getLeft() - PAINT_MARGIN, box.getRight() + PAINT_MARGIN,
+                    box.getTop() - PAINT_MARGIN, box.getBottom() + PAINT_MARGIN);
+        }
+        Point center = box.getCenter();
+        int reach = rotatedReach(box.getWidth(), box.getHeight());
+        return new BoundingBox(center.x - reach, center.x + reach, center.y - reach, center.y + reach);
+    }
+
+    /**
+     * Return how far from its center a rotated shape with the given
+     * bounding box size may paint, whatever the angle.
+     */
+    static int rotatedReach(int width, int height) {
+        // the selection outline turns with the shape, so turn the box with its margin
+        return (int) Math.ceil(Math.hypot(width + 2 * PAINT_MARGIN, height + 2 * PAINT_MARGIN) / 2) + 1;
+    }
+
+    private void markDirty(BoundingBox box) {
+        if (box == null) {
+            return;
+        }
+        java.awt.Rectangle r = new java.awt.Rectangle(box.getLeft(), box.getTop(),
+                box.getWidth() + 1, box.getHeight() + 1);
+        if (dirty == null) {
+            dirty = r;
+        } else {
+            dirty.add(r);
+        }
+    }
+
+    /**
+     * Return the part of the canvas that has changed since the last call,
+     * or null if nothing has, and start collecting again.
+     */
+    public java.awt.Rectangle takeDirtyRegion() {
+        java.awt.Rectangle region = dirty;
+        dirty = null;
+        return region;
+    }
+
+    private void renumber() {
+        long z = 0;
         for (IShape shape : shapes) {
-            stateCopy.add(shape.clone());
+            zOrder.put(shape, z);
+            z += Z_GAP;
+        }
+    }
+
+    @Override
+    public void shapeChanged(IShape shape) {
+        if (bulk || !index.contains(shape)) {
+            return;
+        }
+        if (shape.isSelected() != selection.contains(shape)) {
+            // only setSelected() changes that, and snapshots and the journal don't keep the selection
+            selectionChanged(shape);
+            return;
+        }
+        BoundingBox extent = extentOf(shape);
+        markDirty(index.boundsOf(shape));
+        markDirty(extent);
+        index.update(shape, extent);
+        if (shape.isSelected()) {
+            selection.add(shape);
+        } else {
+            selection.remove(shape);
+        }
+        if (shape != activeShape) {
+            backgroundVersion++;
+        }
+        int position = positionOf(shape);
+        IShape copy = freeze(shape);
+        frozen = frozen.set(position, copy);
+        if (journal != null) {
+            journal.changed(position, copy);
+        }
+        publish();
+    }
+
+    private void selectionChanged(IShape shape) {
+        if (shape.isSelected()) {
+            selection.add(shape);
+        } else {
+            selection.remove(shape);
+        }
+        // the outline needs repainting
+        markDirty(index.boundsOf(shape));
+        if (shape != activeShape) {
+            backgroundVersion++;
+        }
+    }
+
+    /**
+     * Return a copy of the shape for snapshots, which nothing will change.
+     * Snapshots don't keep the selection (nor do files and the journal),
+     * so the copy is never selected.
+     */
+    private static IShape freeze(IShape shape) {
+        IShape copy = shape.clone();
+        if (copy.isSelected()) {
+            copy.setSelected(false);
         }
-        undoStack.push(stateCopy);
+        // work out the (cached) bounds now, so readers only ever read the copy
+        copy.getBoundingBox();
+        return copy;
+    }
+
+    /**
+     * Make the current state of the scene what snapshot() returns.
+     */
+    private void publish() {
+        published = new SceneSnapshot(frozen, published.getVersion() + 1);
+        if (journal != null) {
+            journal.committed(published);
+        }
+    }
+
+    /**
+     * Start telling the journal about every change (or stop, given null).
+     * SceneJournal.open() does this.
+     */
+    void setJournal(SceneJournal journal) {
+        this.journal = journal;
+    }
+
+    /**
+     * Return the scene as of the last complete change. This is O(1) and
+     * safe to call from any thread; the snapshot can then be read while
+     * the scene goes on changing.
+     */
+    public SceneSnapshot snapshot() {
+        return published;
+    }
+
+    /**
+     * Say which shape the user is currently editing (or null for none).
+     * Changes to that shape don't count towards getBackgroundVersion().
+     */
+    public void setActiveShape(IShape shape) {
+        activeShape = shape;
+        backgroundVersion++;
+    }
+
+    public IShape getActiveShape() {
+        return activeShape;
+    }
+
+    /**
+     * Return a number that changes whenever any shape other than the
+     * active one changes, or shapes are added, removed or reordered.
+     * Views can use it to tell when a cached picture of the other
+     * shapes is out of date.
+     */
+    public long getBackgroundVersion() {
+        return backgroundVersion;
+    }
+
+    public boolean contains(IShape shape) {
+        return zOrder.containsKey(shape);
     }
     
     public void undo() {
-        if (undoStack.size() > 1) {
-            shapes = undoStack.pop();
+        SceneEvents.Edit event = beginEdit();
+        SceneEdit edit = undoStack.pop();
+        if (edit != null) {
+            edit.undo();
+            redoStack.push(edit, ++editUses);
+            trimHistory();
+            publish();
+            event.record("undo", edit);
+        }
+    }
+
+    public void redo() {
+        SceneEvents.Edit event = beginEdit();
+        SceneEdit edit = redoStack.pop();
+        if (edit != null) {
+            edit.redo();
+            undoStack.push(edit, ++editUses);
+            trimHistory();
+            publish();
+            event.record("redo", edit);
+        }
+    }
+
+    public boolean canUndo() {
+        return !undoStack.isEmpty();
+    }
+
+    public boolean canRedo() {
+        return !redoStack.isEmpty();
+    }
+
+    /**
+     * Return roughly how much heap the undo and redo history takes, in
+     * bytes (see SceneEdit.sizeInBytes()). Edits spilled to disk don't count.
+     */
+    public long getUndoBytes() {
+        return undoStack.heapBytes() + redoStack.heapBytes();
+    }
+
+    /**
+     * Return how many bytes of undo and redo history are spilled to disk.
+     */
+    public long getUndoDiskBytes() {
+        return undoStack.diskBytes() + redoStack.diskBytes();
+    }
+
+    /**
+     * Set how much heap the undo and redo history may take, in bytes. Past
+     * that, the edits used longest ago are compressed and moved to a temp
+     * file, and read back when undo or redo gets to them. The default is
+     * an eighth of the maximum heap, or the system property
+     * drawshapes.undoBudget.
+     */
+    public void setUndoBudget(long bytes) {
+        undoBudget = bytes;
+        trimHistory();
+    }
+
+    public long getUndoBudget() {
+        return undoBudget;
+    }
+
+    /**
+     * Spill edits, the one used longest ago first, until the history fits
+     * its budget (or nothing more can be spilled).
+     */
+    private void trimHistory() {
+        while (getUndoBytes() > undoBudget) {
+            EditHistory oldest = undoStack.oldestUse() <= redoStack.oldestUse() ? undoStack : redoStack;
+            if (!oldest.spillOldest()) {
+                EditHistory other = oldest == undoStack ? redoStack : undoStack;
+                if (!other.spillOldest()) {
+                    return;
+                }
+            }
         }
     }
+
+    /**
+     * Return how many shapes the draw methods have drawn, counting a
+     * group as one, since the scene was made. Take the difference
+     * around a frame to get the count for that frame.
+     */
+    long getShapesDrawn() {
+        return shapesDrawn;
+    }
+
+    /**
+     * Return how many shapes the draw methods have skipped because they
+     * were outside the clip or the visible area, since the scene was made.
+     */
+    long getShapesSkipped() {
+        return shapesSkipped;
+    }
     
     public void saveToFile(String filename) throws IOException {
+        SceneEvents.Save event = new SceneEvents.Save();
+        event.begin();
         try (BufferedWriter writer = new BufferedWriter(new FileWriter(filename))) {
             for (IShape shape : shapes) {
                 writer.write(shape.toString());
                 writer.newLine();
             }
         }
+        event.record(Paths.get(filename), shapes.size());
     }
     
     public void loadFromFile(String filename) throws IOException {
-        shapes.clear();
-        try (BufferedReader reader = new BufferedReader(new FileReader(filename))) {
+        SceneEvents.Load event = new SceneEvents.Load();
+        event.begin();
+        replaceShapes(readTextFile(Paths.get(filename)));
+        event.record(Paths.get(filename), shapes.size());
+    }
+
+    /**
+     * Read the shapes, back to front, from a file written by saveToFile(),
+     * on several threads if the file is big (see ParallelSceneLoader).
+     */
+    static List<IShape> readTextFile(Path path) throws IOException {
+        if (Files.size(path) >= PARALLEL_LOAD_THRESHOLD) {
+            return new ParallelSceneLoader().load(path).shapes;
+        }
+        List<IShape> loaded = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new FileReader(path.toFile()))) {
             String line;
             while ((line = reader.readLine()) != null) {
                 IShape shape = parseShape(line);
                 if (shape != null) {
-                    shapes.add(shape);
+                    loaded.add(shape);
                 }
             }
         }
-        saveState();
+        return loaded;
+    }
+
+    /**
+     * Save the scene in the binary format (see BinarySceneFormat), which
+     * also keeps groups, opacity, rotation and border styles.
+     */
+    public void saveToBinaryFile(String filename) throws IOException {
+        SceneEvents.Save event = new SceneEvents.Save();
+        event.begin();
+        BinarySceneFormat.write(shapes, Paths.get(filename));
+        event.record(Paths.get(filename), shapes.size());
+    }
+
+    public void loadFromBinaryFile(String filename) throws IOException {
+        SceneEvents.Load event = new SceneEvents.Load();
+        event.begin();
+        replaceShapes(BinarySceneFormat.read(Paths.get(filename)));
+        event.record(Paths.get(filename), shapes.size());
+    }
+
+    /**
+     * Throw away the current shapes and history and use the given shapes instead.
+     */
+    void replaceShapes(List<IShape> loaded) {
+        if (journal != null) {
+            journal.replaced();
+        }
+        for (IShape shape : shapes) {
+            forget(shape);
+        }
+        shapes.clear();
+        List<IShape> copies = new ArrayList<>(loaded.size());
+        for (IShape shape : loaded) {
+            shapes.add(shape);
+            track(shapes.size() - 1, shape);
+            copies.add(freeze(shape));
+        }
+        // build the whole vector at once rather than a shape at a time
+        frozen = ShapeVector.of(copies);
+        // a freshly loaded scene starts with no history
+        undoStack.clear();
+        redoStack.clear();
+        publish();
     }
     
-    private IShape parseShape(String line) {
+    static IShape parseShape(String line) {
         String[] parts = line.split(",");
         if (parts.length < 4) return null;
 
@@ -94,46 +749,360 @@ public class Scene implements Iterable<IShape>
         }
     }
     
+    /**
+     * Draw the shapes back to front, skipping any that can't
+     * show up inside the clip of the given Graphics.
+     * 
+     * Shapes draw straight onto g, so its color, stroke and transform
+     * are saved once here and put back at the end.
+     */
     public void draw(Graphics g) {
-        for (IShape s : shapes) {
-            if (s != null) {
-                s.draw(g);
+        drawRange(g, null, 0, shapes.size());
+    }
+
+    /**
+     * Draw the shapes back to front, skipping any outside the given
+     * rectangle of the scene (usually the part a Viewport shows) or
+     * outside the clip. Only the shapes found in the index for that
+     * rectangle are looked at, so the cost depends on how much of the
+     * scene is visible, not on how big it is.
+     * 
+     * This is for drawing on screen, so shapes that come out small are
+     * drawn in less detail (see setLevelOfDetail()).
+     */
+    public void draw(Graphics g, java.awt.Rectangle visible) {
+        drawRange(g, visible, 0, shapes.size());
+    }
+
+    /**
+     * Draw the given area of the scene, scaled to an image of the given
+     * size. The image is drawn in tiles on several threads (see
+     * SceneRasterizer) and comes out the same as draw() would make it,
+     * except that selected shapes aren't outlined.
+     */
+    public BufferedImage toImage(java.awt.Rectangle area, int width, int height) {
+        return snapshot().toImage(area, width, height);
+    }
+
+    /**
+     * Draw only the shapes behind the given shape (like draw()).
+     */
+    public void drawBehind(Graphics g, IShape shape) {
+        drawBehind(g, null, shape);
+    }
+
+    /**
+     * Draw only the shapes behind the given shape (like draw(g, visible)).
+     */
+    public void drawBehind(Graphics g, java.awt.Rectangle visible, IShape shape) {
+        drawRange(g, visible, 0, positionOf(shape));
+    }
+
+    /**
+     * Draw only the shapes in front of the given shape (like draw()).
+     */
+    public void drawInFront(Graphics g, IShape shape) {
+        drawInFront(g, null, shape);
+    }
+
+    /**
+     * Draw only the shapes in front of the given shape (like draw(g, visible)).
+     */
+    public void drawInFront(Graphics g, java.awt.Rectangle visible, IShape shape) {
+        drawRange(g, visible, positionOf(shape) + 1, shapes.size());
+    }
+
+    /**
+     * Return where the shape is in the list, using its z-order key,
+     * or -1 if it isn't in the scene.
+     */
+    private int positionOf(IShape shape) {
+        Long z = zOrder.get(shape);
+        if (z == null) {
+            return -1;
+        }
+        int low = 0, high = shapes.size() - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            long midZ = zOrder.get(shapes.get(mid));
+            if (midZ < z) {
+                low = mid + 1;
+            } else if (midZ > z) {
+                high = mid - 1;
+            } else {
+                return mid;
             }
         }
+        return -1;
+    }
+
+    /**
+     * Set how draw(g, visible) trades detail for speed on small shapes.
+     * LevelOfDetail.EXACT draws them all exactly.
+     */
+    public void setLevelOfDetail(LevelOfDetail level) {
+        detail.setPolicy(level);
+    }
+
+    public LevelOfDetail getLevelOfDetail() {
+        return detail.getPolicy();
+    }
+
+    private void drawRange(Graphics g, java.awt.Rectangle visible, int from, int to) {
+        if (from < 0 || from >= to) {
+            return;
+        }
+        Graphics2D g2d = (Graphics2D) g;
+        AffineTransform transform = g2d.getTransform();
+        Color color = g2d.getColor();
+        Stroke stroke = g2d.getStroke();
+        try {
+            java.awt.Rectangle area = visibleArea(g2d, visible);
+            int drawn;
+            if (visible != null && !area.isEmpty() && detail.begin(g2d, area)) {
+                try {
+                    drawn = drawShapesInDetail(g2d, area, from, to);
+                } finally {
+                    detail.end();
+                }
+            } else {
+                drawn = drawShapes(g2d, area, from, to);
+            }
+            shapesDrawn += drawn;
+            shapesSkipped += to - from - drawn;
+        } finally {
+            g2d.setTransform(transform);
+            g2d.setColor(color);
+            g2d.setStroke(stroke);
+        }
+    }
+
+    /**
+     * Return the part of the scene that can show up when drawing on g:
+     * the clip (in scene coordinates, whatever transform g has) cut down
+     * to the visible rectangle, if there is one. Null means everything.
+     */
+    private static java.awt.Rectangle visibleArea(Graphics g, java.awt.Rectangle visible) {
+        java.awt.Rectangle clip = g.getClipBounds();
+        if (clip == null || visible == null) {
+            return clip == null ? visible : clip;
+        }
+        return clip.intersection(visible);
+    }
+
+    /**
+     * Draw the shapes at positions from (inclusive) to to (exclusive)
+     * in the list that overlap the given area, or all of them if it is null.
+     * Return how many were drawn.
+     */
+    private int drawShapes(Graphics g, java.awt.Rectangle clip, int from, int to) {
+        if (clip == null) {
+            for (int i = from; i < to; i++) {
+                shapes.get(i).draw(g);
+            }
+            return to - from;
+        }
+        if (clip.isEmpty()) {
+            return 0;
+        }
+        int left = clip.x, right = clip.x + clip.width, top = clip.y, bottom = clip.y + clip.height;
+        List<IShape> visible = index.query(left, right, top, bottom);
+        if (visible.size() > (to - from) / 4) {
+            // most of the range is showing, cheaper to filter the list in order than to sort
+            int drawn = 0;
+            for (int i = from; i < to; i++) {
+                IShape s = shapes.get(i);
+                if (index.overlaps(s, left, right, top, bottom)) {
+                    s.draw(g);
+                    drawn++;
+                }
+            }
+            return drawn;
+        }
+        if (from > 0 || to < shapes.size()) {
+            long lowest = zOrder.get(shapes.get(from));
+            long highest = zOrder.get(shapes.get(to - 1));
+            visible.removeIf(s -> {
+                long z = zOrder.get(s);
+                return z < lowest || z > highest;
+            });
+        }
+        visible.sort(backToFront());
+        for (IShape s : visible) {
+            s.draw(g);
+        }
+        return visible.size();
+    }
+
+    /**
+     * Draw like drawShapes(), but through the DetailRenderer, which
+     * skips the shapes outside the area itself and picks how to draw
+     * the others from their size on screen. Return how many were drawn.
+     */
+    private int drawShapesInDetail(Graphics g, java.awt.Rectangle area, int from, int to) {
+        int left = area.x, right = area.x + area.width, top = area.y, bottom = area.y + area.height;
+        if (index.shareOf(left, right, top, bottom) > 0.25) {
+            // zoomed out over most of the scene: a query would only list nearly everything
+            return detail.drawAll(shapes.subList(from, to));
+        }
+        List<IShape> visible = index.query(left, right, top, bottom);
+        if (from > 0 || to < shapes.size()) {
+            long lowest = zOrder.get(shapes.get(from));
+            long highest = zOrder.get(shapes.get(to - 1));
+            visible.removeIf(s -> {
+                long z = zOrder.get(s);
+                return z < lowest || z > highest;
+            });
+        }
+        visible.sort(backToFront());
+        return detail.drawAll(visible);
     }
     
     public java.util.Iterator<IShape> iterator() {
         return shapes.iterator();
     }
     
+    /**
+     * Return the shapes that contain the given point, back to front.
+     */
     public List<IShape> select(Point point) {
         List<IShape> selected = new ArrayList<>();
-        for (IShape s : shapes) {
+        for (IShape s : index.query(point, 0)) {
             if (s.contains(point)) {
                 selected.add(s);
             }
         }
+        selected.sort(backToFront());
         return selected;
     }
+
+    /**
+     * Return the shapes whose bounding box may be within the given distance
+     * of the point, front to back (top-most first). This can include a few
+     * shapes that are a little further away, so callers still need to do
+     * their own exact test on each shape.
+     */
+    public List<IShape> getShapesNear(Point point, int tolerance) {
+        List<IShape> near = index.query(point, tolerance);
+        near.sort(backToFront().reversed());
+        return near;
+    }
+
+    /**
+     * Return the shapes in the scene that overlap the given shape (see
+     * Collisions.intersects()), back to front. The shape itself is left out.
+     */
+    public List<IShape> getShapesIntersecting(IShape shape) {
+        BoundingBox box = shape.getBoundingBox();
+        List<IShape> found = new ArrayList<>();
+        for (IShape s : index.query(box.getLeft(), box.getRight(), box.getTop(), box.getBottom())) {
+            if (Collisions.intersects(s, shape)) {
+                found.add(s);
+            }
+        }
+        found.sort(backToFront());
+        return found;
+    }
+
+    /**
+     * Return the shapes the rectangle selects (see
+     * SelectionRectangle.selects()), back to front.
+     */
+    public List<IShape> getShapesSelectedBy(SelectionRectangle marquee) {
+        BoundingBox box = marquee.getBoundingBox();
+        List<IShape> found = new ArrayList<>();
+        for (IShape s : index.query(box.getLeft(), box.getRight(), box.getTop(), box.getBottom())) {
+            if (marquee.selects(s)) {
+                found.add(s);
+            }
+        }
+        found.sort(backToFront());
+        return found;
+    }
+
+    /**
+     * Return the shapes that may paint inside the given rectangle (edges
+     * included), in no particular order. Like getShapesNear(), this can
+     * include a few shapes just outside it.
+     */
+    List<IShape> shapesNear(int left, int right, int top, int bottom) {
+        return index.query(left, right, top, bottom);
+    }
+
+    /**
+     * Return every pair of overlapping shapes, in no particular order.
+     * Big scenes are searched on several threads.
+     */
+    public List<ShapePair> findIntersectingPairs() {
+        return findIntersectingPairs(shapes.size() >= PARALLEL_COLLISION_THRESHOLD);
+    }
+
+    /**
+     * Return every pair of overlapping shapes, in no particular order,
+     * searching on the common ForkJoinPool if parallel is true.
+     */
+    public List<ShapePair> findIntersectingPairs(boolean parallel) {
+        return Collisions.findPairs(shapes, parallel ? ForkJoinPool.commonPool() : null);
+    }
+
+    private Comparator<IShape> backToFront() {
+        return Comparator.comparingLong(zOrder::get);
+    }
     
     public void addShape(IShape s) {
-        shapes.add(s);
-        saveState();
+        SceneEvents.Edit event = beginEdit();
+        perform(new ListEdit(new IShape[0], new int[0],
+                new IShape[] { s }, new int[] { shapes.size() }), "add", event);
     }
     
     public void removeSelectedShapes() {
-        shapes.removeIf(IShape::isSelected);
-        saveState();
+        removeShapes(getSelectedShapes());
+    }
+
+    private void removeShapes(List<IShape> toRemove) {
+        SceneEvents.Edit event = beginEdit();
+        List<IShape> removed = new ArrayList<>();
+        int[] positions = positionsOf(toRemove, removed);
+        if (positions.length > 0) {
+            perform(new ListEdit(removed.toArray(new IShape[0]), positions,
+                    new IShape[0], new int[0]), "remove", event);
+        }
     }
     
+    /**
+     * Return the selected shapes, back to front.
+     */
     public List<IShape> getSelectedShapes() {
-        List<IShape> selected = new ArrayList<>();
+        List<IShape> selected = new ArrayList<>(selection);
+        selected.sort(backToFront());
+        return selected;
+    }
+
+    public int getSelectionSize() {
+        return selection.size();
+    }
+
+    public boolean hasSelection() {
+        return !selection.isEmpty();
+    }
+
+    /**
+     * Deselect every selected shape.
+     */
+    public void clearSelection() {
+        for (IShape shape : new ArrayList<>(selection)) {
+            shape.setSelected(false);
+        }
+        // in case a shape changed its selection without telling us
+        selection.clear();
+    }
+
+    public void selectAll() {
         for (IShape shape : shapes) {
-            if (shape.isSelected()) {
-                selected.add(shape);
+            if (!shape.isSelected()) {
+                shape.setSelected(true);
             }
         }
-        return selected;
     }
     
     public List<IShape> getShapes() {
@@ -141,33 +1110,44 @@ public class Scene implements Iterable<IShape>
     }
     
     public void removeShape(IShape shape) {
-        shapes.remove(shape);
-        saveState();
+        removeShapes(Collections.singletonList(shape));
     }
     
     public void groupSelectedShapes() {
-        List<IShape> selected = getSelectedShapes();
-        if (selected.size() > 1) {
+        SceneEvents.Edit event = beginEdit();
+        List<IShape> members = new ArrayList<>();
+        int[] positions = positionsOf(getSelectedShapes(), members);
+        if (members.size() > 1) {
             ShapeGroup group = new ShapeGroup();
-            for (IShape shape : selected) {
+            for (IShape shape : members) {
                 group.addShape(shape);
-                shapes.remove(shape);
             }
-            shapes.add(group);
-            saveState();
+            perform(new ListEdit(members.toArray(new IShape[0]), positions,
+                    new IShape[] { group }, new int[] { shapes.size() - members.size() }), "group", event);
         }
     }
 
     public void ungroupSelectedShapes() {
-        List<IShape> selected = getSelectedShapes();
-        for (IShape shape : selected) {
+        SceneEvents.Edit event = beginEdit();
+        List<IShape> groups = new ArrayList<>();
+        for (IShape shape : getSelectedShapes()) {
             if (shape instanceof ShapeGroup) {
-                ShapeGroup group = (ShapeGroup) shape;
-                shapes.remove(group);
-                shapes.addAll(group.getShapes());
+                groups.add(shape);
             }
         }
-        saveState();
+        List<IShape> found = new ArrayList<>();
+        int[] positions = positionsOf(groups, found);
+        if (positions.length == 0) {
+            return;
+        }
+        // the children of every group go on top, in the order the groups were in
+        List<IShape> children = new ArrayList<>();
+        for (IShape group : found) {
+            children.addAll(((ShapeGroup) group).getShapes());
+        }
+        perform(new ListEdit(found.toArray(new IShape[0]), positions,
+                children.toArray(new IShape[0]),
+                range(shapes.size() - found.size(), children.size())), "ungroup", event);
     }
     
     @Override   
@@ -180,19 +1160,662 @@ public class Scene implements Iterable<IShape>
     }
 
     public void bringToFront(List<IShape> selectedShapes) {
-        saveState();
+        reorder(selectedShapes, true);
+    }
+
+    public void sendToBack(List<IShape> selectedShapes) {
+        reorder(selectedShapes, false);
+    }
+
+    /**
+     * Move the given shapes to the top (or bottom) of the z-order,
+     * keeping them in the order they are given in.
+     */
+    private void reorder(List<IShape> selectedShapes, boolean toFront) {
+        SceneEvents.Edit event = beginEdit();
+        List<IShape> found = new ArrayList<>();
+        int[] positions = positionsOf(selectedShapes, found);
+        if (positions.length == 0) {
+            return;
+        }
+        List<IShape> moved = new ArrayList<>();
+        Set<IShape> seen = Collections.newSetFromMap(new IdentityHashMap<>());
         for (IShape shape : selectedShapes) {
-            shapes.remove(shape);
-            shapes.add(shape);
+            if (zOrder.containsKey(shape) && seen.add(shape)) {
+                moved.add(shape);
+            }
         }
+        int first = toFront ? shapes.size() - moved.size() : 0;
+        perform(new ListEdit(found.toArray(new IShape[0]), positions,
+                moved.toArray(new IShape[0]), range(first, moved.size())),
+                toFront ? "bringToFront" : "sendToBack", event);
     }
 
-    public void sendToBack(List<IShape> selectedShapes) {
-        saveState();
-        for (int i = selectedShapes.size() - 1; i >= 0; i--) {
-            IShape shape = selectedShapes.get(i);
-            shapes.remove(shape);
-            shapes.add(0, shape);
+    /**
+     * Move every selected shape by (dx, dy), as one undoable edit. Moves
+     * of the same shapes in quick succession (a held arrow key) are
+     * merged into the edit before, so they are undone together.
+     */
+    public void moveSelection(int dx, int dy) {
+        SceneEvents.Edit event = beginEdit();
+        List<IShape> found = new ArrayList<>();
+        int[] positions = selectedPositions(found);
+        if (positions.length == 0 || (dx == 0 && dy == 0)) {
+            return;
+        }
+        IShape[] targets = found.toArray(new IShape[0]);
+        if (redoStack.isEmpty() && undoStack.peek() instanceof MoveEdit) {
+            MoveEdit last = (MoveEdit) undoStack.peek();
+            if (last.canMerge(targets)) {
+                transformAll(targets, positions, i -> targets[i].move(dx, dy));
+                last.merge(dx, dy);
+                publish();
+                event.record("move", last);
+                return;
+            }
+        }
+        perform(new MoveEdit(targets, positions, dx, dy), "move", event);
+    }
+
+    /**
+     * Scale every selected shape by the factor, as one undoable edit.
+     */
+    public void scaleSelection(double factor) {
+        changeSelection("scale", shape -> shape.scale(factor));
+    }
+
+    /**
+     * Turn every selected shape by the given number of degrees, as one
+     * undoable edit.
+     */
+    public void rotateSelection(double degrees) {
+        changeSelection("rotate", shape -> shape.rotate(degrees));
+    }
+
+    /**
+     * Add delta (which may be negative) to the opacity of every selected
+     * shape, keeping it between 0 and 1, as one undoable edit.
+     */
+    public void changeSelectionOpacity(double delta) {
+        changeSelection("opacity", shape -> shape.setOpacity(Math.max(0, Math.min(1, shape.getOpacity() + delta))));
+    }
+
+    private void changeSelection(String operation, Consumer<IShape> change) {
+        SceneEvents.Edit event = beginEdit();
+        List<IShape> found = new ArrayList<>();
+        int[] positions = selectedPositions(found);
+        if (positions.length > 0) {
+            perform(new ChangeEdit(found.toArray(new IShape[0]), positions, change), operation, event);
+        }
+    }
+
+    /**
+     * Like positionsOf(getSelectedShapes(), found), but when much of the
+     * scene is selected, walk the list in order instead of sorting.
+     */
+    private int[] selectedPositions(List<IShape> found) {
+        if (selection.size() < shapes.size() / 16) {
+            return positionsOf(new ArrayList<>(selection), found);
+        }
+        int[] positions = new int[selection.size()];
+        int count = 0;
+        for (int i = 0; i < shapes.size() && count < positions.length; i++) {
+            IShape shape = shapes.get(i);
+            if (selection.contains(shape)) {
+                positions[count++] = i;
+                found.add(shape);
+            }
+        }
+        return count == positions.length ? positions : Arrays.copyOf(positions, count);
+    }
+
+    /**
+     * An edit that moves some shapes by the same amount. Undo moves them
+     * back, which is exact, so nothing else needs remembering.
+     */
+    private class MoveEdit implements SceneEdit
+    {
+        private final IShape[] moved;
+        private final int[] positions;
+        private int dx;
+        private int dy;
+        private long lastMove = System.nanoTime();
+
+        MoveEdit(IShape[] moved, int[] positions, int dx, int dy) {
+            this.moved = moved;
+            this.positions = positions;
+            this.dx = dx;
+            this.dy = dy;
+        }
+
+        /**
+         * Is this a recent move of exactly these shapes?
+         */
+        boolean canMerge(IShape[] shapes) {
+            if (System.nanoTime() - lastMove > MERGE_MOVES_NANOS || shapes.length != moved.length) {
+                return false;
+            }
+            for (int i = 0; i < shapes.length; i++) {
+                if (shapes[i] != moved[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Count a further move, which the caller has already made, as part of this edit.
+         */
+        void merge(int dx, int dy) {
+            this.dx += dx;
+            this.dy += dy;
+            lastMove = System.nanoTime();
+        }
+
+        @Override
+        public void redo() {
+            int x = dx, y = dy;
+            transformAll(moved, positions, i -> moved[i].move(x, y));
+        }
+
+        @Override
+        public void undo() {
+            int x = dx, y = dy;
+            transformAll(moved, positions, i -> moved[i].move(-x, -y));
+        }
+
+        @Override
+        public long sizeInBytes() {
+            return OBJECT_BYTES + arrayBytes(moved.length) * 2;
+        }
+
+        @Override
+        public int shapeCount() {
+            return moved.length;
+        }
+    }
+
+    /**
+     * An edit that scales, turns or changes the opacity of some shapes.
+     * Those changes can't always be reversed by the opposite change (sizes
+     * are rounded, a group's opacity overwrites its children's), so the
+     * first redo saves the form (see saveForm()) of every shape, and of
+     * every shape inside it, before and after the change. Undo and redo
+     * then put the saved values back in place, but only the ones the
+     * change altered: a shape dragged, recolored or turned after a
+     * scale keeps that when the scale is undone.
+     */
+    private class ChangeEdit implements SceneEdit
+    {
+        private final IShape[] changed;
+        private final int[] positions;
+        private final Consumer<IShape> change;
+        // where each shape's form starts in before and after
+        private final int[] starts;
+        private double[] before;
+        private double[] after;
+
+        ChangeEdit(IShape[] changed, int[] positions, Consumer<IShape> change) {
+            this.changed = changed;
+            this.positions = positions;
+            this.change = change;
+            starts = new int[changed.length + 1];
+            for (int i = 0; i < changed.length; i++) {
+                starts[i + 1] = starts[i] + formSize(changed[i]);
+            }
+        }
+
+        /**
+         * Make an edit whose forms have already been saved.
+         */
+        ChangeEdit(IShape[] changed, int[] positions, double[] before, double[] after) throws IOException {
+            this(changed, positions, (Consumer<IShape>) null);
+            if (before.length != starts[changed.length] || after.length != before.length) {
+                throw new IOException("Spilled edit doesn't fit the scene");
+            }
+            this.before = before;
+            this.after = after;
+        }
+
+        @Override
+        public void redo() {
+            if (after == null) {
+                double[] from = new double[starts[changed.length]];
+                double[] to = new double[from.length];
+                transformAll(changed, positions, i -> {
+                    saveForm(changed[i], from, starts[i]);
+                    change.accept(changed[i]);
+                    saveForm(changed[i], to, starts[i]);
+                });
+                before = from;
+                after = to;
+                return;
+            }
+            transformAll(changed, positions, i -> restoreForm(changed[i], after, before, starts[i]));
+        }
+
+        @Override
+        public void undo() {
+            transformAll(changed, positions, i -> restoreForm(changed[i], before, after, starts[i]));
+        }
+
+        @Override
+        public long sizeInBytes() {
+            return OBJECT_BYTES + arrayBytes(changed.length) * 3 + (OBJECT_BYTES + 8L * starts[changed.length]) * 2;
+        }
+
+        @Override
+        public int shapeCount() {
+            return changed.length;
+        }
+    }
+
+    // a shape's form: rotation, opacity, then two sizes (width and height, or radius and 0)
+    private static final int FORM_SLOTS = 4;
+
+    /**
+     * Return how many values saveForm() writes for the shape.
+     */
+    private static int formSize(IShape shape) {
+        int size = FORM_SLOTS;
+        if (shape instanceof ShapeGroup) {
+            for (IShape child : ((ShapeGroup) shape).getShapes()) {
+                size += formSize(child);
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Save what scaling, turning and setting the opacity change in the
+     * shape, and then in each shape inside it, starting at form[at].
+     * Returns where the next shape's form starts.
+     */
+    private static int saveForm(IShape shape, double[] form, int at) {
+        form[at] = shape.getRotation();
+        form[at + 1] = shape.getOpacity();
+        if (shape instanceof Square) {
+            form[at + 2] = ((Square) shape).getSize();
+        } else if (shape instanceof Rectangle) {
+            form[at + 2] = ((Rectangle) shape).getWidth();
+            form[at + 3] = ((Rectangle) shape).getHeight();
+        } else if (shape instanceof Circle) {
+            form[at + 2] = ((Circle) shape).getRadius();
+        }
+        at += FORM_SLOTS;
+        if (shape instanceof ShapeGroup) {
+            for (IShape child : ((ShapeGroup) shape).getShapes()) {
+                at = saveForm(child, form, at);
+            }
+        }
+        return at;
+    }
+
+    /**
+     * Put back, from form, each value saved by saveForm() that differs
+     * from the one in other, leaving the rest of the shape as it is now.
+     * Returns where the next shape's form starts.
+     */
+    private static int restoreForm(IShape shape, double[] form, double[] other, int at) {
+        if (shape instanceof ShapeGroup) {
+            ShapeGroup group = (ShapeGroup) shape;
+            if (form[at] != other[at] || form[at + 1] != other[at + 1]) {
+                // the group's own values only; its children come next
+                group.restoreState(group.getColor(), group.getAnchorPoint(),
+                        form[at] != other[at] ? form[at] : group.getRotation(),
+                        form[at + 1] != other[at + 1] ? form[at + 1] : group.getOpacity(),
+                        group.getBorderStyle());
+            }
+            at += FORM_SLOTS;
+            for (IShape child : group.getShapes()) {
+                at = restoreForm(child, form, other, at);
+            }
+            return at;
+        }
+        if (form[at] != other[at] && shape instanceof AbstractShape) {
+            ((AbstractShape) shape).restoreRotation(form[at]);
+        }
+        if (form[at + 1] != other[at + 1]) {
+            shape.setOpacity(form[at + 1]);
+        }
+        if (form[at + 2] != other[at + 2] || form[at + 3] != other[at + 3]) {
+            if (shape instanceof Square) {
+                ((Square) shape).setSize((int) form[at + 2]);
+            } else if (shape instanceof Rectangle) {
+                ((Rectangle) shape).setSize((int) form[at + 2], (int) form[at + 3]);
+            } else if (shape instanceof Circle) {
+                ((Circle) shape).setRadius((int) form[at + 2]);
+            }
+        }
+        return at + FORM_SLOTS;
+    }
+
+    /**
+     * Writes the edits of the undo or the redo stack for EditHistory, and
+     * reads them back just before they are undone or redone.
+     *
+     * At that point the scene is exactly as the edit left it (for undo) or
+     * found it (for redo), so the shapes the edit expects to be in the
+     * scene are found there by position, and are the very objects the
+     * edits next to it on the other stack refer to. Only the shapes the
+     * edit brings into the scene are written out, and any of those (or of
+     * their children) that are in the scene at the time, like the
+     * children of a group being put back together, are written as a path
+     * to where they are rather than as copies, which would go stale.
+     *
+     * <pre>
+     * edit:    byte LIST, int[] before positions, int[] after positions, shapes brought in
+     *          byte MOVE, int[] positions, int dx, int dy
+     *          byte CHANGE, int[] positions, int form length, double[] forms before, double[] forms after
+     * int[]:   int length, then the values
+     * shape:   byte REF, int position in the edit, int depth, then a child index per level
+     *          byte LEAF, boolean selected, the shape's record (see BinarySceneFormat.encode())
+     *          byte GROUP, boolean selected, int argb, int x, int y, double rotation,
+     *          double opacity, byte border style, int child count, then the children
+     * </pre>
+     */
+    private class EditCodec implements EditHistory.Codec
+    {
+        private static final byte LIST = 1;
+        private static final byte MOVE = 2;
+        private static final byte CHANGE = 3;
+        private static final byte REF = 1;
+        private static final byte LEAF = 2;
+        private static final byte GROUP = 3;
+
+        // true for the undo stack, whose edits will be undone next
+        private final boolean undoing;
+
+        EditCodec(boolean undoing) {
+            this.undoing = undoing;
+        }
+
+        @Override
+        public void write(SceneEdit edit, DataOutputStream out) throws IOException {
+            if (edit instanceof ListEdit) {
+                ListEdit list = (ListEdit) edit;
+                out.writeByte(LIST);
+                writeInts(list.beforePositions, out);
+                writeInts(list.afterPositions, out);
+                writeShapes(undoing ? list.before : list.after, undoing ? list.after : list.before, out);
+            } else if (edit instanceof MoveEdit) {
+                MoveEdit move = (MoveEdit) edit;
+                out.writeByte(MOVE);
+                writeInts(move.positions, out);
+                out.writeInt(move.dx);
+                out.writeInt(move.dy);
+            } else if (edit instanceof ChangeEdit) {
+                ChangeEdit change = (ChangeEdit) edit;
+                out.writeByte(CHANGE);
+                writeInts(change.positions, out);
+                out.writeInt(change.before.length);
+                for (double value : change.before) {
+                    out.writeDouble(value);
+                }
+                for (double value : change.after) {
+                    out.writeDouble(value);
+                }
+            } else {
+                throw new IOException("Can't write edit: " + edit);
+            }
+        }
+
+        @Override
+        public SceneEdit read(DataInputStream in) throws IOException {
+            byte kind = in.readByte();
+            if (kind == LIST) {
+                int[] beforePositions = readInts(in);
+                int[] afterPositions = readInts(in);
+                if (undoing) {
+                    IShape[] after = shapesAt(afterPositions);
+                    return new ListEdit(readShapes(beforePositions.length, after, in), beforePositions, after, afterPositions);
+                }
+                IShape[] before = shapesAt(beforePositions);
+                return new ListEdit(before, beforePositions, readShapes(afterPositions.length, before, in), afterPositions);
+            } else if (kind == MOVE) {
+                int[] positions = readInts(in);
+                int dx = in.readInt();
+                int dy = in.readInt();
+                return new MoveEdit(shapesAt(positions), positions, dx, dy);
+            } else if (kind == CHANGE) {
+                int[] positions = readInts(in);
+                int length = in.readInt();
+                if (length < 0) {
+                    throw new IOException("Bad length " + length + " in spilled history");
+                }
+                double[] before = new double[length];
+                double[] after = new double[length];
+                for (int i = 0; i < length; i++) {
+                    before[i] = in.readDouble();
+                }
+                for (int i = 0; i < length; i++) {
+                    after[i] = in.readDouble();
+                }
+                return new ChangeEdit(shapesAt(positions), positions, before, after);
+            }
+            throw new IOException("Bad edit kind " + kind + " in spilled history");
+        }
+
+        private IShape[] shapesAt(int[] positions) throws IOException {
+            IShape[] found = new IShape[positions.length];
+            for (int i = 0; i < positions.length; i++) {
+                if (positions[i] < 0 || positions[i] >= shapes.size()) {
+                    throw new IOException("Spilled edit doesn't fit the scene");
+                }
+                found[i] = shapes.get(positions[i]);
+            }
+            return found;
+        }
+
+        /**
+         * Write the shapes, using paths into present for any of them (or
+         * of their children) found there.
+         */
+        private void writeShapes(IShape[] shapes, IShape[] present, DataOutputStream out) throws IOException {
+            Map<IShape, int[]> paths = new IdentityHashMap<>();
+            for (int i = 0; i < present.length; i++) {
+                addPaths(present[i], new int[] { i }, paths);
+            }
+            ByteBuffer record = ByteBuffer.allocate(BinarySceneFormat.RECORD_SIZE);
+            for (IShape shape : shapes) {
+                writeShape(shape, paths, record, out);
+            }
+        }
+
+        private void addPaths(IShape shape, int[] path, Map<IShape, int[]> paths) {
+            paths.put(shape, path);
+            if (shape instanceof ShapeGroup) {
+                List<IShape> children = ((ShapeGroup) shape).getShapes();
+                for (int i = 0; i < children.size(); i++) {
+                    int[] childPath = Arrays.copyOf(path, path.length + 1);
+                    childPath[path.length] = i;
+                    addPaths(children.get(i), childPath, paths);
+                }
+            }
+        }
+
+        private void writeShape(IShape shape, Map<IShape, int[]> paths, ByteBuffer record, DataOutputStream out)
+                throws IOException {
+            int[] path = paths.get(shape);
+            if (path != null) {
+                out.writeByte(REF);
+                out.writeInt(path[0]);
+                writeInts(Arrays.copyOfRange(path, 1, path.length), out);
+            } else if (shape instanceof ShapeGroup) {
+                out.writeByte(GROUP);
+                out.writeBoolean(shape.isSelected());
+                out.writeInt(shape.getColor().getRGB());
+                out.writeInt(shape.getAnchorPoint().x);
+                out.writeInt(shape.getAnchorPoint().y);
+                out.writeDouble(shape.getRotation());
+                out.writeDouble(shape.getOpacity());
+                out.writeByte(shape.getBorderStyle().ordinal());
+                List<IShape> children = ((ShapeGroup) shape).getShapes();
+                out.writeInt(children.size());
+                for (IShape child : children) {
+                    writeShape(child, paths, record, out);
+                }
+            } else {
+                out.writeByte(LEAF);
+                out.writeBoolean(shape.isSelected());
+                record.clear();
+                BinarySceneFormat.encode(shape, record);
+                out.write(record.array());
+            }
+        }
+
+        private IShape[] readShapes(int count, IShape[] present, DataInputStream in) throws IOException {
+            IShape[] read = new IShape[count];
+            byte[] record = new byte[BinarySceneFormat.RECORD_SIZE];
+            for (int i = 0; i < count; i++) {
+                read[i] = readShape(present, record, in);
+            }
+            return read;
+        }
+
+        private IShape readShape(IShape[] present, byte[] record, DataInputStream in) throws IOException {
+            byte tag = in.readByte();
+            if (tag == REF) {
+                int top = in.readInt();
+                if (top < 0 || top >= present.length) {
+                    throw new IOException("Bad shape reference in spilled history");
+                }
+                IShape shape = present[top];
+                for (int child : readInts(in)) {
+                    if (!(shape instanceof ShapeGroup) || child < 0 || child >= ((ShapeGroup) shape).getShapes().size()) {
+                        throw new IOException("Bad shape reference in spilled history");
+                    }
+                    shape = ((ShapeGroup) shape).getShapes().get(child);
+                }
+                return shape;
+            } else if (tag == GROUP) {
+                boolean selected = in.readBoolean();
+                Color color = new Color(in.readInt(), true);
+                Point anchor = new Point(in.readInt(), in.readInt());
+                double rotation = in.readDouble();
+                double opacity = in.readDouble();
+                int border = in.readByte();
+                if (border < 0 || border >= BorderStyle.values().length) {
+                    throw new IOException("Bad border style " + border + " in spilled history");
+                }
+                ShapeGroup group = new ShapeGroup();
+                int count = in.readInt();
+                for (int i = 0; i < count; i++) {
+                    group.addShape(readShape(present, record, in));
+                }
+                group.restoreState(color, anchor, rotation, opacity, BorderStyle.values()[border]);
+                group.restoreSelected(selected);
+                return group;
+            } else if (tag == LEAF) {
+                boolean selected = in.readBoolean();
+                in.readFully(record);
+                IShape shape = BinarySceneFormat.decode(ByteBuffer.wrap(record));
+                if (selected) {
+                    shape.setSelected(true);
+                }
+                return shape;
+            }
+            throw new IOException("Bad shape tag " + tag + " in spilled history");
+        }
+
+        private void writeInts(int[] values, DataOutputStream out) throws IOException {
+            out.writeInt(values.length);
+            for (int value : values) {
+                out.writeInt(value);
+            }
+        }
+
+        private int[] readInts(DataInputStream in) throws IOException {
+            int length = in.readInt();
+            if (length < 0) {
+                throw new IOException("Bad length " + length + " in spilled history");
+            }
+            int[] values = new int[length];
+            for (int i = 0; i < length; i++) {
+                values[i] = in.readInt();
+            }
+            return values;
+        }
+    }
+
+    /**
+     * Change the given shapes, found at the given positions, and bring
+     * the index, dirty region, frozen copies and journal up to date once
+     * for all of them. change is given the index of each shape to change.
+     * The shapes are changed on several threads when there are many, so
+     * the change must only touch the shape whose index it is given.
+     */
+    private void transformAll(IShape[] targets, int[] positions, IntConsumer change) {
+        BoundingBox[] extents = new BoundingBox[targets.length];
+        IShape[] copies = new IShape[targets.length];
+        bulk = true;
+        try {
+            forEach(targets.length, i -> {
+                change.accept(i);
+                extents[i] = extentOf(targets[i]);
+                copies[i] = freeze(targets[i]);
+            });
+        } finally {
+            bulk = false;
+        }
+        markDirty(index.updateAll(targets, extents));
+        int left = Integer.MAX_VALUE, right = Integer.MIN_VALUE, top = Integer.MAX_VALUE, bottom = Integer.MIN_VALUE;
+        for (BoundingBox extent : extents) {
+            left = Math.min(left, extent.getLeft());
+            right = Math.max(right, extent.getRight());
+            top = Math.min(top, extent.getTop());
+            bottom = Math.max(bottom, extent.getBottom());
+        }
+        if (extents.length > 0) {
+            markDirty(new BoundingBox(left, right, top, bottom));
+        }
+        backgroundVersion++;
+        setFrozen(positions, copies);
+    }
+
+    /**
+     * Replace the frozen copies at the given positions, and tell the journal.
+     */
+    private void setFrozen(int[] positions, IShape[] copies) {
+        if (copies.length > frozen.size() / 8) {
+            // cheaper to build the vector again than to copy a path per shape
+            List<IShape> all = new ArrayList<>(frozen.size());
+            for (IShape copy : frozen) {
+                all.add(copy);
+            }
+            for (int i = 0; i < positions.length; i++) {
+                all.set(positions[i], copies[i]);
+            }
+            frozen = ShapeVector.of(all);
+        } else {
+            for (int i = 0; i < positions.length; i++) {
+                frozen = frozen.set(positions[i], copies[i]);
+            }
+        }
+        if (journal == null) {
+            return;
+        }
+        if (copies.length > shapes.size() / 2) {
+            // a checkpoint of the scene is smaller than this many changes
+            journal.replaced();
+            return;
+        }
+        for (int i = 0; i < positions.length; i++) {
+            journal.changed(positions[i], copies[i]);
+        }
+    }
+
+    /**
+     * Run the body for 0 to count - 1, on the common ForkJoinPool if
+     * there are enough of them to be worth it.
+     */
+    private static void forEach(int count, IntConsumer body) {
+        if (count >= PARALLEL_TRANSFORM_THRESHOLD) {
+            IntStream.range(0, count).parallel().forEach(body);
+        } else {
+            for (int i = 0; i < count; i++) {
+                body.accept(i);
+            }
         }
     }
 }
@@ -0,0 +1,35 @@
+package drawshapes;
+
+/**
+ * One change to a Scene that can be undone and redone.
+ *
+ * The Scene keeps a stack of these for undo and another for redo.
+ * An edit only remembers what it touched (which shapes, and where
+ * they were in the z-order), never a copy of the whole scene, so
+ * undoing or redoing costs about as much as the edit itself.
+ */
+interface SceneEdit
+{
+    /**
+     * Put the scene back the way it was before this edit.
+     */
+    void undo();
+
+    /**
+     * Apply this edit (again).
+     */
+    void redo();
+
+    /**
+     * Return roughly how many bytes of heap this edit keeps alive: its
+     * own arrays, plus the shapes only it still refers to (the ones it
+     * took out of or put into the scene).
+     */
+    long sizeInBytes();
+
+    /**
+     * Return how many shapes the edit takes out of the scene or puts
+     * into it, whichever is more.
+     */
+    int shapeCount();
+}
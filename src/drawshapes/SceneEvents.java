@@ -0,0 +1,142 @@
+package drawshapes;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Java Flight Recorder events for the editor operations that can stall
+ * the program, so a recording (e.g. jcmd <pid> JFR.start) shows them
+ * next to the GC and allocation events of the same moment.
+ *
+ * Each operation makes its event and calls begin() before the work, then
+ * one of the record() methods after it. When no recording is running,
+ * shouldCommit() is false, the fields are never filled in and the JIT
+ * removes the event object, so the events cost nothing.
+ */
+final class SceneEvents
+{
+    private SceneEvents() {}
+
+    @Name("drawshapes.Load")
+    @Label("Load Scene")
+    @Category("DrawShapes")
+    @Description("Reading a scene file")
+    static final class Load extends Event
+    {
+        @Label("File")
+        String path;
+
+        @Label("Shapes")
+        int shapeCount;
+
+        @Label("File Size")
+        @DataAmount
+        long bytes;
+
+        void record(Path file, int shapeCount) {
+            if (shouldCommit()) {
+                path = file.toString();
+                this.shapeCount = shapeCount;
+                bytes = sizeOf(file);
+                commit();
+            }
+        }
+    }
+
+    @Name("drawshapes.Save")
+    @Label("Save Scene")
+    @Category("DrawShapes")
+    @Description("Writing a scene file")
+    static final class Save extends Event
+    {
+        @Label("File")
+        String path;
+
+        @Label("Shapes")
+        int shapeCount;
+
+        @Label("File Size")
+        @DataAmount
+        long bytes;
+
+        void record(Path file, int shapeCount) {
+            if (shouldCommit()) {
+                path = file.toString();
+                this.shapeCount = shapeCount;
+                bytes = sizeOf(file);
+                commit();
+            }
+        }
+    }
+
+    @Name("drawshapes.Edit")
+    @Label("Scene Edit")
+    @Category("DrawShapes")
+    @Description("An edit to the scene, or undoing or redoing one")
+    static final class Edit extends Event
+    {
+        @Label("Operation")
+        String operation;
+
+        @Label("Shapes")
+        @Description("Shapes taken out of or put into the scene, whichever is more")
+        int shapeCount;
+
+        @Label("History Size")
+        @Description("Heap the edit keeps alive in the undo history (estimated)")
+        @DataAmount
+        long bytes;
+
+        void record(String operation, SceneEdit edit) {
+            if (shouldCommit()) {
+                this.operation = operation;
+                shapeCount = edit.shapeCount();
+                bytes = edit.sizeInBytes();
+                commit();
+            }
+        }
+    }
+
+    @Name("drawshapes.Paint")
+    @Label("Paint")
+    @Category("DrawShapes")
+    @Description("One paint of the drawing panel")
+    static final class Paint extends Event
+    {
+        @Label("Shapes Drawn")
+        long shapesDrawn;
+
+        @Label("Shapes Skipped")
+        long shapesSkipped;
+
+        @Label("Allocated")
+        @Description("Bytes the Swing thread allocated drawing the scene, or -1 if unknown")
+        @DataAmount
+        long bytes;
+
+        void record(long shapesDrawn, long shapesSkipped, long bytes) {
+            if (shouldCommit()) {
+                this.shapesDrawn = shapesDrawn;
+                this.shapesSkipped = shapesSkipped;
+                this.bytes = bytes;
+                commit();
+            }
+        }
+    }
+
+    private static long sizeOf(Path file) {
+        try {
+            return Files.size(file);
+        } catch (IOException ex) {
+            return -1;
+        }
+    }
+}
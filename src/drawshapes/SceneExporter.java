@@ -0,0 +1,293 @@
+package drawshapes;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.reflect.Method;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+import javax.imageio.ImageIO;
+
+/**
+ * Renders scene files to PNG images without opening a window, so scenes
+ * can be converted in bulk on a machine with no display:
+ *
+ * <pre>
+ * java -Djava.awt.headless=true -cp ... drawshapes.SceneExporter
+ *         [--out DIR] [--parallel N] [--max-size PIXELS] FILE_OR_DIRECTORY...
+ * </pre>
+ *
+ * A directory stands for the files directly inside it. Each scene is
+ * read into a plain list of shapes (no Scene, so no index, snapshot or
+ * history is built for it), drawn onto a white image covering the canvas
+ * origin and every shape, and written next to the scene file, or into
+ * the --out directory, with .png added to its name (scene.txt becomes
+ * scene.txt.png), so scenes differing only in extension don't overwrite
+ * each other. If two files would still get the same image (the same name
+ * in two directories, with --out), the later one fails instead. Images
+ * are scaled down so neither side is longer than --max-size.
+ *
+ * Every file gets its own task, and at most --parallel of them (by
+ * default one per core) load and draw at the same time. The images being
+ * drawn also share half the heap between them: a task waits for its
+ * image's share before making it, so a batch of big scenes runs fewer at
+ * a time instead of running out of memory (an image bigger than that
+ * waits until it can have the whole share to itself). On a JVM with
+ * virtual threads each task gets a virtual thread; otherwise a fixed
+ * pool of that many threads is used. At the end it prints how many
+ * files were done per second, the median and 99th percentile time per
+ * file, and the peak heap use.
+ */
+public final class SceneExporter
+{
+    private static final int DEFAULT_MAX_SIZE = 8192;
+
+    private final Path outputDirectory;
+    private final int parallelism;
+    private final int maxSize;
+    // kilobytes of heap the images being drawn may take between them
+    private final int imageBudget;
+    private final Semaphore imageMemory;
+
+    SceneExporter(Path outputDirectory, int parallelism, int maxSize) {
+        this.outputDirectory = outputDirectory;
+        this.parallelism = parallelism;
+        this.maxSize = maxSize;
+        imageBudget = (int) Math.min(Integer.MAX_VALUE, Runtime.getRuntime().maxMemory() / 2 >> 10);
+        imageMemory = new Semaphore(imageBudget, true);
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        System.setProperty("java.awt.headless", "true");
+        Path out = null;
+        int parallelism = Runtime.getRuntime().availableProcessors();
+        int maxSize = DEFAULT_MAX_SIZE;
+        List<Path> files = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--out":
+                    out = Paths.get(argument(args, ++i));
+                    break;
+                case "--parallel":
+                    parallelism = Integer.parseInt(argument(args, ++i));
+                    break;
+                case "--max-size":
+                    maxSize = Integer.parseInt(argument(args, ++i));
+                    break;
+                default:
+                    addSceneFiles(Paths.get(args[i]), files);
+            }
+        }
+        if (files.isEmpty() || parallelism < 1 || maxSize < 1) {
+            System.err.println("usage: SceneExporter [--out DIR] [--parallel N] [--max-size PIXELS] FILE_OR_DIRECTORY...");
+            System.exit(2);
+        }
+        if (out != null) {
+            Files.createDirectories(out);
+        }
+        int failed = new SceneExporter(out, parallelism, maxSize).exportAll(files);
+        System.exit(failed == 0 ? 0 : 1);
+    }
+
+    private static String argument(String[] args, int i) {
+        if (i >= args.length) {
+            throw new IllegalArgumentException("Missing value for " + args[i - 1]);
+        }
+        return args[i];
+    }
+
+    /**
+     * Add the file, or the scene files directly inside the directory.
+     */
+    private static void addSceneFiles(Path path, List<Path> files) throws IOException {
+        if (!Files.isDirectory(path)) {
+            files.add(path);
+            return;
+        }
+        try (Stream<Path> listing = Files.list(path)) {
+            listing.filter(Files::isRegularFile)
+                    .filter(p -> !p.getFileName().toString().startsWith("."))
+                    .filter(p -> !p.getFileName().toString().toLowerCase().endsWith(".png"))
+                    .sorted()
+                    .forEach(files::add);
+        }
+    }
+
+    /**
+     * Export all the files and print a report. Returns how many failed.
+     */
+    int exportAll(List<Path> files) throws InterruptedException {
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                pool.resetPeakUsage();
+            }
+        }
+        long[] nanos = new long[files.size()];
+        AtomicInteger failed = new AtomicInteger();
+        Set<Path> outputs = new HashSet<>();
+        boolean[] clashes = new boolean[files.size()];
+        for (int i = 0; i < files.size(); i++) {
+            clashes[i] = !outputs.add(outputFor(files.get(i)));
+        }
+        Semaphore running = new Semaphore(parallelism);
+        long start = System.nanoTime();
+        ExecutorService executor = newExecutor(parallelism);
+        try {
+            for (int i = 0; i < files.size(); i++) {
+                int n = i;
+                executor.execute(() -> {
+                    running.acquireUninterruptibly();
+                    long begin = System.nanoTime();
+                    try {
+                        if (clashes[n]) {
+                            throw new IOException("Another file is already written to " + outputFor(files.get(n)));
+                        }
+                        export(files.get(n));
+                    } catch (IOException | RuntimeException | OutOfMemoryError e) {
+                        failed.incrementAndGet();
+                        System.err.println(files.get(n) + ": " + e);
+                    } finally {
+                        nanos[n] = System.nanoTime() - begin;
+                        running.release();
+                    }
+                });
+            }
+        } finally {
+            executor.shutdown();
+        }
+        executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        long elapsed = System.nanoTime() - start;
+
+        Arrays.sort(nanos);
+        System.out.printf("exported %d files (%d failed) in %.1f s: %.1f files/s, p50 %.1f ms, p99 %.1f ms, peak heap %d MB%n",
+                files.size() - failed.get(), failed.get(), elapsed / 1e9,
+                files.size() / (elapsed / 1e9),
+                percentile(nanos, 50) / 1e6, percentile(nanos, 99) / 1e6,
+                peakHeapBytes() >> 20);
+        return failed.get();
+    }
+
+    /**
+     * Use a virtual thread per task if this JVM has them (Java 21 and
+     * later), otherwise a pool with as many threads as may run at once.
+     */
+    private static ExecutorService newExecutor(int parallelism) {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newFixedThreadPool(parallelism);
+        }
+    }
+
+    /**
+     * Load one scene file and write it out as a PNG.
+     */
+    void export(Path file) throws IOException {
+        List<IShape> shapes = BinarySceneFormat.isBinarySceneFile(file.toString())
+                ? BinarySceneFormat.read(file) : Scene.readTextFile(file);
+        java.awt.Rectangle area = canvasOf(shapes);
+        double scale = Math.min(1.0, (double) maxSize / Math.max(area.width, area.height));
+        int width = Math.max(1, (int) Math.ceil(area.width * scale));
+        int height = Math.max(1, (int) Math.ceil(area.height * scale));
+
+        // TYPE_INT_RGB takes 4 bytes a pixel
+        int kilobytes = (int) Math.min(imageBudget, ((long) width * height * 4 + 1023) >> 10);
+        imageMemory.acquireUninterruptibly(kilobytes);
+        try {
+            // the image is made and dropped in there, so it is garbage by the time the memory is given back
+            writeImage(shapes, area, scale, width, height, outputFor(file));
+        } finally {
+            imageMemory.release(kilobytes);
+        }
+    }
+
+    /**
+     * Draw the shapes onto a white image of the given size, showing the
+     * area at the given scale, and write it out as a PNG.
+     */
+    private static void writeImage(List<IShape> shapes, java.awt.Rectangle area, double scale,
+            int width, int height, Path png) throws IOException {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = image.createGraphics();
+        try {
+            g.setColor(Color.WHITE);
+            g.fillRect(0, 0, width, height);
+            g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+            g.scale(scale, scale);
+            g.translate(-area.x, -area.y);
+            for (IShape shape : shapes) {
+                shape.draw(g);
+            }
+        } finally {
+            g.dispose();
+        }
+        if (!ImageIO.write(image, "png", png.toFile())) {
+            throw new IOException("No PNG writer available for " + png);
+        }
+    }
+
+    /**
+     * Return the area to draw: the canvas origin and everything any
+     * shape paints.
+     */
+    private static java.awt.Rectangle canvasOf(List<IShape> shapes) {
+        java.awt.Rectangle area = new java.awt.Rectangle(0, 0, 1, 1);
+        for (IShape shape : shapes) {
+            BoundingBox extent = Scene.extentOf(shape);
+            area.add(new java.awt.Rectangle(extent.getLeft(), extent.getTop(),
+                    extent.getWidth() + 1, extent.getHeight() + 1));
+        }
+        return area;
+    }
+
+    private Path outputFor(Path file) {
+        String png = file.getFileName().toString() + ".png";
+        Path directory = outputDirectory != null ? outputDirectory : file.toAbsolutePath().getParent();
+        return directory.resolve(png).normalize();
+    }
+
+    /**
+     * Return the value below which the given percent of the (sorted)
+     * values fall, by the nearest-rank method.
+     */
+    private static long percentile(long[] sorted, int percent) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int rank = (int) Math.ceil(percent / 100.0 * sorted.length);
+        return sorted[Math.max(0, rank - 1)];
+    }
+
+    /**
+     * Return the sum of the peak use of each heap pool since the export
+     * started (the pools may peak at different times, so this can be a
+     * little more than the heap ever held at once).
+     */
+    private static long peakHeapBytes() {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                peak += pool.getPeakUsage().getUsed();
+            }
+        }
+        return peak;
+    }
+}
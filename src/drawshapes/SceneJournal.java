@@ -0,0 +1,571 @@
+package drawshapes;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * Keeps a scene safe from crashes by writing every change to an
+ * append-only journal, so the scene can be rebuilt exactly after the
+ * program dies, without ever rewriting the whole scene to save it.
+ *
+ * The scene tells the journal about every shape it inserts, removes or
+ * changes (as the frozen copies it makes for snapshots) and when a
+ * change is complete. A complete change becomes one transaction: a frame
+ * with a length and a CRC32, holding all of its operations, so recovery
+ * replays either all of a change or none of it. Frames are handed to a
+ * background thread through a queue. That thread sleeps until a frame
+ * arrives, then waits COMMIT_INTERVAL_MILLIS for more, writes everything
+ * that has piled up and calls fsync once for the whole batch (group
+ * commit).
+ *
+ * Once the journal gets big, the writer saves a checkpoint: the scene as
+ * of a transaction boundary, in the binary scene format (taken from a
+ * snapshot, so the scene can carry on changing). Then it starts a new,
+ * empty journal and deletes the old files. The directory holds:
+ *
+ * <pre>
+ * lock               locked while a program journals into the directory
+ * checkpoint-G.dsb   the scene at the start of generation G
+ * journal-G.log      int magic ("DSJ1"), long G, then the frames of generation G
+ * frame:             int payload length, int CRC32 of the payload, payload
+ * payload:           int operation count, then for each operation
+ *                    byte kind, int position, and for INSERT and SET
+ *                    the shape's records (see BinarySceneFormat.encode())
+ * </pre>
+ *
+ * open() recovers: it loads the newest checkpoint, replays the journal
+ * of that generation up to the first frame that is cut short or fails
+ * its checksum, puts the result into the scene, and writes a fresh
+ * checkpoint before journaling anything new.
+ */
+public final class SceneJournal implements Closeable
+{
+    static final int MAGIC = 0x44534a31; // "DSJ1"
+    private static final int FILE_HEADER_SIZE = 12;
+    private static final int FRAME_HEADER_SIZE = 8;
+
+    static final byte INSERT = 1;
+    static final byte REMOVE = 2;
+    static final byte SET = 3;
+
+    private static final String LOCK_FILE = "lock";
+    // the directories this program journals into, as real paths
+    private static final Set<Path> LOCKED = ConcurrentHashMap.newKeySet();
+
+    // how long the writer lets transactions pile up after the first one, before one fsync
+    private static final long COMMIT_INTERVAL_MILLIS = 20;
+    // journal size after which the next complete change gets a checkpoint
+    private static final long CHECKPOINT_BYTES = 64L << 20;
+
+    /**
+     * One operation of a transaction. The shape is a frozen copy, so the
+     * writer can encode it on its own thread.
+     */
+    private static final class Operation
+    {
+        final byte kind;
+        final int position;
+        final IShape shape;
+
+        Operation(byte kind, int position, IShape shape) {
+            this.kind = kind;
+            this.position = position;
+            this.shape = shape;
+        }
+    }
+
+    /**
+     * Something for the writer to do: write a transaction, or if
+     * checkpoint is set, start a new generation from it.
+     */
+    private static final class Work
+    {
+        final Operation[] operations;
+        final SceneSnapshot checkpoint;
+
+        Work(Operation[] operations, SceneSnapshot checkpoint) {
+            this.operations = operations;
+            this.checkpoint = checkpoint;
+        }
+    }
+
+    // queued by close() after the last change, so the writer finishes up
+    private static final Work STOP = new Work(null, null);
+
+    private final Path directory;
+    private final Scene scene;
+    // holds the lock on the directory until close()
+    private final FileChannel lockFile;
+    private final LinkedBlockingQueue<Work> queue = new LinkedBlockingQueue<>();
+    private final Thread writer;
+    private volatile boolean checkpointDue;
+    private volatile IOException failure;
+    // told, on the writer thread, when the writer stops on an error
+    private final Consumer<IOException> onFailure;
+
+    // the operations of the change in progress (used on the scene's thread only)
+    private List<Operation> pending = new ArrayList<>();
+    private boolean replaced;
+
+    // the current generation and its journal (used on the writer thread only)
+    private long generation;
+    private FileChannel journal;
+    private long journalSize;
+    private ByteBuffer frame = ByteBuffer.allocate(64 << 10).order(ByteOrder.BIG_ENDIAN);
+    private final CRC32 crc = new CRC32();
+
+    private SceneJournal(Path directory, Scene scene, FileChannel lockFile, long generation,
+            Consumer<IOException> onFailure) {
+        this.directory = directory;
+        this.scene = scene;
+        this.lockFile = lockFile;
+        this.generation = generation;
+        this.onFailure = onFailure;
+        writer = new Thread(this::writeLoop, "scene-journal");
+        writer.setDaemon(true);
+    }
+
+    /**
+     * Recover whatever the directory holds into the scene (leaving the
+     * scene as it is if the directory is empty), then journal every
+     * change the scene makes from now on. Call this on the thread that
+     * edits the scene.
+     */
+    public static SceneJournal open(Path directory, Scene scene) throws IOException {
+        return open(directory, scene, e -> {});
+    }
+
+    /**
+     * Like open(directory, scene), but if writing the journal ever fails,
+     * hand the error to onFailure (on the writer's thread) as soon as it
+     * happens. From then on changes are no longer journaled.
+     */
+    public static SceneJournal open(Path directory, Scene scene, Consumer<IOException> onFailure)
+            throws IOException {
+        Files.createDirectories(directory);
+        FileChannel lockFile = lock(directory);
+        SceneJournal journal;
+        try {
+            long newest = newestCheckpoint(directory);
+            if (newest >= 0) {
+                scene.replaceShapes(recover(directory, newest));
+            }
+            journal = new SceneJournal(directory, scene, lockFile, newest, onFailure);
+            journal.startGeneration(scene.snapshot());
+        } catch (IOException | RuntimeException e) {
+            unlock(directory, lockFile);
+            throw e;
+        }
+        journal.writer.start();
+        scene.setJournal(journal);
+        return journal;
+    }
+
+    /**
+     * Lock the directory for this journal, so a second program journaling
+     * into it can't delete our generations (and we theirs). The lock goes
+     * when unlock() is called, or the program ends.
+     */
+    private static FileChannel lock(Path directory) throws IOException {
+        // closing any channel on a locked file drops this program's lock on it,
+        // so a second open() in this program must not even try
+        if (!LOCKED.add(directory.toRealPath())) {
+            throw inUse(directory);
+        }
+        FileChannel channel = null;
+        try {
+            channel = FileChannel.open(directory.resolve(LOCK_FILE), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            if (channel.tryLock() == null) {
+                throw inUse(directory);
+            }
+            return channel;
+        } catch (IOException | RuntimeException e) {
+            if (channel != null) {
+                channel.close();
+            }
+            LOCKED.remove(directory.toRealPath());
+            throw e;
+        }
+    }
+
+    private static void unlock(Path directory, FileChannel channel) throws IOException {
+        try {
+            channel.close();
+        } finally {
+            LOCKED.remove(directory.toRealPath());
+        }
+    }
+
+    private static IOException inUse(Path directory) {
+        return new IOException("The journal in " + directory + " is in use by another DrawShapes");
+    }
+
+    /**
+     * Return the scene the directory would recover to, without changing
+     * anything. The list is empty if there is nothing to recover.
+     */
+    static List<IShape> recover(Path directory) throws IOException {
+        long newest = newestCheckpoint(directory);
+        return newest < 0 ? new ArrayList<>() : recover(directory, newest);
+    }
+
+    private static List<IShape> recover(Path directory, long generation) throws IOException {
+        List<IShape> shapes = new ArrayList<>(BinarySceneFormat.read(checkpointFile(directory, generation)));
+        Path log = journalFile(directory, generation);
+        if (Files.exists(log)) {
+            replay(log, generation, shapes);
+        }
+        return shapes;
+    }
+
+    /**
+     * Apply the complete, intact frames of the journal to the shapes.
+     */
+    private static void replay(Path log, long generation, List<IShape> shapes) throws IOException {
+        ByteBuffer data = ByteBuffer.wrap(Files.readAllBytes(log)).order(ByteOrder.BIG_ENDIAN);
+        if (data.remaining() < FILE_HEADER_SIZE || data.getInt() != MAGIC || data.getLong() != generation) {
+            // the journal itself never got written, so nothing happened after the checkpoint
+            return;
+        }
+        CRC32 crc = new CRC32();
+        while (data.remaining() >= FRAME_HEADER_SIZE) {
+            int length = data.getInt();
+            int checksum = data.getInt();
+            if (length < 0 || length > data.remaining()) {
+                return;
+            }
+            ByteBuffer payload = data.slice();
+            payload.limit(length);
+            payload.order(ByteOrder.BIG_ENDIAN);
+            crc.reset();
+            crc.update(payload.duplicate());
+            if ((int) crc.getValue() != checksum) {
+                return;
+            }
+            data.position(data.position() + length);
+            apply(payload, shapes);
+        }
+    }
+
+    private static void apply(ByteBuffer payload, List<IShape> shapes) throws IOException {
+        int count = payload.getInt();
+        for (int i = 0; i < count; i++) {
+            byte kind = payload.get();
+            int position = payload.getInt();
+            int limit = kind == INSERT ? shapes.size() : shapes.size() - 1;
+            if (position < 0 || position > limit) {
+                throw new IOException("Journal operation at " + position + " in a scene of " + shapes.size());
+            }
+            switch (kind) {
+                case INSERT:
+                    shapes.add(position, BinarySceneFormat.decode(payload));
+                    break;
+                case REMOVE:
+                    shapes.remove(position);
+                    break;
+                case SET:
+                    shapes.set(position, BinarySceneFormat.decode(payload));
+                    break;
+                default:
+                    throw new IOException("Bad journal operation " + kind);
+            }
+        }
+    }
+
+    // --- called by the scene, on its own thread ---
+
+    void inserted(int position, IShape copy) {
+        pending.add(new Operation(INSERT, position, copy));
+    }
+
+    void removed(int position) {
+        pending.add(new Operation(REMOVE, position, null));
+    }
+
+    void changed(int position, IShape copy) {
+        pending.add(new Operation(SET, position, copy));
+    }
+
+    /**
+     * The scene threw its shapes away and loaded others; the change
+     * ends with a checkpoint instead of a transaction.
+     */
+    void replaced() {
+        replaced = true;
+        pending.clear();
+    }
+
+    /**
+     * A change is complete and the scene now looks like the snapshot.
+     */
+    void committed(SceneSnapshot snapshot) {
+        if (failure != null) {
+            // the writer is gone; don't pile up work nobody will write
+            replaced = false;
+        } else if (replaced || checkpointDue) {
+            // the checkpoint already has this change in it
+            queue.add(new Work(null, snapshot));
+            checkpointDue = false;
+            replaced = false;
+        } else if (!pending.isEmpty()) {
+            queue.add(new Work(pending.toArray(new Operation[0]), null));
+        }
+        pending = new ArrayList<>();
+    }
+
+    /**
+     * Save a checkpoint of the scene as it is now, and start a new,
+     * empty journal. Call this on the thread that edits the scene.
+     */
+    public void checkpoint() {
+        if (failure == null) {
+            queue.add(new Work(null, scene.snapshot()));
+        }
+    }
+
+    /**
+     * Return the error that stopped the writer, or null if it is fine.
+     */
+    public IOException getFailure() {
+        return failure;
+    }
+
+    /**
+     * Stop journaling, after writing and syncing every complete change.
+     * The files stay, so the scene can be recovered next time.
+     */
+    @Override
+    public void close() throws IOException {
+        scene.setJournal(null);
+        queue.add(STOP);
+        // cut the wait for more work short
+        LockSupport.unpark(writer);
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while closing the journal", e);
+        }
+        unlock(directory, lockFile);
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    // --- the writer thread ---
+
+    private void writeLoop() {
+        try {
+            boolean open = true;
+            while (open) {
+                Work first = queue.take();
+                if (first != STOP) {
+                    // let the changes that follow share this batch's fsync
+                    LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(COMMIT_INTERVAL_MILLIS));
+                }
+                open = writeBatch(first);
+            }
+        } catch (InterruptedException e) {
+            fail(new IOException("Journal writer interrupted", e));
+        } catch (IOException | RuntimeException e) {
+            fail(e instanceof IOException ? (IOException) e : new IOException(e));
+        } finally {
+            try {
+                journal.close();
+            } catch (IOException e) {
+                if (failure == null) {
+                    failure = e;
+                }
+            }
+        }
+    }
+
+    private void fail(IOException e) {
+        failure = e;
+        // stop holding on to work nobody will write; committed() adds no more from now on
+        queue.clear();
+        onFailure.accept(e);
+    }
+
+    /**
+     * Write the given work and everything queued after it, then sync the
+     * journal once. Return false if that included STOP.
+     */
+    private boolean writeBatch(Work first) throws IOException {
+        boolean wrote = false;
+        boolean open = true;
+        for (Work work = first; work != null; work = queue.poll()) {
+            if (work == STOP) {
+                open = false;
+            } else if (work.checkpoint != null) {
+                sync(wrote);
+                wrote = false;
+                startGeneration(work.checkpoint);
+            } else {
+                writeFrame(work.operations);
+                wrote = true;
+            }
+        }
+        sync(wrote);
+        if (journalSize >= CHECKPOINT_BYTES) {
+            checkpointDue = true;
+        }
+        return open;
+    }
+
+    private void writeFrame(Operation[] operations) throws IOException {
+        int size = FRAME_HEADER_SIZE + 4;
+        for (Operation op : operations) {
+            size += 5 + (op.shape == null ? 0 : BinarySceneFormat.encodedSize(op.shape));
+        }
+        if (frame.remaining() < size) {
+            flush();
+            if (frame.capacity() < size) {
+                frame = ByteBuffer.allocate(size).order(ByteOrder.BIG_ENDIAN);
+            }
+        }
+        int start = frame.position();
+        frame.position(start + FRAME_HEADER_SIZE);
+        frame.putInt(operations.length);
+        for (Operation op : operations) {
+            frame.put(op.kind);
+            frame.putInt(op.position);
+            if (op.shape != null) {
+                BinarySceneFormat.encode(op.shape, frame);
+            }
+        }
+        int end = frame.position();
+        ByteBuffer payload = frame.duplicate();
+        payload.position(start + FRAME_HEADER_SIZE).limit(end);
+        crc.reset();
+        crc.update(payload);
+        frame.putInt(start, end - start - FRAME_HEADER_SIZE);
+        frame.putInt(start + 4, (int) crc.getValue());
+    }
+
+    private void flush() throws IOException {
+        frame.flip();
+        while (frame.hasRemaining()) {
+            journalSize += journal.write(frame);
+        }
+        frame.clear();
+    }
+
+    private void sync(boolean wrote) throws IOException {
+        if (wrote) {
+            flush();
+            journal.force(false);
+        }
+    }
+
+    /**
+     * Save the snapshot as the checkpoint of the next generation, start
+     * its journal, and delete the files of the older generations. Until
+     * the new checkpoint is completely written, the old files are left
+     * alone, so a crash at any point still recovers.
+     */
+    private void startGeneration(SceneSnapshot snapshot) throws IOException {
+        long next = generation + 1;
+        Path checkpoint = checkpointFile(directory, next);
+        Path temporary = directory.resolve(checkpoint.getFileName() + ".tmp");
+        BinarySceneFormat.write(snapshot.getShapes(), temporary);
+        Files.move(temporary, checkpoint, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        syncDirectory();
+
+        if (journal != null) {
+            journal.close();
+        }
+        journal = FileChannel.open(journalFile(directory, next), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_SIZE).order(ByteOrder.BIG_ENDIAN);
+        header.putInt(MAGIC).putLong(next).flip();
+        while (header.hasRemaining()) {
+            journal.write(header);
+        }
+        journal.force(false);
+        journalSize = FILE_HEADER_SIZE;
+
+        deleteOlderThan(next);
+        generation = next;
+    }
+
+    /**
+     * Delete the checkpoints, journals and half-written checkpoints of
+     * every generation before the given one.
+     */
+    private void deleteOlderThan(long keep) throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "{checkpoint,journal}-*")) {
+            for (Path file : files) {
+                long g = generationOf(file);
+                if (g >= 0 && g < keep) {
+                    Files.deleteIfExists(file);
+                }
+            }
+        }
+    }
+
+    /**
+     * Make the rename of a checkpoint durable. Not every platform lets us
+     * sync a directory; there the rename is as safe as the OS makes it.
+     */
+    private void syncDirectory() {
+        try (FileChannel dir = FileChannel.open(directory, StandardOpenOption.READ)) {
+            dir.force(true);
+        } catch (IOException e) {
+            // not supported here
+        }
+    }
+
+    /**
+     * Return the generation of the newest complete checkpoint, or -1.
+     */
+    private static long newestCheckpoint(Path directory) throws IOException {
+        long newest = -1;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "checkpoint-*.dsb")) {
+            for (Path file : files) {
+                newest = Math.max(newest, generationOf(file));
+            }
+        }
+        return newest;
+    }
+
+    /**
+     * Return the generation in the name of one of our files, or -1 if
+     * the name doesn't have one.
+     */
+    private static long generationOf(Path file) {
+        String name = file.getFileName().toString();
+        int start = name.indexOf('-') + 1;
+        int end = name.indexOf('.', start);
+        try {
+            return Long.parseLong(name.substring(start, end < 0 ? name.length() : end));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static Path checkpointFile(Path directory, long generation) {
+        return directory.resolve("checkpoint-" + generation + ".dsb");
+    }
+
+    private static Path journalFile(Path directory, long generation) {
+        return directory.resolve("journal-" + generation + ".log");
+    }
+}
@@ -0,0 +1,296 @@
+package drawshapes;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import javax.swing.SwingUtilities;
+
+/**
+ * Numbers about how fast the program is drawing and responding: how
+ * long frames take (with a histogram), how many shapes each frame drew
+ * and skipped, how long hit tests take, how big the undo history is and
+ * how fast scenes load and save.
+ *
+ * The panel and the frame record into it on the Swing thread; recording
+ * is a few field writes, so it stays on all the time. Anyone can read
+ * it: DrawShapes publishes it over JMX (see SceneMetricsMBean) and the
+ * panel can show summary() on top of the canvas.
+ */
+public final class SceneMetrics implements SceneMetricsMBean
+{
+    // upper bounds of the frame time buckets: 0.5ms, 1ms, 2ms, ... 1024ms
+    private static final int BUCKETS = 13;
+    private static final long FIRST_BOUND_NANOS = 500_000;
+
+    private final AtomicLongArray histogram = new AtomicLongArray(BUCKETS);
+    private volatile long frames;
+    private volatile long frameNanos;
+    private volatile long lastFrameNanos;
+    private volatile long maxFrameNanos;
+    private volatile long lastDrawn;
+    private volatile long lastSkipped;
+    private volatile long lastAllocated = -1;
+    private volatile long undoBytes;
+
+    private volatile long hitTests;
+    private volatile long hitTestNanos;
+    private volatile long lastHitTestNanos;
+
+    private volatile double loadBytesPerSecond;
+    private volatile double loadShapesPerSecond;
+    // how long the phases of the last parallel text load took, or 0
+    private volatile long loadSplitNanos;
+    private volatile long loadParseNanos;
+    private volatile long loadMergeNanos;
+    private volatile double saveBytesPerSecond;
+    private volatile double saveShapesPerSecond;
+
+    /**
+     * Record a painted frame. allocatedBytes is -1 if it isn't known.
+     */
+    void frame(long nanos, long drawn, long skipped, long allocatedBytes, long undoBytes) {
+        histogram.incrementAndGet(bucketOf(nanos));
+        frames++;
+        frameNanos += nanos;
+        lastFrameNanos = nanos;
+        if (nanos > maxFrameNanos) {
+            maxFrameNanos = nanos;
+        }
+        lastDrawn = drawn;
+        lastSkipped = skipped;
+        lastAllocated = allocatedBytes;
+        this.undoBytes = undoBytes;
+    }
+
+    private static int bucketOf(long nanos) {
+        return Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(nanos / FIRST_BOUND_NANOS));
+    }
+
+    /**
+     * Record how long finding what was under the mouse took.
+     */
+    void hitTest(long nanos) {
+        hitTests++;
+        hitTestNanos += nanos;
+        lastHitTestNanos = nanos;
+    }
+
+    /**
+     * Record loading a scene file of the given size.
+     */
+    void loaded(long bytes, int shapes, long nanos) {
+        loadBytesPerSecond = perSecond(bytes, nanos);
+        loadShapesPerSecond = perSecond(shapes, nanos);
+        loadSplitNanos = 0;
+        loadParseNanos = 0;
+        loadMergeNanos = 0;
+    }
+
+    /**
+     * Record how long the phases of the load just recorded took, if it
+     * was a parallel text load (see ParallelSceneLoader.Result).
+     */
+    void loadPhases(long splitNanos, long parseNanos, long mergeNanos) {
+        loadSplitNanos = splitNanos;
+        loadParseNanos = parseNanos;
+        loadMergeNanos = mergeNanos;
+    }
+
+    /**
+     * Record saving a scene file of the given size.
+     */
+    void saved(long bytes, int shapes, long nanos) {
+        saveBytesPerSecond = perSecond(bytes, nanos);
+        saveShapesPerSecond = perSecond(shapes, nanos);
+    }
+
+    private static double perSecond(long amount, long nanos) {
+        return nanos <= 0 ? 0 : amount * 1e9 / nanos;
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1e6;
+    }
+
+    @Override
+    public long getFrameCount() {
+        return frames;
+    }
+
+    @Override
+    public double getLastFrameMillis() {
+        return millis(lastFrameNanos);
+    }
+
+    @Override
+    public double getMeanFrameMillis() {
+        long count = frames;
+        return count == 0 ? 0 : millis(frameNanos) / count;
+    }
+
+    @Override
+    public double getMaxFrameMillis() {
+        return millis(maxFrameNanos);
+    }
+
+    @Override
+    public double getFrameMillisP50() {
+        return percentile(0.50);
+    }
+
+    @Override
+    public double getFrameMillisP95() {
+        return percentile(0.95);
+    }
+
+    @Override
+    public double getFrameMillisP99() {
+        return percentile(0.99);
+    }
+
+    private double percentile(double p) {
+        long[] counts = getFrameHistogram();
+        long total = 0;
+        for (long count : counts) {
+            total += count;
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long wanted = (long) Math.ceil(p * total);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS - 1; i++) {
+            seen += counts[i];
+            if (seen >= wanted) {
+                return millis(FIRST_BOUND_NANOS << i);
+            }
+        }
+        return getMaxFrameMillis();
+    }
+
+    @Override
+    public long[] getFrameHistogram() {
+        long[] counts = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = histogram.get(i);
+        }
+        return counts;
+    }
+
+    @Override
+    public double[] getFrameHistogramBounds() {
+        double[] bounds = new double[BUCKETS - 1];
+        for (int i = 0; i < bounds.length; i++) {
+            bounds[i] = millis(FIRST_BOUND_NANOS << i);
+        }
+        return bounds;
+    }
+
+    @Override
+    public long getLastFrameShapesDrawn() {
+        return lastDrawn;
+    }
+
+    @Override
+    public long getLastFrameShapesSkipped() {
+        return lastSkipped;
+    }
+
+    @Override
+    public long getLastFrameAllocatedBytes() {
+        return lastAllocated;
+    }
+
+    @Override
+    public long getHitTestCount() {
+        return hitTests;
+    }
+
+    @Override
+    public double getLastHitTestMicros() {
+        return lastHitTestNanos / 1e3;
+    }
+
+    @Override
+    public double getMeanHitTestMicros() {
+        long count = hitTests;
+        return count == 0 ? 0 : hitTestNanos / 1e3 / count;
+    }
+
+    @Override
+    public long getUndoBytes() {
+        return undoBytes;
+    }
+
+    @Override
+    public double getLastLoadMegabytesPerSecond() {
+        return loadBytesPerSecond / 1e6;
+    }
+
+    @Override
+    public double getLastLoadShapesPerSecond() {
+        return loadShapesPerSecond;
+    }
+
+    @Override
+    public double getLastLoadSplitMillis() {
+        return millis(loadSplitNanos);
+    }
+
+    @Override
+    public double getLastLoadParseMillis() {
+        return millis(loadParseNanos);
+    }
+
+    @Override
+    public double getLastLoadMergeMillis() {
+        return millis(loadMergeNanos);
+    }
+
+    @Override
+    public double getLastSaveMegabytesPerSecond() {
+        return saveBytesPerSecond / 1e6;
+    }
+
+    @Override
+    public double getLastSaveShapesPerSecond() {
+        return saveShapesPerSecond;
+    }
+
+    @Override
+    public void reset() {
+        if (!SwingUtilities.isEventDispatchThread()) {
+            // JMX calls come in on their own threads, and only the Swing thread writes
+            SwingUtilities.invokeLater(this::reset);
+            return;
+        }
+        for (int i = 0; i < BUCKETS; i++) {
+            histogram.set(i, 0);
+        }
+        frames = 0;
+        frameNanos = 0;
+        lastFrameNanos = 0;
+        maxFrameNanos = 0;
+        hitTests = 0;
+        hitTestNanos = 0;
+        lastHitTestNanos = 0;
+    }
+
+    /**
+     * Return a few lines summing up the numbers, for the overlay.
+     */
+    String[] summary() {
+        return new String[] {
+            String.format("frame %.1f ms  (mean %.1f, p95 <= %.1f, max %.1f, %d frames)",
+                    getLastFrameMillis(), getMeanFrameMillis(), getFrameMillisP95(), getMaxFrameMillis(), frames),
+            String.format("shapes drawn %,d  skipped %,d  allocated %,d bytes",
+                    lastDrawn, lastSkipped, lastAllocated),
+            String.format("hit test %.0f us  (mean %.0f, %d tests)",
+                    getLastHitTestMicros(), getMeanHitTestMicros(), hitTests),
+            String.format("undo history %,d KB", undoBytes / 1024),
+            String.format("load %.1f MB/s %,.0f shapes/s  save %.1f MB/s %,.0f shapes/s",
+                    getLastLoadMegabytesPerSecond(), loadShapesPerSecond,
+                    getLastSaveMegabytesPerSecond(), saveShapesPerSecond),
+            String.format("last load: split %.1f ms  parse %.1f ms  merge %.1f ms",
+                    getLastLoadSplitMillis(), getLastLoadParseMillis(), getLastLoadMergeMillis()),
+        };
+    }
+}
@@ -0,0 +1,72 @@
+package drawshapes;
+
+/**
+ * What SceneMetrics publishes over JMX, under the name
+ * drawshapes:type=SceneMetrics. Times are in milliseconds (hit tests in
+ * microseconds), throughputs per second.
+ */
+public interface SceneMetricsMBean
+{
+    long getFrameCount();
+
+    double getLastFrameMillis();
+
+    double getMeanFrameMillis();
+
+    double getMaxFrameMillis();
+
+    /**
+     * Frame times at these percentiles are at most these values; they are
+     * read off the histogram, so they are bucket bounds.
+     */
+    double getFrameMillisP50();
+
+    double getFrameMillisP95();
+
+    double getFrameMillisP99();
+
+    /**
+     * How many frames took less than each of getFrameHistogramBounds()
+     * (and at least the one before), with one last bucket for the rest.
+     */
+    long[] getFrameHistogram();
+
+    double[] getFrameHistogramBounds();
+
+    long getLastFrameShapesDrawn();
+
+    long getLastFrameShapesSkipped();
+
+    long getLastFrameAllocatedBytes();
+
+    long getHitTestCount();
+
+    double getLastHitTestMicros();
+
+    double getMeanHitTestMicros();
+
+    long getUndoBytes();
+
+    double getLastLoadMegabytesPerSecond();
+
+    double getLastLoadShapesPerSecond();
+
+    /**
+     * How long the phases of the last load took, when it was a big text
+     * file loaded in parallel (see ParallelSceneLoader), or 0.
+     */
+    double getLastLoadSplitMillis();
+
+    double getLastLoadParseMillis();
+
+    double getLastLoadMergeMillis();
+
+    double getLastSaveMegabytesPerSecond();
+
+    double getLastSaveShapesPerSecond();
+
+    /**
+     * Start counting frames and hit tests from scratch.
+     */
+    void reset();
+}
@@ -0,0 +1,228 @@
+package drawshapes;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.function.IntConsumer;
+
+/**
+ * Draws a scene into a BufferedImage without a window, using several
+ * threads.
+ *
+ * The image is cut into square tiles. First, on the calling thread, every
+ * shape is put in the bin of each tile its paint area (Scene.extentOf())
+ * overlaps; shapes are binned back to front, so each bin is already in
+ * z-order. Then the tiles are drawn on a ForkJoinPool and copied into
+ * the one shared image. The tiles don't overlap, so no two threads ever
+ * write the same pixel.
+ *
+ * Every tile uses the same transform (plus a whole-pixel offset) as a
+ * single Graphics covering the whole image would, and only draws its own
+ * part of each shape (plus a margin), so the result matches Scene.draw()
+ * on one thread with that transform. The one exception is shapes many
+ * tiles across: Java2D cuts the outline of such a shape down to the
+ * clip before drawing it, and a curve cut to a tile can come out with
+ * slightly different antialiasing than one cut to the whole image. The
+ * tiles are fixed by the tile size alone, so the image is the same
+ * however many threads draw it.
+ *
+ * Scenes are drawn from a snapshot (see Scene.snapshot()), so render()
+ * can be called from any thread while the scene goes on changing.
+ */
+final class SceneRasterizer
+{
+    static final int DEFAULT_TILE_SIZE = 256;
+    // extra pixels around each shape's scaled paint area, for antialiasing
+    private static final int PIXEL_MARGIN = 2;
+
+    private final ForkJoinPool pool;
+    private final int tileSize;
+
+    SceneRasterizer() {
+        this(ForkJoinPool.commonPool(), DEFAULT_TILE_SIZE);
+    }
+
+    SceneRasterizer(ForkJoinPool pool, int tileSize) {
+        if (tileSize <= 0) {
+            throw new IllegalArgumentException("Tile size must be positive: " + tileSize);
+        }
+        this.pool = pool;
+        this.tileSize = tileSize;
+    }
+
+    /**
+     * Draw the part of the scene from (0, 0) to (width, height), one
+     * scene unit per pixel.
+     */
+    BufferedImage render(Scene scene, int width, int height) {
+        return render(scene.snapshot(), new java.awt.Rectangle(0, 0, width, height), width, height);
+    }
+
+    /**
+     * Draw the given area of the scene, scaled to fill an image of the
+     * given size. Pixels no shape covers are left transparent.
+     */
+    BufferedImage render(Scene scene, java.awt.Rectangle area, int width, int height) {
+        return render(scene.snapshot(), area, width, height);
+    }
+
+    /**
+     * Draw the given area of a snapshot, like render(Scene, ...) does.
+     */
+    BufferedImage render(SceneSnapshot snapshot, java.awt.Rectangle area, int width, int height) {
+        if (width <= 0 || height <= 0 || area.width <= 0 || area.height <= 0) {
+            throw new IllegalArgumentException("Empty image or area: " + width + "x" + height + ", " + area);
+        }
+        double scaleX = (double) width / area.width;
+        double scaleY = (double) height / area.height;
+        AffineTransform transform = new AffineTransform(scaleX, 0, 0, scaleY,
+                -area.x * scaleX, -area.y * scaleY);
+
+        IShape[] shapes = snapshot.getShapes().toArray(new IShape[0]);
+        int[] bounds = pixelBounds(shapes, transform, width, height);
+        int tilesX = (width + tileSize - 1) / tileSize;
+        int tilesY = (height + tileSize - 1) / tileSize;
+        int[][] bins = bin(bounds, tilesX, tilesY);
+
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        List<Callable<Void>> tasks = new ArrayList<>();
+        for (int ty = 0; ty < tilesY; ty++) {
+            for (int tx = 0; tx < tilesX; tx++) {
+                int[] bin = bins[ty * tilesX + tx];
+                if (bin.length == 0) {
+                    continue;
+                }
+                java.awt.Rectangle tile = new java.awt.Rectangle(tx * tileSize, ty * tileSize,
+                        Math.min(tileSize, width - tx * tileSize), Math.min(tileSize, height - ty * tileSize));
+                tasks.add(() -> {
+                    drawTile(image, transform, tile, shapes, bin);
+                    return null;
+                });
+            }
+        }
+        for (Future<Void> future : pool.invokeAll(tasks)) {
+            finish(future);
+        }
+        return image;
+    }
+
+    /**
+     * Return the pixels each shape may paint, as left, right, top, bottom
+     * (inclusive) for each shape in turn, cut down to the image. A shape
+     * that misses the image gets left > right.
+     */
+    private static int[] pixelBounds(IShape[] shapes, AffineTransform transform, int width, int height) {
+        int[] bounds = new int[shapes.length * 4];
+        for (int i = 0; i < shapes.length; i++) {
+            BoundingBox extent = Scene.extentOf(shapes[i]);
+            int left = (int) Math.floor(extent.getLeft() * transform.getScaleX() + transform.getTranslateX());
+            int right = (int) Math.ceil(extent.getRight() * transform.getScaleX() + transform.getTranslateX());
+            int top = (int) Math.floor(extent.getTop() * transform.getScaleY() + transform.getTranslateY());
+            int bottom = (int) Math.ceil(extent.getBottom() * transform.getScaleY() + transform.getTranslateY());
+            bounds[i * 4] = Math.max(0, left - PIXEL_MARGIN);
+            bounds[i * 4 + 1] = Math.min(width - 1, right + PIXEL_MARGIN);
+            bounds[i * 4 + 2] = Math.max(0, top - PIXEL_MARGIN);
+            bounds[i * 4 + 3] = Math.min(height - 1, bottom + PIXEL_MARGIN);
+            if (bounds[i * 4 + 2] > bounds[i * 4 + 3]) {
+                // below or above the image; make the x range empty too
+                bounds[i * 4] = 1;
+                bounds[i * 4 + 1] = 0;
+            }
+        }
+        return bounds;
+    }
+
+    /**
+     * Return, for each tile (row by row), the positions in shapes of the
+     * shapes that may paint into it, in increasing order.
+     */
+    private int[][] bin(int[] bounds, int tilesX, int tilesY) {
+        // two passes: count what goes in each tile, then fill the exactly-sized bins
+        int shapes = bounds.length / 4;
+        int[] counts = new int[tilesX * tilesY];
+        for (int i = 0; i < shapes; i++) {
+            forEachTile(bounds, i, tilesX, t -> counts[t]++);
+        }
+        int[][] bins = new int[counts.length][];
+        for (int t = 0; t < counts.length; t++) {
+            bins[t] = new int[counts[t]];
+            counts[t] = 0;
+        }
+        for (int i = 0; i < shapes; i++) {
+            int shape = i;
+            forEachTile(bounds, i, tilesX, t -> bins[t][counts[t]++] = shape);
+        }
+        return bins;
+    }
+
+    private void forEachTile(int[] bounds, int i, int tilesX, IntConsumer action) {
+        if (bounds[i * 4] > bounds[i * 4 + 1]) {
+            return;
+        }
+        for (int ty = bounds[i * 4 + 2] / tileSize; ty <= bounds[i * 4 + 3] / tileSize; ty++) {
+            for (int tx = bounds[i * 4] / tileSize; tx <= bounds[i * 4 + 1] / tileSize; tx++) {
+                action.accept(ty * tilesX + tx);
+            }
+        }
+    }
+
+    /**
+     * Draw one tile. The shapes are drawn into a private image covering
+     * the tile and PIXEL_MARGIN pixels around it (as far as the image
+     * goes), and then the tile's part of it is copied into the image.
+     * 
+     * Java2D doesn't always give exactly the same antialiased pixels
+     * right at the edge of the clip as it would with the edge further
+     * away, so clipping at the tile itself could leave faint seams; the
+     * margin keeps those pixels out of the part that is kept. Every shape
+     * is only drawn as far as the tile reaches, so a shape spanning many
+     * tiles costs about what it would drawn once.
+     */
+    private void drawTile(BufferedImage image, AffineTransform transform, java.awt.Rectangle tile,
+            IShape[] shapes, int[] bin)
+    {
+        java.awt.Rectangle canvas = new java.awt.Rectangle(tile.x - PIXEL_MARGIN, tile.y - PIXEL_MARGIN,
+                tile.width + 2 * PIXEL_MARGIN, tile.height + 2 * PIXEL_MARGIN)
+                .intersection(new java.awt.Rectangle(0, 0, image.getWidth(), image.getHeight()));
+
+        BufferedImage pixels = new BufferedImage(canvas.width, canvas.height, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = pixels.createGraphics();
+        try {
+            g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+            g.translate(-canvas.x, -canvas.y);
+            g.transform(transform);
+            for (int i : bin) {
+                shapes[i].draw(g);
+            }
+        } finally {
+            g.dispose();
+        }
+        image.getRaster().setDataElements(tile.x, tile.y, pixels.getRaster().createChild(
+                tile.x - canvas.x, tile.y - canvas.y, tile.width, tile.height, 0, 0, null));
+    }
+
+    private static void finish(Future<Void> future) {
+        try {
+            future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while rendering scene", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IllegalStateException(cause);
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package drawshapes;
+
+import java.awt.Color;
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.Stroke;
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.AbstractList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * The shapes of a Scene as they were at one moment, for reading on any
+ * thread (see Scene.snapshot()).
+ *
+ * A snapshot never changes, whatever happens to the scene afterwards, so
+ * background work such as exporting, autosaving or gathering statistics
+ * can use one without locking and without holding up the Swing thread.
+ * The shapes in it are copies the scene made when they last changed; they
+ * are shared between snapshots, so don't change them.
+ */
+public final class SceneSnapshot implements Iterable<IShape>
+{
+    private final ShapeVector shapes;
+    private final long version;
+
+    SceneSnapshot(ShapeVector shapes, long version) {
+        this.shapes = shapes;
+        this.version = version;
+    }
+
+    /**
+     * Return a number that goes up with every change to the scene, so a
+     * newer snapshot has a bigger version.
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    public int size() {
+        return shapes.size();
+    }
+
+    /**
+     * Return the shapes, back to front, as a list that can't be changed.
+     */
+    public List<IShape> getShapes() {
+        return new AbstractList<IShape>() {
+            @Override
+            public IShape get(int index) {
+                return shapes.get(index);
+            }
+
+            @Override
+            public int size() {
+                return shapes.size();
+            }
+
+            @Override
+            public Iterator<IShape> iterator() {
+                return shapes.iterator();
+            }
+        };
+    }
+
+    @Override
+    public Iterator<IShape> iterator() {
+        return shapes.iterator();
+    }
+
+    /**
+     * Draw the shapes back to front, like Scene.draw(). Without the
+     * scene's index every shape is looked at, but only the ones that can
+     * show up inside the clip are drawn.
+     */
+    public void draw(Graphics g) {
+        Graphics2D g2d = (Graphics2D) g;
+        AffineTransform transform = g2d.getTransform();
+        Color color = g2d.getColor();
+        Stroke stroke = g2d.getStroke();
+        java.awt.Rectangle clip = g2d.getClipBounds();
+        try {
+            for (IShape shape : shapes) {
+                if (clip == null || overlaps(Scene.extentOf(shape), clip)) {
+                    shape.draw(g2d);
+                }
+            }
+        } finally {
+            g2d.setTransform(transform);
+            g2d.setColor(color);
+            g2d.setStroke(stroke);
+        }
+    }
+
+    private static boolean overlaps(BoundingBox box, java.awt.Rectangle clip) {
+        return box.intersects(clip.x, clip.x + clip.width, clip.y, clip.y + clip.height);
+    }
+
+    /**
+     * Draw the given area of the snapshot, scaled to an image of the
+     * given size, on several threads (see SceneRasterizer).
+     */
+    public BufferedImage toImage(java.awt.Rectangle area, int width, int height) {
+        return new SceneRasterizer().render(this, area, width, height);
+    }
+
+    /**
+     * Save the snapshot in the same text format as Scene.saveToFile().
+     */
+    public void saveToFile(String filename) throws IOException {
+        try (BufferedWriter writer = new BufferedWriter(new FileWriter(filename))) {
+            for (IShape shape : shapes) {
+                writer.write(shape.toString());
+                writer.newLine();
+            }
+        }
+    }
+
+    /**
+     * Save the snapshot in the binary format (see BinarySceneFormat).
+     */
+    public void saveToBinaryFile(String filename) throws IOException {
+        BinarySceneFormat.write(getShapes(), Paths.get(filename));
+    }
+}
@@ -4,11 +4,25 @@ import java.awt.Color;
 import java.awt.Graphics;
 import java.awt.Point;
 
+/**
+ * The rubber band the user drags out on empty canvas to select shapes.
+ * It isn't part of the scene; the panel draws it on top of the shapes.
+ *
+ * In CONTAINED mode it selects the shapes whose bounding box is
+ * completely inside it, in TOUCHING mode every shape that overlaps it.
+ */
 public class SelectionRectangle implements IShape {
+    public enum Mode {
+        CONTAINED,
+        TOUCHING
+    }
+
     private int x, y, width, height;
+    private Mode mode = Mode.CONTAINED;
     private boolean selected;
     private Color color;
     private Point anchorPoint;
+    private IShapeListener listener;
 
     public SelectionRectangle() {
         this(0, 0, 0, 0);
@@ -20,16 +34,49 @@ public class SelectionRectangle implements IShape {
         this.width = width;
         this.height = height;
         this.selected = false;
-        this.color = new Color(1, 1, 1, 0.5f);
+        this.color = new Color(0, 120, 215, 48);
         this.anchorPoint = new Point(x, y);
     }
 
     @Override
     public void draw(Graphics g) {
         g.setColor(color);
+        g.fillRect(x, y, width, height);
+        g.setColor(ColorCache.translucent(color, 1.0));
         g.drawRect(x, y, width, height);
     }
 
+    /**
+     * Stretch the rectangle between two opposite corners, given in any order.
+     */
+    public void setCorners(Point from, Point to) {
+        x = Math.min(from.x, to.x);
+        y = Math.min(from.y, to.y);
+        width = Math.abs(to.x - from.x);
+        height = Math.abs(to.y - from.y);
+        anchorPoint = new Point(x, y);
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    public void setMode(Mode mode) {
+        this.mode = mode;
+    }
+
+    /**
+     * Would the rectangle, in its current mode, select the given shape?
+     */
+    public boolean selects(IShape shape) {
+        if (mode == Mode.TOUCHING) {
+            return Collisions.intersects(shape, this);
+        }
+        BoundingBox box = shape.getBoundingBox();
+        return box.getLeft() >= x && box.getRight() <= x + width
+                && box.getTop() >= y && box.getBottom() <= y + height;
+    }
+
     @Override
     public boolean contains(Point p) {
         return p.x >= x && p.x <= x + width && p.y >= y && p.y <= y + height;
@@ -37,7 +84,7 @@ public class SelectionRectangle implements IShape {
 
     @Override
     public boolean intersects(IShape other) {
-        return false;
+        return Collisions.intersects(this, other);
     }
 
     @Override
@@ -56,6 +103,7 @@ public class SelectionRectangle implements IShape {
         clone.setSelected(selected);
         clone.setColor(color);
         clone.setAnchorPoint(anchorPoint);
+        clone.setMode(mode);
         return clone;
     }
 
@@ -66,7 +114,7 @@ public class SelectionRectangle implements IShape {
 
     @Override
     public BoundingBox getBoundingBox() {
-        return new BoundingBox(x, y, x + width, y + height);
+        return new BoundingBox(x, x + width, y, y + height);
     }
 
     @Override
@@ -84,10 +132,59 @@ public class SelectionRectangle implements IShape {
         this.anchorPoint = point;
         this.x = point.x;
         this.y = point.y;
+        if (listener != null) {
+            listener.shapeChanged(this);
+        }
+    }
+
+    @Override
+    public void setShapeListener(IShapeListener listener) {
+        this.listener = listener;
     }
 
     @Override
     public Point getAnchorPoint() {
         return anchorPoint;
     }
+
+    @Override
+    public void move(int dx, int dy) {
+        setAnchorPoint(new Point(x + dx, y + dy));
+    }
+
+    @Override
+    public void scale(double factor) {
+        width = (int) (width * factor);
+        height = (int) (height * factor);
+    }
+
+    @Override
+    public void rotate(double angle) {
+        // a selection rectangle is always axis-aligned
+    }
+
+    @Override
+    public double getRotation() {
+        return 0;
+    }
+
+    @Override
+    public double getOpacity() {
+        return color.getAlpha() / 255.0;
+    }
+
+    @Override
+    public void setOpacity(double opacity) {
+        // the selection rectangle is always drawn half transparent
+    }
+
+    @Override
+    public void setBorderStyle(BorderStyle style) {
+        // the selection rectangle is always drawn with a thin solid line
+    }
+
+    @Override
+    public BorderStyle getBorderStyle() {
+        return BorderStyle.SOLID;
+    }
 }
@@ -5,13 +5,35 @@ import java.awt.Graphics;
 import java.awt.Point;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.function.Predicate;
 
-public class ShapeGroup implements IMoveableShape {
+/**
+ * A shape made of other shapes, which it moves, scales and restyles
+ * together.
+ *
+ * The group keeps the box around its children, and the area they paint,
+ * until one of them changes; a change deep inside nested groups clears
+ * the cached boxes of every group above it on its way up to the Scene.
+ * A big group also keeps a BoundsTree over its children, so contains()
+ * and collision tests skip the children nowhere near the point or shape.
+ */
+public class ShapeGroup implements IMoveableShape, IShapeListener {
     private List<IShape> shapes;
     private boolean selected;
     private Color color;
     private Point anchorPoint;
     private double rotation;
+    private double opacity = 1.0;
+    private BorderStyle borderStyle = BorderStyle.SOLID;
+    private IShapeListener listener;
+    // true while we are changing our own children, so they don't report back one by one
+    private boolean updating;
+    // the box around the children and the area they paint, or null until worked out again
+    private BoundingBox bounds;
+    private BoundingBox extent;
+    // the hierarchy over the children, made the first time a big group is hit-tested
+    private BoundsTree tree;
+    private boolean treeMoved;
 
     public ShapeGroup() {
         shapes = new ArrayList<>();
@@ -23,6 +45,95 @@ public class ShapeGroup implements IMoveableShape {
 
     public void addShape(IShape shape) {
         shapes.add(shape);
+        shape.setShapeListener(this);
+        childrenReplaced();
+        fireShapeChanged();
+    }
+
+    /**
+     * Set the group's own color, anchor, rotation, opacity and border
+     * without passing them on to the children. Used when loading a group
+     * whose children already have their own values.
+     */
+    void restoreState(Color color, Point anchorPoint, double rotation, double opacity, BorderStyle style) {
+        this.color = color;
+        this.anchorPoint = anchorPoint;
+        this.rotation = rotation;
+        this.opacity = opacity;
+        this.borderStyle = style;
+    }
+
+    /**
+     * Mark the group itself selected or not, leaving the children as they are.
+     */
+    void restoreSelected(boolean selected) {
+        this.selected = selected;
+    }
+
+    /**
+     * Make every child report its changes to this group again,
+     * e.g. when the group is put back after being ungrouped.
+     */
+    void claimChildren() {
+        for (IShape shape : shapes) {
+            shape.setShapeListener(this);
+        }
+        // they may have changed while they weren't telling us
+        childrenReplaced();
+    }
+
+    @Override
+    public void setShapeListener(IShapeListener listener) {
+        this.listener = listener;
+    }
+
+    @Override
+    public void shapeChanged(IShape shape) {
+        if (!updating) {
+            childrenMoved();
+            fireShapeChanged();
+        }
+    }
+
+    /**
+     * Forget the cached boxes after children moved, changed size or turned.
+     */
+    private void childrenMoved() {
+        bounds = null;
+        extent = null;
+        treeMoved = true;
+    }
+
+    /**
+     * Forget the cached boxes and the tree after children came or went.
+     */
+    private void childrenReplaced() {
+        bounds = null;
+        extent = null;
+        tree = null;
+    }
+
+    /**
+     * Return the tree over the children, up to date, or null if there
+     * are too few children for one to pay.
+     */
+    private BoundsTree tree() {
+        if (shapes.size() < BoundsTree.MIN_SHAPES) {
+            return null;
+        }
+        if (tree == null) {
+            tree = new BoundsTree(shapes.toArray(new IShape[0]));
+        } else if (treeMoved) {
+            tree.refit();
+        }
+        treeMoved = false;
+        return tree;
+    }
+
+    private void fireShapeChanged() {
+        if (listener != null) {
+            listener.shapeChanged(this);
+        }
     }
 
     public List<IShape> getShapes() {
@@ -38,30 +149,64 @@ public class ShapeGroup implements IMoveableShape {
 
     @Override
     public boolean contains(Point p) {
-        for (IShape shape : shapes) {
-            if (shape.contains(p)) {
-                return true;
+        return childAt(p) != null;
+    }
+
+    /**
+     * Return the top-most child containing the point, or null.
+     */
+    IShape childAt(Point p) {
+        if (shapes.isEmpty() || !getBoundingBox().contains(p)) {
+            return null;
+        }
+        BoundsTree tree = tree();
+        if (tree != null) {
+            int position = tree.topMostAt(p);
+            return position < 0 ? null : shapes.get(position);
+        }
+        for (int i = shapes.size() - 1; i >= 0; i--) {
+            IShape shape = shapes.get(i);
+            if (shape.getBoundingBox().contains(p) && shape.contains(p)) {
+                return shape;
             }
         }
-        return false;
+        return null;
     }
 
-    @Override
-    public boolean intersects(IShape other) {
+    /**
+     * Is the test true for any child whose bounding box touches the box?
+     * Stops at the first child it is true for.
+     */
+    boolean anyChildTouching(BoundingBox box, Predicate<IShape> test) {
+        BoundsTree tree = tree();
+        if (tree != null) {
+            return tree.anyTouching(box.getLeft(), box.getRight(), box.getTop(), box.getBottom(), test);
+        }
         for (IShape shape : shapes) {
-            if (shape.intersects(other)) {
+            if (shape.getBoundingBox().intersects(box) && test.test(shape)) {
                 return true;
             }
         }
         return false;
     }
 
+    @Override
+    public boolean intersects(IShape other) {
+        return Collisions.intersects(this, other);
+    }
+
     @Override
     public void setSelected(boolean selected) {
         this.selected = selected;
-        for (IShape shape : shapes) {
-            shape.setSelected(selected);
+        updating = true;
+        try {
+            for (IShape shape : shapes) {
+                shape.setSelected(selected);
+            }
+        } finally {
+            updating = false;
         }
+        fireShapeChanged();
     }
 
     @Override
@@ -75,10 +220,9 @@ public class ShapeGroup implements IMoveableShape {
         for (IShape shape : shapes) {
             clone.addShape(shape.clone());
         }
-        clone.setSelected(selected);
-        clone.setColor(color);
-        clone.setAnchorPoint(anchorPoint);
-        clone.rotation = rotation;
+        // the children already have their own colors, positions and selection
+        clone.restoreState(color, new Point(anchorPoint), rotation, opacity, borderStyle);
+        clone.selected = selected;
         return clone;
     }
 
@@ -93,22 +237,57 @@ public class ShapeGroup implements IMoveableShape {
 
     @Override
     public BoundingBox getBoundingBox() {
-        if (shapes.isEmpty()) {
-            return new BoundingBox(0, 0, 0, 0);
+        if (bounds == null) {
+            if (shapes.isEmpty()) {
+                bounds = new BoundingBox(0, 0, 0, 0);
+            } else if (tree != null) {
+                // refitting costs the same as a union, and keeps the tree ready
+                bounds = tree().getBounds();
+            } else {
+                bounds = union(false);
+            }
         }
-        BoundingBox box = shapes.get(0).getBoundingBox();
-        for (int i = 1; i < shapes.size(); i++) {
-            box = box.union(shapes.get(i).getBoundingBox());
+        return bounds;
+    }
+
+    /**
+     * Return the area the children may paint (see Scene.extentOf()).
+     */
+    BoundingBox getExtent() {
+        if (extent == null) {
+            extent = shapes.isEmpty() ? getBoundingBox() : union(true);
         }
-        return box;
+        return extent;
+    }
+
+    /**
+     * Return the box around the children's bounding boxes, or around
+     * their paint areas. There must be at least one child.
+     */
+    private BoundingBox union(boolean paintArea) {
+        int left = Integer.MAX_VALUE, right = Integer.MIN_VALUE, top = Integer.MAX_VALUE, bottom = Integer.MIN_VALUE;
+        for (IShape shape : shapes) {
+            BoundingBox box = paintArea ? Scene.extentOf(shape) : shape.getBoundingBox();
+            left = Math.min(left, box.getLeft());
+            right = Math.max(right, box.getRight());
+            top = Math.min(top, box.getTop());
+            bottom = Math.max(bottom, box.getBottom());
+        }
+        return new BoundingBox(left, right, top, bottom);
     }
 
     @Override
     public void setColor(Color color) {
         this.color = color;
-        for (IShape shape : shapes) {
-            shape.setColor(color);
+        updating = true;
+        try {
+            for (IShape shape : shapes) {
+                shape.setColor(color);
+            }
+        } finally {
+            updating = false;
         }
+        fireShapeChanged();
     }
 
     @Override
@@ -132,36 +311,95 @@ public class ShapeGroup implements IMoveableShape {
 
     @Override
     public void move(int dx, int dy) {
-        for (IShape shape : shapes) {
-            if (shape instanceof IMoveableShape) {
-                ((IMoveableShape) shape).move(dx, dy);
+        updating = true;
+        try {
+            for (IShape shape : shapes) {
+                if (shape instanceof IMoveableShape) {
+                    ((IMoveableShape) shape).move(dx, dy);
+                }
             }
+        } finally {
+            updating = false;
         }
         anchorPoint.x += dx;
         anchorPoint.y += dy;
+        childrenMoved();
+        fireShapeChanged();
     }
 
     @Override
     public void scale(double factor) {
-        for (IShape shape : shapes) {
-            if (shape instanceof IMoveableShape) {
-                ((IMoveableShape) shape).scale(factor);
+        updating = true;
+        try {
+            for (IShape shape : shapes) {
+                if (shape instanceof IMoveableShape) {
+                    ((IMoveableShape) shape).scale(factor);
+                }
             }
+        } finally {
+            updating = false;
         }
+        childrenMoved();
+        fireShapeChanged();
     }
 
     @Override
     public void rotate(double angle) {
         rotation += angle;
-        for (IShape shape : shapes) {
-            if (shape instanceof IMoveableShape) {
-                ((IMoveableShape) shape).rotate(angle);
+        updating = true;
+        try {
+            for (IShape shape : shapes) {
+                if (shape instanceof IMoveableShape) {
+                    ((IMoveableShape) shape).rotate(angle);
+                }
             }
+        } finally {
+            updating = false;
         }
+        childrenMoved();
+        fireShapeChanged();
     }
 
     @Override
     public double getRotation() {
         return rotation;
     }
+
+    @Override
+    public double getOpacity() {
+        return opacity;
+    }
+
+    @Override
+    public void setOpacity(double opacity) {
+        this.opacity = Math.max(0, Math.min(1, opacity));
+        updating = true;
+        try {
+            for (IShape shape : shapes) {
+                shape.setOpacity(this.opacity);
+            }
+        } finally {
+            updating = false;
+        }
+        fireShapeChanged();
+    }
+
+    @Override
+    public void setBorderStyle(BorderStyle style) {
+        this.borderStyle = style;
+        updating = true;
+        try {
+            for (IShape shape : shapes) {
+                shape.setBorderStyle(style);
+            }
+        } finally {
+            updating = false;
+        }
+        fireShapeChanged();
+    }
+
+    @Override
+    public BorderStyle getBorderStyle() {
+        return borderStyle;
+    }
 } 
\ No newline at end of file
@@ -0,0 +1,29 @@
+package drawshapes;
+
+/**
+ * Two shapes that overlap, as found by Scene.findIntersectingPairs().
+ * The first shape is the one further back in the z-order.
+ */
+public final class ShapePair
+{
+    private final IShape first;
+    private final IShape second;
+
+    ShapePair(IShape first, IShape second) {
+        this.first = first;
+        this.second = second;
+    }
+
+    public IShape getFirst() {
+        return first;
+    }
+
+    public IShape getSecond() {
+        return second;
+    }
+
+    @Override
+    public String toString() {
+        return first + " / " + second;
+    }
+}
@@ -0,0 +1,494 @@
+package drawshapes;
+
+import java.awt.Color;
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.Point;
+import java.awt.Stroke;
+import java.awt.geom.AffineTransform;
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A compact store for very large numbers of shapes, back to front.
+ *
+ * Instead of one object per shape (a Color, a Point, a cached
+ * BoundingBox and the fields of AbstractShape), every shape is one slot
+ * in a set of primitive arrays: its kind, position, size, packed ARGB
+ * color, opacity, rotation, border style and flags. That is 31 bytes a
+ * shape, so ten million shapes fit in about 300MB, and drawing and
+ * hit-testing are tight loops over the arrays rather than walks over
+ * objects spread across the heap.
+ *
+ * Only squares, circles and rectangles can be stored; adding a group
+ * adds its children. Opacity and rotation are kept as floats.
+ *
+ * get() hands out a ShapeView, a small IShape that reads and writes
+ * one slot, for code that wants to deal with a single shape. Shapes
+ * can only be added, so a slot number stays valid for good.
+ */
+public final class ShapeStore
+{
+    static final byte SQUARE = BinarySceneFormat.SQUARE;
+    static final byte CIRCLE = BinarySceneFormat.CIRCLE;
+    static final byte RECTANGLE = BinarySceneFormat.RECTANGLE;
+
+    private static final byte SELECTED = 1;
+    private static final BorderStyle[] BORDER_STYLES = BorderStyle.values();
+    private static final int DEFAULT_CAPACITY = 16;
+
+    private int size;
+    private byte[] type;
+    private byte[] border;
+    private byte[] flags;
+    private int[] x;
+    private int[] y;
+    // width and height for rectangles, size for squares, radius for circles
+    private int[] a;
+    private int[] b;
+    private int[] argb;
+    private float[] opacity;
+    private float[] rotation;
+
+    public ShapeStore() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public ShapeStore(int capacity) {
+        capacity = Math.max(1, capacity);
+        type = new byte[capacity];
+        border = new byte[capacity];
+        flags = new byte[capacity];
+        x = new int[capacity];
+        y = new int[capacity];
+        a = new int[capacity];
+        b = new int[capacity];
+        argb = new int[capacity];
+        opacity = new float[capacity];
+        rotation = new float[capacity];
+    }
+
+    /**
+     * Make a store holding copies of the given shapes, in the same order.
+     */
+    public static ShapeStore of(Iterable<IShape> shapes) {
+        ShapeStore store = new ShapeStore();
+        for (IShape shape : shapes) {
+            store.add(shape);
+        }
+        return store;
+    }
+
+    /**
+     * Read a binary scene file (see BinarySceneFormat) into a new store.
+     */
+    public static ShapeStore loadFromBinaryFile(String filename) throws IOException {
+        return BinarySceneFormat.readStore(Paths.get(filename));
+    }
+
+    public void saveToBinaryFile(String filename) throws IOException {
+        BinarySceneFormat.write(this, Paths.get(filename));
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Copy the shape into the store (a group's children are copied one
+     * by one). Returns the slot of the last shape added.
+     */
+    public int add(IShape shape) {
+        if (shape instanceof ShapeGroup) {
+            int slot = -1;
+            for (IShape child : ((ShapeGroup) shape).getShapes()) {
+                slot = add(child);
+            }
+            return slot;
+        }
+        Point anchor = shape.getAnchorPoint();
+        int slot;
+        if (shape instanceof Square) {
+            slot = add(SQUARE, anchor.x, anchor.y, ((Square) shape).getSize(), 0, shape.getColor().getRGB());
+        } else if (shape instanceof Circle) {
+            slot = add(CIRCLE, anchor.x, anchor.y, ((Circle) shape).getRadius(), 0, shape.getColor().getRGB());
+        } else if (shape instanceof Rectangle) {
+            Rectangle r = (Rectangle) shape;
+            slot = add(RECTANGLE, anchor.x, anchor.y, r.getWidth(), r.getHeight(), shape.getColor().getRGB());
+        } else {
+            throw new IllegalArgumentException("Can't store shape: " + shape);
+        }
+        opacity[slot] = (float) shape.getOpacity();
+        rotation[slot] = (float) shape.getRotation();
+        border[slot] = (byte) shape.getBorderStyle().ordinal();
+        if (shape.isSelected()) {
+            flags[slot] |= SELECTED;
+        }
+        return slot;
+    }
+
+    /**
+     * Add an opaque, unrotated, unselected shape with a solid border.
+     * For a square a is the size, for a circle the radius, and for a
+     * rectangle a and b are the width and height.
+     */
+    int add(byte kind, int x, int y, int a, int b, int argb) {
+        if (kind != SQUARE && kind != CIRCLE && kind != RECTANGLE) {
+            throw new IllegalArgumentException("Bad shape type " + kind);
+        }
+        if (size == type.length) {
+            grow(size + (size >> 1) + 1);
+        }
+        int slot = size++;
+        type[slot] = kind;
+        border[slot] = (byte) BorderStyle.SOLID.ordinal();
+        flags[slot] = 0;
+        this.x[slot] = x;
+        this.y[slot] = y;
+        this.a[slot] = a;
+        this.b[slot] = b;
+        this.argb[slot] = argb;
+        opacity[slot] = 1.0f;
+        rotation[slot] = 0.0f;
+        return slot;
+    }
+
+    /**
+     * Set the rest of a slot's state, as read back from a file.
+     */
+    void restore(int slot, double opacity, double rotation, BorderStyle style) {
+        this.opacity[slot] = (float) opacity;
+        this.rotation[slot] = (float) rotation;
+        border[slot] = (byte) style.ordinal();
+    }
+
+    private void grow(int capacity) {
+        type = Arrays.copyOf(type, capacity);
+        border = Arrays.copyOf(border, capacity);
+        flags = Arrays.copyOf(flags, capacity);
+        x = Arrays.copyOf(x, capacity);
+        y = Arrays.copyOf(y, capacity);
+        a = Arrays.copyOf(a, capacity);
+        b = Arrays.copyOf(b, capacity);
+        argb = Arrays.copyOf(argb, capacity);
+        opacity = Arrays.copyOf(opacity, capacity);
+        rotation = Arrays.copyOf(rotation, capacity);
+    }
+
+    /**
+     * Return a view of the shape in the given slot.
+     */
+    public ShapeView get(int slot) {
+        checkSlot(slot);
+        return new ShapeView(this, slot);
+    }
+
+    /**
+     * Return a list of views of every shape, back to front. The views
+     * are made as the list is read, not up front.
+     */
+    public List<IShape> views() {
+        return new AbstractList<IShape>() {
+            @Override
+            public IShape get(int slot) {
+                return ShapeStore.this.get(slot);
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+
+    /**
+     * Return ordinary shape objects equal to the stored shapes, back to front.
+     */
+    public List<IShape> toShapes() {
+        List<IShape> shapes = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            shapes.add(toShape(i));
+        }
+        return shapes;
+    }
+
+    AbstractShape toShape(int i) {
+        checkSlot(i);
+        AbstractShape shape;
+        Color color = new Color(argb[i], true);
+        switch (type[i]) {
+            case SQUARE:
+                shape = new Square(color, x[i], y[i], a[i]);
+                break;
+            case CIRCLE:
+                shape = new Circle(color, new Point(x[i], y[i]), a[i]);
+                break;
+            default:
+                shape = new Rectangle(new Point(x[i], y[i]), a[i], b[i], color);
+        }
+        shape.setOpacity(opacity[i]);
+        shape.rotate(rotation[i]);
+        shape.setBorderStyle(BORDER_STYLES[border[i]]);
+        shape.setSelected(isSelected(i));
+        return shape;
+    }
+
+    private void checkSlot(int slot) {
+        if (slot < 0 || slot >= size) {
+            throw new IndexOutOfBoundsException("Slot " + slot + " of " + size);
+        }
+    }
+
+    // the edges of a slot's bounding box, worked out as the shape classes do
+
+    private int left(int i) {
+        return x[i] - halfWidth(i);
+    }
+
+    private int right(int i) {
+        return x[i] + halfWidth(i);
+    }
+
+    private int top(int i) {
+        return y[i] - halfHeight(i);
+    }
+
+    private int bottom(int i) {
+        return y[i] + halfHeight(i);
+    }
+
+    private int halfWidth(int i) {
+        return type[i] == CIRCLE ? a[i] : a[i] / 2;
+    }
+
+    private int halfHeight(int i) {
+        switch (type[i]) {
+            case CIRCLE:
+                return a[i];
+            case SQUARE:
+                return a[i] / 2;
+            default:
+                return b[i] / 2;
+        }
+    }
+
+    /**
+     * Does the shape in slot i contain the point (ignoring rotation,
+     * like the shape classes)?
+     */
+    boolean contains(int i, int px, int py) {
+        if (type[i] == CIRCLE) {
+            long dx = px - x[i];
+            long dy = py - y[i];
+            return dx * dx + dy * dy <= (long) a[i] * a[i];
+        }
+        return px >= left(i) && px <= right(i) && py >= top(i) && py <= bottom(i);
+    }
+
+    /**
+     * Return the slot of the top-most shape containing the point, or -1.
+     */
+    public int shapeAt(Point p) {
+        for (int i = size - 1; i >= 0; i--) {
+            if (contains(i, p.x, p.y)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Return the slots of every shape containing the point, back to front.
+     */
+    public int[] select(Point p) {
+        int[] found = new int[8];
+        int n = 0;
+        for (int i = 0; i < size; i++) {
+            if (contains(i, p.x, p.y)) {
+                if (n == found.length) {
+                    found = Arrays.copyOf(found, n * 2);
+                }
+                found[n++] = i;
+            }
+        }
+        return Arrays.copyOf(found, n);
+    }
+
+    /**
+     * Return the slots of every shape whose bounding box overlaps the
+     * given rectangle (edges included), back to front.
+     */
+    public int[] slotsIn(int left, int right, int top, int bottom) {
+        int[] found = new int[8];
+        int n = 0;
+        for (int i = 0; i < size; i++) {
+            if (left(i) <= right && right(i) >= left && top(i) <= bottom && bottom(i) >= top) {
+                if (n == found.length) {
+                    found = Arrays.copyOf(found, n * 2);
+                }
+                found[n++] = i;
+            }
+        }
+        return Arrays.copyOf(found, n);
+    }
+
+    /**
+     * Draw the shapes back to front, skipping any that can't show up
+     * inside the clip, exactly as Scene.draw() would draw the same shapes.
+     * The color, stroke and transform of g are put back afterwards.
+     */
+    public void draw(Graphics g) {
+        Graphics2D g2d = (Graphics2D) g;
+        AffineTransform transform = g2d.getTransform();
+        Color color = g2d.getColor();
+        Stroke stroke = g2d.getStroke();
+        try {
+            java.awt.Rectangle clip = g.getClipBounds();
+            for (int i = 0; i < size; i++) {
+                if (clip == null || mayPaint(i, clip)) {
+                    drawSlot(g2d, i);
+                }
+            }
+        } finally {
+            g2d.setTransform(transform);
+            g2d.setColor(color);
+            g2d.setStroke(stroke);
+        }
+    }
+
+    /**
+     * Can slot i paint inside the clip? Uses the same paint area as
+     * Scene.extentOf().
+     */
+    private boolean mayPaint(int i, java.awt.Rectangle clip) {
+        int left, right, top, bottom;
+        if (rotation[i] == 0) {
+            left = left(i) - Scene.PAINT_MARGIN;
+            right = right(i) + Scene.PAINT_MARGIN;
+            top = top(i) - Scene.PAINT_MARGIN;
+            bottom = bottom(i) + Scene.PAINT_MARGIN;
+        } else {
+            int cx = (left(i) + right(i)) / 2, cy = (top(i) + bottom(i)) / 2;
+            int reach = Scene.rotatedReach(2 * halfWidth(i), 2 * halfHeight(i));
+            left = cx - reach;
+            right = cx + reach;
+            top = cy - reach;
+            bottom = cy + reach;
+        }
+        return left <= clip.x + clip.width && right >= clip.x
+                && top <= clip.y + clip.height && bottom >= clip.y;
+    }
+
+    /**
+     * Draw one slot the way AbstractShape.draw() draws a shape.
+     */
+    void drawSlot(Graphics2D g, int i) {
+        int left = left(i), top = top(i);
+        int width = right(i) - left, height = bottom(i) - top;
+        AffineTransform saved = null;
+        if (rotation[i] != 0) {
+            saved = g.getTransform();
+            g.rotate(Math.toRadians(rotation[i]), (left + left + width) / 2, (top + top + height) / 2);
+        }
+        g.setColor(ColorCache.translucent(argb[i], opacity[i]));
+        g.setStroke(BORDER_STYLES[border[i]].getStroke());
+        switch (type[i]) {
+            case SQUARE:
+                g.fillRect(x[i] - a[i] / 2, y[i] - a[i] / 2, a[i], a[i]);
+                break;
+            case CIRCLE:
+                g.fillOval(x[i] - a[i], y[i] - a[i], a[i] * 2, a[i] * 2);
+                break;
+            default:
+                g.fillRect(x[i] - a[i] / 2, y[i] - b[i] / 2, a[i], b[i]);
+        }
+        if ((flags[i] & SELECTED) != 0) {
+            g.setColor(Color.BLACK);
+            g.setStroke(AbstractShape.SELECTION_STROKE);
+            g.drawRect(left - 2, top - 2, width + 4, height + 4);
+        }
+        if (saved != null) {
+            g.setTransform(saved);
+        }
+    }
+
+    // single-slot accessors, used by ShapeView and the binary format
+
+    byte typeOf(int i) {
+        return type[i];
+    }
+
+    int xOf(int i) {
+        return x[i];
+    }
+
+    int yOf(int i) {
+        return y[i];
+    }
+
+    int aOf(int i) {
+        return a[i];
+    }
+
+    int bOf(int i) {
+        return b[i];
+    }
+
+    int argbOf(int i) {
+        return argb[i];
+    }
+
+    double opacityOf(int i) {
+        return opacity[i];
+    }
+
+    double rotationOf(int i) {
+        return rotation[i];
+    }
+
+    BorderStyle borderOf(int i) {
+        return BORDER_STYLES[border[i]];
+    }
+
+    BoundingBox boundsOf(int i) {
+        return new BoundingBox(left(i), right(i), top(i), bottom(i));
+    }
+
+    boolean isSelected(int i) {
+        return (flags[i] & SELECTED) != 0;
+    }
+
+    void setSelected(int i, boolean selected) {
+        flags[i] = (byte) (selected ? flags[i] | SELECTED : flags[i] & ~SELECTED);
+    }
+
+    void setPosition(int i, int x, int y) {
+        this.x[i] = x;
+        this.y[i] = y;
+    }
+
+    void setSize(int i, int a, int b) {
+        this.a[i] = a;
+        this.b[i] = b;
+    }
+
+    void setArgb(int i, int argb) {
+        this.argb[i] = argb;
+    }
+
+    void setOpacity(int i, double opacity) {
+        this.opacity[i] = (float) opacity;
+    }
+
+    void setRotation(int i, double rotation) {
+        this.rotation[i] = (float) rotation;
+    }
+
+    void setBorder(int i, BorderStyle style) {
+        border[i] = (byte) style.ordinal();
+    }
+}
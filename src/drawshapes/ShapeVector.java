@@ -0,0 +1,321 @@
+package drawshapes;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * An immutable list of shapes. Changing it gives a new list that shares
+ * everything but the changed path with the old one, so get, set, insert
+ * and remove are all O(log n), and an old version stays valid for as
+ * long as anyone holds on to it. Any number of threads can read one
+ * version without locking.
+ *
+ * The list is a tree: leaves hold up to WIDTH shapes, and branches hold
+ * up to WIDTH children along with where each child's shapes end.
+ */
+final class ShapeVector implements Iterable<IShape>
+{
+    private static final int WIDTH = 64;
+
+    static final ShapeVector EMPTY = new ShapeVector(new Leaf(new IShape[0]));
+
+    private final Node root;
+
+    private ShapeVector(Node root) {
+        this.root = root;
+    }
+
+    /**
+     * Return a vector holding the given shapes, built bottom up in O(n).
+     */
+    static ShapeVector of(List<IShape> shapes) {
+        if (shapes.isEmpty()) {
+            return EMPTY;
+        }
+        IShape[] all = shapes.toArray(new IShape[0]);
+        Node[] level = new Node[(all.length + WIDTH - 1) / WIDTH];
+        for (int i = 0; i < level.length; i++) {
+            level[i] = new Leaf(Arrays.copyOfRange(all, i * WIDTH, Math.min(all.length, (i + 1) * WIDTH)));
+        }
+        while (level.length > 1) {
+            Node[] parents = new Node[(level.length + WIDTH - 1) / WIDTH];
+            for (int i = 0; i < parents.length; i++) {
+                parents[i] = new Branch(Arrays.copyOfRange(level, i * WIDTH, Math.min(level.length, (i + 1) * WIDTH)));
+            }
+            level = parents;
+        }
+        return new ShapeVector(level[0]);
+    }
+
+    int size() {
+        return root.size();
+    }
+
+    IShape get(int position) {
+        check(position, size());
+        return root.get(position);
+    }
+
+    ShapeVector set(int position, IShape shape) {
+        check(position, size());
+        return new ShapeVector(root.set(position, shape));
+    }
+
+    ShapeVector insert(int position, IShape shape) {
+        check(position, size() + 1);
+        Node[] split = root.insert(position, shape);
+        return new ShapeVector(split.length == 1 ? split[0] : new Branch(split));
+    }
+
+    ShapeVector remove(int position) {
+        check(position, size());
+        Node node = root.remove(position);
+        // drop branches left with a single child
+        while (node instanceof Branch && ((Branch) node).children.length == 1) {
+            node = ((Branch) node).children[0];
+        }
+        return node.size() == 0 ? EMPTY : new ShapeVector(node);
+    }
+
+    private static void check(int position, int limit) {
+        if (position < 0 || position >= limit) {
+            throw new IndexOutOfBoundsException("Position " + position + ", size " + (limit - 1));
+        }
+    }
+
+    /**
+     * Walk the shapes in order, a leaf at a time.
+     */
+    @Override
+    public Iterator<IShape> iterator() {
+        return new Iterator<IShape>() {
+            private final Deque<Branch> branches = new ArrayDeque<>();
+            private final Deque<Integer> nextChild = new ArrayDeque<>();
+            private IShape[] leaf = new IShape[0];
+            private int next;
+
+            {
+                descend(root);
+            }
+
+            private void descend(Node node) {
+                while (node instanceof Branch) {
+                    Branch branch = (Branch) node;
+                    branches.push(branch);
+                    nextChild.push(1);
+                    node = branch.children[0];
+                }
+                leaf = ((Leaf) node).items;
+                next = 0;
+            }
+
+            @Override
+            public boolean hasNext() {
+                while (next == leaf.length) {
+                    if (branches.isEmpty()) {
+                        return false;
+                    }
+                    Branch branch = branches.peek();
+                    int child = nextChild.pop();
+                    if (child < branch.children.length) {
+                        nextChild.push(child + 1);
+                        descend(branch.children[child]);
+                    } else {
+                        branches.pop();
+                    }
+                }
+                return true;
+            }
+
+            @Override
+            public IShape next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return leaf[next++];
+            }
+        };
+    }
+
+    private abstract static class Node
+    {
+        abstract int size();
+
+        abstract IShape get(int position);
+
+        abstract Node set(int position, IShape shape);
+
+        /**
+         * Return the node with the shape inserted, as one node, or as
+         * two if it had to split.
+         */
+        abstract Node[] insert(int position, IShape shape);
+
+        /**
+         * Return the node with the shape removed. It may be left empty.
+         */
+        abstract Node remove(int position);
+    }
+
+    private static final class Leaf extends Node
+    {
+        final IShape[] items;
+
+        Leaf(IShape[] items) {
+            this.items = items;
+        }
+
+        @Override
+        int size() {
+            return items.length;
+        }
+
+        @Override
+        IShape get(int position) {
+            return items[position];
+        }
+
+        @Override
+        Node set(int position, IShape shape) {
+            IShape[] copy = items.clone();
+            copy[position] = shape;
+            return new Leaf(copy);
+        }
+
+        @Override
+        Node[] insert(int position, IShape shape) {
+            IShape[] copy = new IShape[items.length + 1];
+            System.arraycopy(items, 0, copy, 0, position);
+            copy[position] = shape;
+            System.arraycopy(items, position, copy, position + 1, items.length - position);
+            if (copy.length <= WIDTH) {
+                return new Node[] { new Leaf(copy) };
+            }
+            int half = copy.length / 2;
+            return new Node[] { new Leaf(Arrays.copyOfRange(copy, 0, half)),
+                    new Leaf(Arrays.copyOfRange(copy, half, copy.length)) };
+        }
+
+        @Override
+        Node remove(int position) {
+            IShape[] copy = new IShape[items.length - 1];
+            System.arraycopy(items, 0, copy, 0, position);
+            System.arraycopy(items, position + 1, copy, position, copy.length - position);
+            return new Leaf(copy);
+        }
+    }
+
+    private static final class Branch extends Node
+    {
+        final Node[] children;
+        // ends[k] is the position just after the last shape under children[k]
+        final int[] ends;
+
+        Branch(Node[] children) {
+            this.children = children;
+            ends = new int[children.length];
+            int end = 0;
+            for (int k = 0; k < children.length; k++) {
+                end += children[k].size();
+                ends[k] = end;
+            }
+        }
+
+        Branch(Node[] children, int[] ends) {
+            this.children = children;
+            this.ends = ends;
+        }
+
+        /**
+         * Return a copy of ends with the given amount added from child k on,
+         * which saves asking every child for its size.
+         */
+        private int[] shiftEnds(int k, int amount) {
+            int[] shifted = ends.clone();
+            for (int j = k; j < shifted.length; j++) {
+                shifted[j] += amount;
+            }
+            return shifted;
+        }
+
+        @Override
+        int size() {
+            return ends.length == 0 ? 0 : ends[ends.length - 1];
+        }
+
+        /**
+         * Return the first child whose shapes end after the position.
+         */
+        private int childFor(int position) {
+            int low = 0, high = ends.length - 1;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (ends[mid] > position) {
+                    high = mid;
+                } else {
+                    low = mid + 1;
+                }
+            }
+            return low;
+        }
+
+        private int startOf(int k) {
+            return k == 0 ? 0 : ends[k - 1];
+        }
+
+        @Override
+        IShape get(int position) {
+            int k = childFor(position);
+            return children[k].get(position - startOf(k));
+        }
+
+        @Override
+        Node set(int position, IShape shape) {
+            int k = childFor(position);
+            Node[] copy = children.clone();
+            copy[k] = children[k].set(position - startOf(k), shape);
+            return new Branch(copy, ends);
+        }
+
+        @Override
+        Node[] insert(int position, IShape shape) {
+            // inserting at the very end goes into the last child
+            int k = position == size() ? children.length - 1 : childFor(position);
+            Node[] split = children[k].insert(position - startOf(k), shape);
+            if (split.length == 1) {
+                Node[] copy = children.clone();
+                copy[k] = split[0];
+                return new Node[] { new Branch(copy, shiftEnds(k, 1)) };
+            }
+            Node[] copy = new Node[children.length + split.length - 1];
+            System.arraycopy(children, 0, copy, 0, k);
+            System.arraycopy(split, 0, copy, k, split.length);
+            System.arraycopy(children, k + 1, copy, k + split.length, children.length - k - 1);
+            if (copy.length <= WIDTH) {
+                return new Node[] { new Branch(copy) };
+            }
+            int half = copy.length / 2;
+            return new Node[] { new Branch(Arrays.copyOfRange(copy, 0, half)),
+                    new Branch(Arrays.copyOfRange(copy, half, copy.length)) };
+        }
+
+        @Override
+        Node remove(int position) {
+            int k = childFor(position);
+            Node child = children[k].remove(position - startOf(k));
+            if (child.size() > 0) {
+                Node[] copy = children.clone();
+                copy[k] = child;
+                return new Branch(copy, shiftEnds(k, -1));
+            }
+            Node[] copy = new Node[children.length - 1];
+            System.arraycopy(children, 0, copy, 0, k);
+            System.arraycopy(children, k + 1, copy, k, copy.length - k);
+            return new Branch(copy);
+        }
+    }
+}
@@ -0,0 +1,165 @@
+package drawshapes;
+
+import java.awt.Color;
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.Point;
+
+/**
+ * A shape stored in a ShapeStore, seen as an IShape.
+ *
+ * The view holds nothing but the store and the slot: every getter reads
+ * the store's arrays and every setter writes them, so any number of
+ * views of the same slot see the same shape. Points and colors handed
+ * out are fresh copies; change the shape with setAnchorPoint() or
+ * setColor(), not by changing what they return.
+ *
+ * The store itself doesn't tell anyone about changes; a view only tells
+ * its own listener about changes made through that view.
+ */
+public final class ShapeView implements IMoveableShape
+{
+    private final ShapeStore store;
+    private final int slot;
+    private IShapeListener listener;
+
+    ShapeView(ShapeStore store, int slot) {
+        this.store = store;
+        this.slot = slot;
+    }
+
+    public int getSlot() {
+        return slot;
+    }
+
+    @Override
+    public void draw(Graphics g) {
+        store.drawSlot((Graphics2D) g, slot);
+    }
+
+    @Override
+    public boolean intersects(IShape other) {
+        if (other instanceof ShapeView) {
+            ShapeView view = (ShapeView) other;
+            if (view.store == store && view.slot == slot) {
+                return false;
+            }
+            other = view.store.toShape(view.slot);
+        }
+        return Collisions.intersects(store.toShape(slot), other);
+    }
+
+    @Override
+    public boolean contains(Point point) {
+        return store.contains(slot, point.x, point.y);
+    }
+
+    @Override
+    public Color getColor() {
+        return new Color(store.argbOf(slot), true);
+    }
+
+    @Override
+    public void setColor(Color color) {
+        store.setArgb(slot, color.getRGB());
+        fireShapeChanged();
+    }
+
+    @Override
+    public boolean isSelected() {
+        return store.isSelected(slot);
+    }
+
+    @Override
+    public void setSelected(boolean b) {
+        if (store.isSelected(slot) != b) {
+            store.setSelected(slot, b);
+            fireShapeChanged();
+        }
+    }
+
+    @Override
+    public Point getAnchorPoint() {
+        return new Point(store.xOf(slot), store.yOf(slot));
+    }
+
+    @Override
+    public void setAnchorPoint(Point p) {
+        store.setPosition(slot, p.x, p.y);
+        fireShapeChanged();
+    }
+
+    @Override
+    public BoundingBox getBoundingBox() {
+        return store.boundsOf(slot);
+    }
+
+    @Override
+    public void setShapeListener(IShapeListener listener) {
+        this.listener = listener;
+    }
+
+    private void fireShapeChanged() {
+        if (listener != null) {
+            listener.shapeChanged(this);
+        }
+    }
+
+    /**
+     * Return an ordinary shape object (not a view) equal to this shape.
+     */
+    @Override
+    public IShape clone() {
+        return store.toShape(slot);
+    }
+
+    @Override
+    public String toString() {
+        return store.toShape(slot).toString();
+    }
+
+    @Override
+    public void move(int dx, int dy) {
+        store.setPosition(slot, store.xOf(slot) + dx, store.yOf(slot) + dy);
+        fireShapeChanged();
+    }
+
+    @Override
+    public void scale(double factor) {
+        store.setSize(slot, (int) (store.aOf(slot) * factor), (int) (store.bOf(slot) * factor));
+        fireShapeChanged();
+    }
+
+    @Override
+    public void rotate(double angle) {
+        store.setRotation(slot, (store.rotationOf(slot) + angle) % 360);
+        fireShapeChanged();
+    }
+
+    @Override
+    public double getRotation() {
+        return store.rotationOf(slot);
+    }
+
+    @Override
+    public double getOpacity() {
+        return store.opacityOf(slot);
+    }
+
+    @Override
+    public void setOpacity(double opacity) {
+        store.setOpacity(slot, Math.max(0, Math.min(1, opacity)));
+        fireShapeChanged();
+    }
+
+    @Override
+    public void setBorderStyle(BorderStyle style) {
+        store.setBorder(slot, style);
+        fireShapeChanged();
+    }
+
+    @Override
+    public BorderStyle getBorderStyle() {
+        return store.borderOf(slot);
+    }
+}
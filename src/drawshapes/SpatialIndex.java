@@ -0,0 +1,314 @@
+package drawshapes;
+
+import java.awt.Point;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A uniform grid over scene coordinates, used to find the shapes near
+ * a point or inside a rectangle without walking every shape in the scene.
+ *
+ * Each shape is stored in every cell its bounding box overlaps. A shape
+ * that would cover too many cells is kept in a separate list that every
+ * query checks, so one huge shape can't flood the grid.
+ *
+ * The index stores whatever bounds the Scene hands it for each shape
+ * (the Scene uses the area a shape may paint, which is a little bigger
+ * than its bounding box). It doesn't know anything about z-order either,
+ * the Scene takes care of that.
+ */
+class SpatialIndex
+{
+    static final int DEFAULT_CELL_SIZE = 64;
+    private static final int MAX_CELLS_PER_SHAPE = 256;
+
+    private static class Entry {
+        final IShape shape;
+        int left, right, top, bottom;
+        boolean large;
+        int stamp;
+
+        Entry(IShape shape) {
+            this.shape = shape;
+        }
+    }
+
+    private final int cellSize;
+    private final Map<Long, List<Entry>> cells = new HashMap<>();
+    private final List<Entry> large = new ArrayList<>();
+    private final Map<IShape, Entry> entries = new IdentityHashMap<>();
+    private int stamp;
+
+    SpatialIndex() {
+        this(DEFAULT_CELL_SIZE);
+    }
+
+    SpatialIndex(int cellSize) {
+        this.cellSize = cellSize;
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    boolean contains(IShape shape) {
+        return entries.containsKey(shape);
+    }
+
+    void clear() {
+        cells.clear();
+        large.clear();
+        entries.clear();
+    }
+
+    void insert(IShape shape, BoundingBox bounds) {
+        if (entries.containsKey(shape)) {
+            update(shape, bounds);
+            return;
+        }
+        Entry entry = new Entry(shape);
+        entries.put(shape, entry);
+        store(entry, bounds);
+    }
+
+    void remove(IShape shape) {
+        Entry entry = entries.remove(shape);
+        if (entry != null) {
+            unstore(entry);
+        }
+    }
+
+    /**
+     * Re-index a shape whose bounds may have changed.
+     */
+    void update(IShape shape, BoundingBox bounds) {
+        Entry entry = entries.get(shape);
+        if (entry == null) {
+            return;
+        }
+        if (!entry.large && sameCells(entry, bounds)) {
+            // still covers the same cells, just remember the new bounds
+            setBounds(entry, bounds);
+            return;
+        }
+        unstore(entry);
+        store(entry, bounds);
+    }
+
+    /**
+     * Re-index many shapes at once, each under the bounds at the same
+     * position, and return the box around the bounds they had before
+     * (null if none of them was indexed). Shapes that stay in the same
+     * cells only get their new bounds. When a good part of the index
+     * changes cells, the grid is built again from scratch, which is
+     * cheaper than taking every such entry out of its cells and putting
+     * it in others.
+     */
+    BoundingBox updateAll(IShape[] shapes, BoundingBox[] bounds) {
+        int left = Integer.MAX_VALUE, right = Integer.MIN_VALUE, top = Integer.MAX_VALUE, bottom = Integer.MIN_VALUE;
+        List<Entry> moved = new ArrayList<>();
+        List<BoundingBox> movedBounds = new ArrayList<>();
+        for (int i = 0; i < shapes.length; i++) {
+            Entry entry = entries.get(shapes[i]);
+            if (entry == null) {
+                continue;
+            }
+            left = Math.min(left, entry.left);
+            right = Math.max(right, entry.right);
+            top = Math.min(top, entry.top);
+            bottom = Math.max(bottom, entry.bottom);
+            if (!entry.large && sameCells(entry, bounds[i])) {
+                setBounds(entry, bounds[i]);
+            } else {
+                moved.add(entry);
+                movedBounds.add(bounds[i]);
+            }
+        }
+        if (moved.size() * 4L >= entries.size()) {
+            for (int i = 0; i < moved.size(); i++) {
+                setBounds(moved.get(i), movedBounds.get(i));
+            }
+            cells.clear();
+            large.clear();
+            for (Entry entry : entries.values()) {
+                place(entry);
+            }
+        } else {
+            for (int i = 0; i < moved.size(); i++) {
+                unstore(moved.get(i));
+                store(moved.get(i), movedBounds.get(i));
+            }
+        }
+        return left > right ? null : new BoundingBox(left, right, top, bottom);
+    }
+
+    /**
+     * Return the bounds the shape is indexed under, or null if
+     * the shape isn't in the index.
+     */
+    BoundingBox boundsOf(IShape shape) {
+        Entry e = entries.get(shape);
+        if (e == null) {
+            return null;
+        }
+        return new BoundingBox(e.left, e.right, e.top, e.bottom);
+    }
+
+    /**
+     * Return roughly what share (0 to 1) of the indexed shapes are in the
+     * given rectangle, judging by how many of the cells that hold shapes
+     * it covers. Used to decide whether a query is worth it at all.
+     */
+    double shareOf(int left, int right, int top, int bottom) {
+        long cellCount = (long) (cell(right) - cell(left) + 1) * (cell(bottom) - cell(top) + 1);
+        return Math.min(1.0, (double) cellCount / Math.max(1, cells.size()));
+    }
+
+    /**
+     * Do the indexed bounds of the shape overlap the given rectangle?
+     */
+    boolean overlaps(IShape shape, int left, int right, int top, int bottom) {
+        Entry e = entries.get(shape);
+        return e != null && overlaps(e, left, right, top, bottom);
+    }
+
+    /**
+     * Return the shapes whose bounds, grown by the given tolerance,
+     * contains the point. The result is in no particular order.
+     */
+    List<IShape> query(Point p, int tolerance) {
+        if (tolerance == 0) {
+            List<IShape> result = new ArrayList<>();
+            List<Entry> cell = cells.get(key(cell(p.x), cell(p.y)));
+            if (cell != null) {
+                for (Entry e : cell) {
+                    if (overlaps(e, p.x, p.x, p.y, p.y)) {
+                        result.add(e.shape);
+                    }
+                }
+            }
+            for (Entry e : large) {
+                if (overlaps(e, p.x, p.x, p.y, p.y)) {
+                    result.add(e.shape);
+                }
+            }
+            return result;
+        }
+        return query(p.x - tolerance, p.x + tolerance, p.y - tolerance, p.y + tolerance);
+    }
+
+    /**
+     * Return the shapes whose bounds overlap the given rectangle
+     * (edges included). The result is in no particular order.
+     */
+    List<IShape> query(int left, int right, int top, int bottom) {
+        List<IShape> result = new ArrayList<>();
+        int stamp = ++this.stamp;
+        int minX = cell(left), maxX = cell(right);
+        int minY = cell(top), maxY = cell(bottom);
+        long cellCount = (long) (maxX - minX + 1) * (maxY - minY + 1);
+        if (cellCount > entries.size()) {
+            // cheaper to look at every shape than every cell
+            for (Entry e : entries.values()) {
+                if (overlaps(e, left, right, top, bottom)) {
+                    result.add(e.shape);
+                }
+            }
+            return result;
+        }
+        for (int cx = minX; cx <= maxX; cx++) {
+            for (int cy = minY; cy <= maxY; cy++) {
+                List<Entry> cell = cells.get(key(cx, cy));
+                if (cell == null) {
+                    continue;
+                }
+                for (Entry e : cell) {
+                    if (e.stamp != stamp && overlaps(e, left, right, top, bottom)) {
+                        e.stamp = stamp;
+                        result.add(e.shape);
+                    }
+                }
+            }
+        }
+        for (Entry e : large) {
+            if (overlaps(e, left, right, top, bottom)) {
+                result.add(e.shape);
+            }
+        }
+        return result;
+    }
+
+    private void store(Entry entry, BoundingBox bounds) {
+        setBounds(entry, bounds);
+        place(entry);
+    }
+
+    /**
+     * Put the entry in the cells (or the large list) for its bounds.
+     */
+    private void place(Entry entry) {
+        int minX = cell(entry.left), maxX = cell(entry.right);
+        int minY = cell(entry.top), maxY = cell(entry.bottom);
+        long cellCount = (long) (maxX - minX + 1) * (maxY - minY + 1);
+        entry.large = cellCount > MAX_CELLS_PER_SHAPE;
+        if (entry.large) {
+            large.add(entry);
+            return;
+        }
+        for (int cx = minX; cx <= maxX; cx++) {
+            for (int cy = minY; cy <= maxY; cy++) {
+                cells.computeIfAbsent(key(cx, cy), k -> new ArrayList<>()).add(entry);
+            }
+        }
+    }
+
+    private void unstore(Entry entry) {
+        if (entry.large) {
+            large.remove(entry);
+            return;
+        }
+        int minX = cell(entry.left), maxX = cell(entry.right);
+        int minY = cell(entry.top), maxY = cell(entry.bottom);
+        for (int cx = minX; cx <= maxX; cx++) {
+            for (int cy = minY; cy <= maxY; cy++) {
+                Long key = key(cx, cy);
+                List<Entry> cell = cells.get(key);
+                if (cell != null) {
+                    cell.remove(entry);
+                    if (cell.isEmpty()) {
+                        cells.remove(key);
+                    }
+                }
+            }
+        }
+    }
+
+    private boolean sameCells(Entry entry, BoundingBox box) {
+        return cell(entry.left) == cell(box.getLeft())
+                && cell(entry.right) == cell(box.getRight())
+                && cell(entry.top) == cell(box.getTop())
+                && cell(entry.bottom) == cell(box.getBottom());
+    }
+
+    private static void setBounds(Entry entry, BoundingBox box) {
+        entry.left = box.getLeft();
+        entry.right = box.getRight();
+        entry.top = box.getTop();
+        entry.bottom = box.getBottom();
+    }
+
+    private static boolean overlaps(Entry e, int left, int right, int top, int bottom) {
+        return e.left <= right && e.right >= left && e.top <= bottom && e.bottom >= top;
+    }
+
+    private int cell(int coordinate) {
+        return Math.floorDiv(coordinate, cellSize);
+    }
+
+    private static long key(int cx, int cy) {
+        return ((long) cx << 32) | (cy & 0xffffffffL);
+    }
+}
@@ -14,12 +14,7 @@ public class Square extends AbstractShape {
 
     @Override
     protected void drawShape(Graphics g) {
-        g.setColor(color);
         g.fillRect(anchorPoint.x - size/2, anchorPoint.y - size/2, size, size);
-        if (selected) {
-            g.setColor(Color.BLACK);
-            g.drawRect(anchorPoint.x - size/2 - 2, anchorPoint.y - size/2 - 2, size + 4, size + 4);
-        }
     }
 
     @Override
@@ -29,18 +24,11 @@ public class Square extends AbstractShape {
     }
 
     @Override
-    public boolean intersects(IShape other) {
-        BoundingBox thisBox = getBoundingBox();
-        BoundingBox otherBox = other.getBoundingBox();
-        return thisBox.intersects(otherBox);
-    }
-
-    @Override
-    public BoundingBox getBoundingBox() {
+    protected BoundingBox computeBoundingBox() {
         return new BoundingBox(
             anchorPoint.x - size/2,
-            anchorPoint.y - size/2,
             anchorPoint.x + size/2,
+            anchorPoint.y - size/2,
             anchorPoint.y + size/2
         );
     }
@@ -48,17 +36,20 @@ public class Square extends AbstractShape {
     @Override
     public void scale(double factor) {
         size = (int) (size * factor);
+        boundsChanged();
     }
 
     @Override
     public IShape clone() {
         Square clone = new Square(color, anchorPoint.x, anchorPoint.y, size);
+        copyStyleTo(clone);
         clone.setSelected(selected);
         return clone;
     }
 
     public void setSize(int size) {
         this.size = size;
+        boundsChanged();
     }
 
     public int getSize() {
@@ -0,0 +1,221 @@
+package drawshapes;
+
+import java.awt.AlphaComposite;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Pictures of the scene, cut into square tiles, kept between frames so
+ * panning only has to draw the parts of the scene that come into view.
+ *
+ * Tiles are laid out in panel pixels relative to the scene origin at the
+ * current zoom, so panning by whole pixels keeps every tile valid;
+ * zooming throws them all away. When the scene changes, the tiles under
+ * the changed area (the dirty region, in scene coordinates) are thrown
+ * away. Missing tiles are drawn together, in as few calls to
+ * Scene.draw(g, visible) as possible, because each call walks the shapes
+ * in the area once. With the missing tiles, the tiles in a ring of
+ * MARGIN tiles around the view are drawn too, so a pan usually finds
+ * them ready.
+ *
+ * The cache only handles a Graphics whose transform is a whole-pixel
+ * translation (e.g. not a HiDPI scale); paint() returns false otherwise.
+ */
+final class TileCache
+{
+    static final int TILE_SIZE = 256;
+    private static final int MARGIN = 1;
+    private static final int MIN_TILES = 64;
+
+    private final Scene scene;
+    private final Map<Long, BufferedImage> tiles = new LinkedHashMap<>(16, 0.75f, true);
+    private int capacity = MIN_TILES;
+    // the zoom, and fractions of a pixel of the pan, the tiles were drawn for
+    private double zoom = Double.NaN;
+    private double fractionX, fractionY;
+
+    TileCache(Scene scene) {
+        this.scene = scene;
+    }
+
+    /**
+     * Forget the tiles that show any of the given area of the scene.
+     */
+    void invalidate(java.awt.Rectangle area, Viewport viewport) {
+        if (tiles.isEmpty() || viewport.getZoom() != zoom) {
+            return;
+        }
+        // one pixel more all round, for antialiasing
+        int tx0 = Math.floorDiv((int) Math.floor(area.x * zoom + fractionX) - 1, TILE_SIZE);
+        int tx1 = Math.floorDiv((int) Math.ceil((area.x + area.width) * zoom + fractionX) + 1, TILE_SIZE);
+        int ty0 = Math.floorDiv((int) Math.floor(area.y * zoom + fractionY) - 1, TILE_SIZE);
+        int ty1 = Math.floorDiv((int) Math.ceil((area.y + area.height) * zoom + fractionY) + 1, TILE_SIZE);
+        if ((long) (tx1 - tx0 + 1) * (ty1 - ty0 + 1) > tiles.size()) {
+            tiles.keySet().removeIf(key -> {
+                int tx = (int) (key >> 32), ty = (int) (long) key;
+                return tx >= tx0 && tx <= tx1 && ty >= ty0 && ty <= ty1;
+            });
+            return;
+        }
+        for (int ty = ty0; ty <= ty1; ty++) {
+            for (int tx = tx0; tx <= tx1; tx++) {
+                tiles.remove(key(tx, ty));
+            }
+        }
+    }
+
+    /**
+     * Draw the panel's view of the scene onto g from the tiles, drawing
+     * any that are missing first if allowed to. Returns false, having
+     * drawn nothing, if g can't take tiles or tiles are missing and
+     * mayRender is false.
+     */
+    boolean paint(Graphics2D g, Viewport viewport, int width, int height, boolean mayRender) {
+        AffineTransform t = g.getTransform();
+        if (t.getType() != AffineTransform.TYPE_IDENTITY && t.getType() != AffineTransform.TYPE_TRANSLATION
+                || t.getTranslateX() != Math.rint(t.getTranslateX()) || t.getTranslateY() != Math.rint(t.getTranslateY())) {
+            return false;
+        }
+        AffineTransform view = viewport.getTransform();
+        double panX = view.getTranslateX(), panY = view.getTranslateY();
+        int wholeX = (int) Math.floor(panX), wholeY = (int) Math.floor(panY);
+        if (viewport.getZoom() != zoom || panX - wholeX != fractionX || panY - wholeY != fractionY) {
+            tiles.clear();
+            zoom = viewport.getZoom();
+            fractionX = panX - wholeX;
+            fractionY = panY - wholeY;
+        }
+        // tile (tx, ty) goes at panel pixel (wholeX + tx * TILE_SIZE, wholeY + ty * TILE_SIZE)
+        int tx0 = Math.floorDiv(-wholeX, TILE_SIZE), tx1 = Math.floorDiv(width - 1 - wholeX, TILE_SIZE);
+        int ty0 = Math.floorDiv(-wholeY, TILE_SIZE), ty1 = Math.floorDiv(height - 1 - wholeY, TILE_SIZE);
+        int visible = (tx1 - tx0 + 1 + 2 * MARGIN) * (ty1 - ty0 + 1 + 2 * MARGIN);
+        capacity = Math.max(MIN_TILES, 2 * visible);
+        if (hasMissing(tx0, tx1, ty0, ty1)) {
+            if (!mayRender) {
+                return false;
+            }
+            drawMissing(g, tx0 - MARGIN, tx1 + MARGIN, ty0 - MARGIN, ty1 + MARGIN);
+        }
+        for (int ty = ty0; ty <= ty1; ty++) {
+            for (int tx = tx0; tx <= tx1; tx++) {
+                BufferedImage tile = tiles.get(key(tx, ty));
+                if (tile != null) {
+                    g.drawImage(tile, wholeX + tx * TILE_SIZE, wholeY + ty * TILE_SIZE, null);
+                }
+            }
+        }
+        return true;
+    }
+
+    private boolean hasMissing(int tx0, int tx1, int ty0, int ty1) {
+        for (int ty = ty0; ty <= ty1; ty++) {
+            for (int tx = tx0; tx <= tx1; tx++) {
+                if (!tiles.containsKey(key(tx, ty))) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Draw the missing tiles in the given range. If they are spread
+     * thinly over it, split the range in two along its longer side, so
+     * a pan that uncovers an L-shaped border doesn't redraw the middle.
+     */
+    private void drawMissing(Graphics2D g, int tx0, int tx1, int ty0, int ty1) {
+        List<int[]> missing = new ArrayList<>();
+        int minX = Integer.MAX_VALUE, maxX = Integer.MIN_VALUE, minY = Integer.MAX_VALUE, maxY = Integer.MIN_VALUE;
+        for (int ty = ty0; ty <= ty1; ty++) {
+            for (int tx = tx0; tx <= tx1; tx++) {
+                if (!tiles.containsKey(key(tx, ty))) {
+                    missing.add(new int[] { tx, ty });
+                    minX = Math.min(minX, tx);
+                    maxX = Math.max(maxX, tx);
+                    minY = Math.min(minY, ty);
+                    maxY = Math.max(maxY, ty);
+                }
+            }
+        }
+        if (missing.isEmpty()) {
+            return;
+        }
+        int across = maxX - minX + 1, down = maxY - minY + 1;
+        if (missing.size() * 2 < across * down) {
+            if (across >= down) {
+                int middle = minX + across / 2;
+                drawMissing(g, minX, middle - 1, minY, maxY);
+                drawMissing(g, middle, maxX, minY, maxY);
+            } else {
+                int middle = minY + down / 2;
+                drawMissing(g, minX, maxX, minY, middle - 1);
+                drawMissing(g, minX, maxX, middle, maxY);
+            }
+            return;
+        }
+        BufferedImage image = render(g, minX, minY, across, down);
+        for (int[] tile : missing) {
+            store(tile[0], tile[1], image.getSubimage((tile[0] - minX) * TILE_SIZE, (tile[1] - minY) * TILE_SIZE,
+                    TILE_SIZE, TILE_SIZE));
+        }
+    }
+
+    /**
+     * Draw the scene into one image covering the given block of tiles.
+     */
+    private BufferedImage render(Graphics2D g, int tx, int ty, int across, int down) {
+        BufferedImage image = new BufferedImage(across * TILE_SIZE, down * TILE_SIZE, BufferedImage.TYPE_INT_ARGB_PRE);
+        Graphics2D ig = image.createGraphics();
+        try {
+            ig.setRenderingHints(g.getRenderingHints());
+            ig.setRenderingHint(RenderingHints.KEY_ANTIALIASING, g.getRenderingHint(RenderingHints.KEY_ANTIALIASING));
+            ig.setClip(0, 0, image.getWidth(), image.getHeight());
+            ig.translate(-tx * TILE_SIZE + fractionX, -ty * TILE_SIZE + fractionY);
+            ig.scale(zoom, zoom);
+            double left = (tx * TILE_SIZE - fractionX) / zoom;
+            double top = (ty * TILE_SIZE - fractionY) / zoom;
+            int x = (int) Math.floor(left), y = (int) Math.floor(top);
+            java.awt.Rectangle world = new java.awt.Rectangle(x, y,
+                    (int) Math.ceil(left + image.getWidth() / zoom) - x, (int) Math.ceil(top + image.getHeight() / zoom) - y);
+            scene.draw(ig, world);
+        } finally {
+            ig.dispose();
+        }
+        return image;
+    }
+
+    /**
+     * Keep a copy of the tile, reusing the image of the least recently
+     * used tile if the cache is full.
+     */
+    private void store(int tx, int ty, BufferedImage picture) {
+        BufferedImage tile = null;
+        if (tiles.size() >= capacity) {
+            Iterator<BufferedImage> oldest = tiles.values().iterator();
+            tile = oldest.next();
+            oldest.remove();
+        }
+        if (tile == null) {
+            tile = new BufferedImage(TILE_SIZE, TILE_SIZE, BufferedImage.TYPE_INT_ARGB_PRE);
+        }
+        Graphics2D tg = tile.createGraphics();
+        try {
+            tg.setComposite(AlphaComposite.Src);
+            tg.drawImage(picture, 0, 0, null);
+        } finally {
+            tg.dispose();
+        }
+        tiles.put(key(tx, ty), tile);
+    }
+
+    private static long key(int tx, int ty) {
+        return ((long) tx << 32) | (ty & 0xffffffffL);
+    }
+}
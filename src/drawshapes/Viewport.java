@@ -0,0 +1,117 @@
+package drawshapes;
+
+import java.awt.Point;
+import java.awt.geom.AffineTransform;
+
+/**
+ * Which part of the scene a panel shows, and how big.
+ *
+ * A point of the scene ("world") at (x, y) shows up on the panel at
+ * (x * zoom + panX, y * zoom + panY). The panel draws the scene through
+ * getTransform(), hands Scene.draw() the visible world rectangle so it
+ * only draws what can be seen, and turns mouse positions back into
+ * world coordinates with toWorld() before hit-testing.
+ *
+ * The version goes up on every zoom or pan, so cached pictures of the
+ * scene can tell they are out of date.
+ */
+public final class Viewport
+{
+    static final double MIN_ZOOM = 1.0 / 64;
+    static final double MAX_ZOOM = 64;
+
+    private double zoom = 1;
+    private double panX;
+    private double panY;
+    private long version;
+
+    public double getZoom() {
+        return zoom;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * Return the transform from world to panel coordinates.
+     */
+    public AffineTransform getTransform() {
+        return new AffineTransform(zoom, 0, 0, zoom, panX, panY);
+    }
+
+    /**
+     * Return the world point shown at the given point of the panel.
+     */
+    public Point toWorld(Point screen) {
+        return new Point((int) Math.floor((screen.x - panX) / zoom), (int) Math.floor((screen.y - panY) / zoom));
+    }
+
+    /**
+     * Return a distance on the panel as a distance in the world,
+     * rounded up, so hit-testing tolerances stay the same on screen.
+     */
+    public int toWorld(int screenDistance) {
+        return (int) Math.ceil(screenDistance / zoom);
+    }
+
+    /**
+     * Return the part of the panel a world rectangle shows up in,
+     * rounded outwards to whole pixels.
+     */
+    public java.awt.Rectangle toScreen(java.awt.Rectangle world) {
+        int left = (int) Math.floor(world.x * zoom + panX);
+        int top = (int) Math.floor(world.y * zoom + panY);
+        int right = (int) Math.ceil((world.x + world.width) * zoom + panX);
+        int bottom = (int) Math.ceil((world.y + world.height) * zoom + panY);
+        return new java.awt.Rectangle(left, top, right - left + 1, bottom - top + 1);
+    }
+
+    /**
+     * Return the part of the world a panel of the given size shows,
+     * rounded outwards to whole world units.
+     */
+    public java.awt.Rectangle visibleWorld(int width, int height) {
+        int left = (int) Math.floor(-panX / zoom);
+        int top = (int) Math.floor(-panY / zoom);
+        int right = (int) Math.ceil((width - panX) / zoom);
+        int bottom = (int) Math.ceil((height - panY) / zoom);
+        return new java.awt.Rectangle(left, top, right - left, bottom - top);
+    }
+
+    /**
+     * Move the view by the given number of pixels.
+     */
+    public void pan(double dx, double dy) {
+        panX += dx;
+        panY += dy;
+        version++;
+    }
+
+    /**
+     * Zoom by the given factor, keeping the world point under the given
+     * panel point where it is, so the view zooms towards the mouse.
+     */
+    public void zoomAt(Point screen, double factor) {
+        double newZoom = Math.max(MIN_ZOOM, Math.min(MAX_ZOOM, zoom * factor));
+        if (newZoom == zoom) {
+            return;
+        }
+        double worldX = (screen.x - panX) / zoom;
+        double worldY = (screen.y - panY) / zoom;
+        zoom = newZoom;
+        panX = screen.x - worldX * zoom;
+        panY = screen.y - worldY * zoom;
+        version++;
+    }
+
+    /**
+     * Go back to showing the world at its actual size from the origin.
+     */
+    public void reset() {
+        zoom = 1;
+        panX = 0;
+        panY = 0;
+        version++;
+    }
+}